@@ -35,6 +35,7 @@ public class LogFoot {
     String thread="";
     Long endTimeMillis=0L;
     Long startTimeMillis=0L;
+    long startNanos; //用于统计耗时分布，不打印
     Map<?,?> inputParamMap = new HashMap(); //for http请求参数
     Object[] arguments = new Object[0];//for rpc/resource/method 请求参数
     Map<String, Object> outputParamMap = new HashMap<String, Object>() ;
@@ -208,6 +209,14 @@ public class LogFoot {
         this.startTimeMillis = startTimeMillis;
     }
 
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    public void setStartNanos(long startNanos) {
+        this.startNanos = startNanos;
+    }
+
     public String getSequencePrefix() {
         return sequencePrefix;
     }
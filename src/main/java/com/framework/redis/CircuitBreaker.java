@@ -0,0 +1,208 @@
+package com.framework.redis;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 熔断器
+ * 1 关闭状态下按时间窗口统计请求数、失败数和慢请求数，请求数达到minRequests且失败率或慢请求率超过阈值时打开
+ * 2 打开状态下直接拒绝请求，openMillis后进入半开状态
+ * 3 半开状态只放行probeNum个探测请求，全部成功则关闭，任意一个失败或慢则重新打开
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class CircuitBreaker {
+    private static final Logger log = Logger.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final long windowMillis;
+    private final int minRequests;
+    private final double failureRate;
+    private final long slowNanos;
+    private final double slowRate;
+    private final long openMillis;
+    private final int probeNum;
+
+    private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+    private volatile long openedAt;
+    private volatile long windowStart = System.currentTimeMillis();
+    private final AtomicBoolean rotating = new AtomicBoolean(false);
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong slows = new AtomicLong();
+    private final AtomicInteger probePermits = new AtomicInteger();
+    private final AtomicInteger probeSuccess = new AtomicInteger();
+
+    private final AtomicLong openCount = new AtomicLong();
+    private final AtomicLong rejectCount = new AtomicLong();
+
+    /**
+     * @param name         名字，用于日志
+     * @param windowMillis 统计窗口（毫秒）
+     * @param minRequests  窗口内请求数达到这个值才判断是否打开
+     * @param failureRate  失败率阈值（0~1）
+     * @param slowMillis   超过这个耗时算慢请求
+     * @param slowRate     慢请求率阈值（0~1）
+     * @param openMillis   打开后多久进入半开
+     * @param probeNum     半开时放行的探测请求数
+     */
+    public CircuitBreaker(String name, long windowMillis, int minRequests, double failureRate,
+                          long slowMillis, double slowRate, long openMillis, int probeNum) {
+        this.name = name;
+        this.windowMillis = windowMillis;
+        this.minRequests = minRequests;
+        this.failureRate = failureRate;
+        this.slowNanos = TimeUnit.MILLISECONDS.toNanos(slowMillis);
+        this.slowRate = slowRate;
+        this.openMillis = openMillis;
+        this.probeNum = probeNum;
+    }
+
+    /**
+     * 是否放行请求，返回false时调用方应直接失败
+     */
+    public boolean allowRequest() {
+        State current = state.get();
+        if (current == State.CLOSED) {
+            return true;
+        }
+        if (current == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openMillis) {
+                rejectCount.incrementAndGet();
+                return false;
+            }
+            if (state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+                probePermits.set(probeNum);
+                probeSuccess.set(0);
+                log.info("circuit breaker " + name + " half open");
+            }
+        }
+        if (state.get() == State.CLOSED) {
+            return true;
+        }
+        if (probePermits.getAndDecrement() > 0) {
+            return true;
+        }
+        rejectCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * 请求成功
+     *
+     * @param elapsedNanos 请求耗时
+     */
+    public void onSuccess(long elapsedNanos) {
+        boolean slow = elapsedNanos >= slowNanos;
+        State current = state.get();
+        if (current == State.HALF_OPEN) {
+            if (slow) {
+                trip(State.HALF_OPEN);
+            } else if (probeSuccess.incrementAndGet() >= probeNum && state.compareAndSet(State.HALF_OPEN, State.CLOSED)) {
+                resetWindow(System.currentTimeMillis());
+                log.info("circuit breaker " + name + " closed");
+            }
+            return;
+        }
+        if (current == State.CLOSED) {
+            rotateIfNeeded();
+            requests.incrementAndGet();
+            if (slow) {
+                slows.incrementAndGet();
+                evaluate();
+            }
+        }
+    }
+
+    /**
+     * 请求失败（借连接失败、连接断开或超时）
+     */
+    public void onFailure() {
+        State current = state.get();
+        if (current == State.HALF_OPEN) {
+            trip(State.HALF_OPEN);
+            return;
+        }
+        if (current == State.CLOSED) {
+            rotateIfNeeded();
+            requests.incrementAndGet();
+            failures.incrementAndGet();
+            evaluate();
+        }
+    }
+
+    private void evaluate() {
+        long total = requests.get();
+        if (total < minRequests) {
+            return;
+        }
+        if (failures.get() >= total * failureRate || slows.get() >= total * slowRate) {
+            trip(State.CLOSED);
+        }
+    }
+
+    private void trip(State from) {
+        if (state.compareAndSet(from, State.OPEN)) {
+            openedAt = System.currentTimeMillis();
+            openCount.incrementAndGet();
+            log.error("circuit breaker " + name + " open, requests=" + requests.get() + " failures=" + failures.get()
+                    + " slows=" + slows.get());
+        }
+    }
+
+    private void rotateIfNeeded() {
+        long now = System.currentTimeMillis();
+        if (now - windowStart >= windowMillis && rotating.compareAndSet(false, true)) {
+            try {
+                if (now - windowStart >= windowMillis) {
+                    resetWindow(now);
+                }
+            } finally {
+                rotating.set(false);
+            }
+        }
+    }
+
+    private void resetWindow(long now) {
+        requests.set(0);
+        failures.set(0);
+        slows.set(0);
+        windowStart = now;
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 打开的次数
+     */
+    public long getOpenCount() {
+        return openCount.get();
+    }
+
+    /**
+     * 被拒绝的请求数
+     */
+    public long getRejectCount() {
+        return rejectCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + state.get() + " requests=" + requests.get() + " failures=" + failures.get()
+                + " slows=" + slows.get() + " open=" + openCount.get() + " reject=" + rejectCount.get();
+    }
+}
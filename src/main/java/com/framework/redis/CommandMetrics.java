@@ -0,0 +1,192 @@
+package com.framework.redis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 按命令、分片、结果（成功/失败）统计耗时
+ * 1 每个组合一个LatencyHistogram，第一次出现时创建，之后记录不加锁、不分配内存
+ * 2 不能确定分片的命令（多key、全分片操作）记在all下
+ * 3 速率为自上次reset以来的平均每秒次数，按周期采集时使用snapshot(true)
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class CommandMetrics implements CommandMetricsMXBean {
+
+    private final int shardNum;
+    private final ConcurrentHashMap<String, AtomicReferenceArray<LatencyHistogram>> commands =
+            new ConcurrentHashMap<String, AtomicReferenceArray<LatencyHistogram>>();
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private volatile long resetMillis = System.currentTimeMillis();
+
+    public CommandMetrics(int shardNum) {
+        this.shardNum = shardNum;
+    }
+
+    /**
+     * @param command     命令（方法名）
+     * @param shard       分片号，不确定时传-1
+     * @param success     是否成功
+     * @param elapsedNanos 耗时
+     */
+    public void record(String command, int shard, boolean success, long elapsedNanos) {
+        AtomicReferenceArray<LatencyHistogram> histograms = commands.get(command);
+        if (histograms == null) {
+            histograms = new AtomicReferenceArray<LatencyHistogram>((shardNum + 1) * 2);
+            AtomicReferenceArray<LatencyHistogram> exist = commands.putIfAbsent(command, histograms);
+            if (exist != null) {
+                histograms = exist;
+            }
+        }
+        int slot = slot(shard, success);
+        LatencyHistogram histogram = histograms.get(slot);
+        if (histogram == null) {
+            histograms.compareAndSet(slot, null, new LatencyHistogram());
+            histogram = histograms.get(slot);
+        }
+        histogram.recordNanos(elapsedNanos);
+        totalCount.incrementAndGet();
+        if (!success) {
+            errorCount.incrementAndGet();
+        }
+    }
+
+    private int slot(int shard, boolean success) {
+        int index = shard < 0 || shard >= shardNum ? shardNum : shard;
+        return index * 2 + (success ? 0 : 1);
+    }
+
+    /**
+     * 所有命令的快照，按命令名排序
+     *
+     * @param reset 是否同时清零
+     */
+    public List<Entry> snapshot(boolean reset) {
+        long now = System.currentTimeMillis();
+        long seconds = Math.max(1L, (now - resetMillis) / 1000);
+        if (reset) {
+            resetMillis = now;
+            totalCount.set(0);
+            errorCount.set(0);
+        }
+        List<Entry> entries = new ArrayList<Entry>();
+        for (Map.Entry<String, AtomicReferenceArray<LatencyHistogram>> command
+                : new TreeMap<String, AtomicReferenceArray<LatencyHistogram>>(commands).entrySet()) {
+            AtomicReferenceArray<LatencyHistogram> histograms = command.getValue();
+            for (int slot = 0; slot < histograms.length(); slot++) {
+                LatencyHistogram histogram = histograms.get(slot);
+                if (histogram == null) {
+                    continue;
+                }
+                LatencyHistogram.Snapshot snapshot = histogram.snapshot(reset);
+                if (snapshot.getCount() == 0) {
+                    continue;
+                }
+                int shard = slot / 2 == shardNum ? -1 : slot / 2;
+                entries.add(new Entry(command.getKey(), shard, slot % 2 == 0, snapshot,
+                        (double) snapshot.getCount() / seconds));
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public List<String> getCommands() {
+        List<String> list = new ArrayList<String>();
+        for (Entry entry : snapshot(false)) {
+            list.add(entry.toString());
+        }
+        return list;
+    }
+
+    @Override
+    public List<String> command(String command) {
+        if (!commands.containsKey(command)) {
+            return Collections.emptyList();
+        }
+        List<String> list = new ArrayList<String>();
+        for (Entry entry : snapshot(false)) {
+            if (entry.getCommand().equals(command)) {
+                list.add(entry.toString());
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public long getTotalCount() {
+        return totalCount.get();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    @Override
+    public void reset() {
+        snapshot(true);
+    }
+
+    /**
+     * 一个命令在一个分片、一种结果下的统计
+     */
+    public static final class Entry {
+        private final String command;
+        private final int shard;
+        private final boolean success;
+        private final LatencyHistogram.Snapshot latency;
+        private final double rate;
+
+        Entry(String command, int shard, boolean success, LatencyHistogram.Snapshot latency, double rate) {
+            this.command = command;
+            this.shard = shard;
+            this.success = success;
+            this.latency = latency;
+            this.rate = rate;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        /**
+         * 分片号，-1表示不确定分片
+         */
+        public int getShard() {
+            return shard;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        /**
+         * 耗时（微秒）
+         */
+        public LatencyHistogram.Snapshot getLatency() {
+            return latency;
+        }
+
+        /**
+         * 每秒次数
+         */
+        public double getRate() {
+            return rate;
+        }
+
+        @Override
+        public String toString() {
+            return command + " " + (shard < 0 ? "all" : "shard" + shard) + " " + (success ? "ok" : "error")
+                    + " count=" + latency.getCount() + " rate=" + String.format("%.1f", rate) + "/s p50="
+                    + latency.getPercentile(50) + "us p99=" + latency.getPercentile(99) + "us p999="
+                    + latency.getPercentile(99.9) + "us max=" + latency.getMax() + "us";
+        }
+    }
+}
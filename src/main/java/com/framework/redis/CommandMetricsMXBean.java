@@ -0,0 +1,29 @@
+package com.framework.redis;
+
+import java.util.List;
+
+/**
+ * 命令耗时的JMX接口，耗时单位为微秒，次数和速率为自上次reset以来的统计
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public interface CommandMetricsMXBean {
+
+    /**
+     * 所有命令，格式为 {命令} shard{分片号}|all ok|error count={次数} rate={每秒次数} p50= p99= p999= max=
+     */
+    List<String> getCommands();
+
+    /**
+     * 指定命令在各分片、各结果下的统计
+     */
+    List<String> command(String command);
+
+    long getTotalCount();
+
+    long getErrorCount();
+
+    /**
+     * 清零所有统计
+     */
+    void reset();
+}
@@ -0,0 +1,149 @@
+package com.framework.redis;
+
+import org.apache.log4j.Logger;
+import redis.clients.util.Pool;
+
+import java.io.File;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 配置文件监听
+ * 1 后台线程按间隔检查文件的修改时间和大小，变化后调用onChange，onChange在监听线程中执行
+ * 2 只能监听文件系统上的配置文件，jar包内的配置不支持
+ * 3 drain：替换后的旧连接池等借出的连接都归还（或超时）后再关闭，正在执行的命令不受影响
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class ConfigWatcher implements Runnable {
+    private static final Logger log = Logger.getLogger(ConfigWatcher.class);
+
+    private final File file;
+    private final long intervalMillis;
+    private final Runnable onChange;
+    private volatile boolean running;
+    private Thread thread;
+
+    private long lastModified;
+    private long lastLength;
+
+    /**
+     * @param file           配置文件
+     * @param intervalMillis 检查间隔
+     * @param onChange       文件变化后执行
+     */
+    public ConfigWatcher(File file, long intervalMillis, Runnable onChange) {
+        this.file = file;
+        this.intervalMillis = intervalMillis;
+        this.onChange = onChange;
+        this.lastModified = file.lastModified();
+        this.lastLength = file.length();
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "redis-config-watcher-" + file.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long modified = file.lastModified();
+            long length = file.length();
+            if (modified == lastModified && length == lastLength) {
+                continue;
+            }
+            lastModified = modified;
+            lastLength = length;
+            log.info("redis config " + file + " changed");
+            try {
+                onChange.run();
+            } catch (Exception e) {
+                log.error("redis config " + file + " reload error!" + e);
+            }
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * 配置文件在文件系统上的位置：先按路径找，再从classpath找，classpath中的配置在jar包内时返回null
+     */
+    public static File resolve(String configPath, Class<?> clazz) {
+        File file = new File(configPath);
+        if (file.isFile()) {
+            return file;
+        }
+        URL url = clazz.getResource("/" + configPath);
+        if (url == null || !"file".equals(url.getProtocol())) {
+            return null;
+        }
+        try {
+            return new File(url.toURI());
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * 后台等待旧连接池借出的连接都归还后关闭，最多等待drainMillis
+     */
+    public static void drain(final String name, final List<? extends Pool<?>> pools, final long drainMillis) {
+        Thread drainer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long deadline = System.currentTimeMillis() + drainMillis;
+                while (System.currentTimeMillis() < deadline && active(pools) > 0) {
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(100);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                int active = active(pools);
+                for (Pool<?> pool : pools) {
+                    try {
+                        pool.close();
+                    } catch (Exception e) {
+                        log.error("redis close drained pool " + name + " error!" + e);
+                    }
+                }
+                if (active > 0) {
+                    log.error("redis drain " + name + " timeout, closed with " + active + " active connections");
+                } else {
+                    log.info("redis drain " + name + " done");
+                }
+            }
+        }, "redis-drain-" + name);
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    private static int active(List<? extends Pool<?>> pools) {
+        int active = 0;
+        for (Pool<?> pool : pools) {
+            active += Math.max(0, pool.getNumActive());
+        }
+        return active;
+    }
+}
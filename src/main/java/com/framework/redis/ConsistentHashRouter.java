@@ -0,0 +1,129 @@
+package com.framework.redis;
+
+import redis.clients.jedis.JedisShardInfo;
+import redis.clients.util.Hashing;
+import redis.clients.util.SafeEncoder;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * 一致性hash分片路由
+ * 1 虚拟节点的位置和jedis的Sharded完全一致（MurmurHash，每个分片160*weight个节点），不使用hashtag时key的分片不变
+ * 2 虚拟节点预先排好序放在数组里，路由只做一次二分查找，不像TreeMap.tailMap那样每次创建视图对象
+ * 3 开启hashtag后只对key中第一个{}内的部分做hash，同一个tag的key落在同一个分片，可以合并成一次多key命令
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class ConsistentHashRouter {
+
+    // 与Sharded的虚拟节点个数保持一致
+    private static final int NODES_PER_WEIGHT = 160;
+
+    /**
+     * 与getKeyTag规则相同的正则，开启hashtag时传给ShardedJedisPool，保证pipeline的路由与本类一致
+     */
+    public static final Pattern KEY_TAG_PATTERN = Pattern.compile("^[^{]*\\{([^}]+)\\}");
+
+    private final Hashing algo = Hashing.MURMUR_HASH;
+    private final long[] ring;
+    private final int[] owners;
+    private final int shardNum;
+    private final boolean hashTag;
+
+    /**
+     * @param shards  分片信息，下标即分片号
+     * @param hashTag 是否按{tag}路由
+     */
+    public ConsistentHashRouter(List<JedisShardInfo> shards, boolean hashTag) {
+        // 先放入TreeMap，hash冲突时后放入的分片覆盖前面的，和Sharded的行为一致
+        TreeMap<Long, Integer> nodes = new TreeMap<Long, Integer>();
+        for (int i = 0; i < shards.size(); i++) {
+            JedisShardInfo shardInfo = shards.get(i);
+            int nodeNum = NODES_PER_WEIGHT * shardInfo.getWeight();
+            for (int n = 0; n < nodeNum; n++) {
+                String node = shardInfo.getName() == null
+                        ? "SHARD-" + i + "-NODE-" + n
+                        : shardInfo.getName() + "*" + shardInfo.getWeight() + n;
+                nodes.put(algo.hash(node), i);
+            }
+        }
+        this.ring = new long[nodes.size()];
+        this.owners = new int[nodes.size()];
+        int i = 0;
+        for (Map.Entry<Long, Integer> entry : nodes.entrySet()) {
+            ring[i] = entry.getKey();
+            owners[i] = entry.getValue();
+            i++;
+        }
+        this.shardNum = shards.size();
+        this.hashTag = hashTag;
+    }
+
+    public int getShardIndex(String key) {
+        if (hashTag) {
+            key = getKeyTag(key);
+        }
+        return locate(algo.hash(SafeEncoder.encode(key)));
+    }
+
+    public int getShardIndex(byte[] key) {
+        if (hashTag) {
+            key = getKeyTag(key);
+        }
+        return locate(algo.hash(key));
+    }
+
+    private int locate(long hash) {
+        if (ring.length == 0) {
+            return -1;
+        }
+        int pos = Arrays.binarySearch(ring, hash);
+        if (pos < 0) {
+            // 第一个比hash大的节点，超过末尾时回到环的起点
+            pos = -pos - 1;
+            if (pos == ring.length) {
+                pos = 0;
+            }
+        }
+        return owners[pos];
+    }
+
+    public int getShardNum() {
+        return shardNum;
+    }
+
+    public boolean isHashTag() {
+        return hashTag;
+    }
+
+    /**
+     * 取key中第一个{和其后第一个}之间的内容，没有或为空时返回整个key
+     */
+    public static String getKeyTag(String key) {
+        int start = key.indexOf('{');
+        if (start >= 0) {
+            int end = key.indexOf('}', start + 1);
+            if (end > start + 1) {
+                return key.substring(start + 1, end);
+            }
+        }
+        return key;
+    }
+
+    public static byte[] getKeyTag(byte[] key) {
+        for (int start = 0; start < key.length; start++) {
+            if (key[start] == '{') {
+                for (int end = start + 1; end < key.length; end++) {
+                    if (key[end] == '}') {
+                        return end == start + 1 ? key : Arrays.copyOfRange(key, start + 1, end);
+                    }
+                }
+                return key;
+            }
+        }
+        return key;
+    }
+}
@@ -0,0 +1,81 @@
+package com.framework.redis;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count-Min Sketch 频率估计
+ * 1 depth行width列计数器，每个key在每行对应一个计数器，估计值取各行最小值，只会高估不会低估
+ * 2 内存固定为depth*width个long，与key的个数无关，计数使用原子操作，可多线程并发累加
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class CountMinSketch {
+
+    private final int depth;
+    private final int width;
+    private final int mask;
+    private final AtomicLongArray table;
+
+    /**
+     * @param depth hash函数个数，越大高估的概率越小
+     * @param width 每行计数器个数，向上取整为2的幂，越大误差越小
+     */
+    public CountMinSketch(int depth, int width) {
+        int size = 1;
+        while (size < width) {
+            size <<= 1;
+        }
+        this.depth = depth;
+        this.width = size;
+        this.mask = size - 1;
+        this.table = new AtomicLongArray(depth * size);
+    }
+
+    /**
+     * key计数加一
+     *
+     * @return 加一之后的估计值
+     */
+    public long add(String key) {
+        int h1 = spread(key.hashCode());
+        int h2 = spread(h1 ^ 0x5bd1e995);
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            long count = table.incrementAndGet(i * width + ((h1 + i * h2) & mask));
+            if (count < min) {
+                min = count;
+            }
+        }
+        return min;
+    }
+
+    public long estimate(String key) {
+        int h1 = spread(key.hashCode());
+        int h2 = spread(h1 ^ 0x5bd1e995);
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            long count = table.get(i * width + ((h1 + i * h2) & mask));
+            if (count < min) {
+                min = count;
+            }
+        }
+        return min;
+    }
+
+    /**
+     * 清零，与并发的add之间不加锁，清零期间的计数可能部分丢失
+     */
+    public void reset() {
+        for (int i = 0; i < table.length(); i++) {
+            table.set(i, 0);
+        }
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
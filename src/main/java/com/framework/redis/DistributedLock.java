@@ -0,0 +1,195 @@
+package com.framework.redis;
+
+import org.apache.log4j.Logger;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * redis分布式锁，通过ShardJedisTracerClient.getLock获取
+ * 1 加锁是一条SET key token NX PX lease，一次往返且原子，不会出现setnx成功而expire没执行的锁
+ * 2 解锁用Lua脚本比较token，只删除自己持有的锁，删除后PUBLISH通知等待者
+ * 3 持有期间后台每隔redis.lock.renewMillis续期，持有者进程退出后锁最多redis.lock.leaseMillis后自动过期
+ * 4 等不到锁时在本地等待解锁通知，最长等到锁的剩余过期时间，不轮询redis
+ * 5 同一个DistributedLock对象在同一线程内可重入，unlock次数与加锁次数相同时才真正释放
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class DistributedLock {
+    private static final Logger log = Logger.getLogger(DistributedLock.class);
+
+    private final LockManager manager;
+    private final String key;
+
+    private Thread owner;
+    private int holdCount;
+    private String token;
+    private ScheduledFuture<?> renewal;
+    private volatile boolean lost;
+
+    DistributedLock(LockManager manager, String key) {
+        this.manager = manager;
+        this.key = key;
+    }
+
+    /**
+     * 尝试加锁一次，不等待
+     */
+    public boolean tryLock() throws Exception {
+        if (reenter()) {
+            return true;
+        }
+        String newToken = newToken();
+        return acquire(newToken) == null && hold(newToken);
+    }
+
+    /**
+     * 加锁，最多等待waitTime
+     */
+    public boolean tryLock(long waitTime, TimeUnit unit) throws Exception {
+        if (reenter()) {
+            return true;
+        }
+        String newToken = newToken();
+        long deadline = System.currentTimeMillis() + unit.toMillis(waitTime);
+        Long pttl = acquire(newToken);
+        if (pttl == null) {
+            return hold(newToken);
+        }
+        if (waitTime <= 0) {
+            return false;
+        }
+        LockManager.Signal signal = manager.enter(key);
+        try {
+            while (true) {
+                // 先取version再尝试加锁，加锁失败后到等待之间的解锁通知不会漏掉
+                long version = signal.version();
+                pttl = acquire(newToken);
+                if (pttl == null) {
+                    return hold(newToken);
+                }
+                long remain = deadline - System.currentTimeMillis();
+                if (remain <= 0) {
+                    return false;
+                }
+                // pttl小于0说明锁刚好被释放或没有过期时间，稍后重试
+                signal.await(version, Math.min(remain, pttl > 0 ? pttl : 10L));
+            }
+        } finally {
+            manager.leave(key);
+        }
+    }
+
+    /**
+     * 加锁，一直等到成功
+     */
+    public void lock() throws Exception {
+        tryLock(Long.MAX_VALUE / 2, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 解锁，只能由加锁的线程调用
+     *
+     * @return 是否在redis上释放了锁，锁已经因为过期被别人持有时返回false
+     */
+    public boolean unlock() throws Exception {
+        String releaseToken;
+        synchronized (this) {
+            if (owner != Thread.currentThread()) {
+                throw new IllegalMonitorStateException("redis lock " + key + " not held by current thread");
+            }
+            if (--holdCount > 0) {
+                return true;
+            }
+            releaseToken = token;
+            owner = null;
+            token = null;
+            if (renewal != null) {
+                renewal.cancel(false);
+                renewal = null;
+            }
+        }
+        Object released = manager.getClient().evalScript(manager.getReleaseScript(), Collections.singletonList(key),
+                Arrays.asList(releaseToken, LockManager.channel(key)));
+        if (!Long.valueOf(1L).equals(released)) {
+            log.error("redis lock " + key + " already expired before unlock");
+            return false;
+        }
+        return true;
+    }
+
+    public synchronized boolean isHeldByCurrentThread() {
+        return owner == Thread.currentThread() && !lost;
+    }
+
+    /**
+     * 续期失败（锁已过期被别人持有或长时间连不上redis），持有者应放弃临界区内的操作
+     */
+    public boolean isLost() {
+        return lost;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    private synchronized boolean reenter() {
+        if (owner == Thread.currentThread()) {
+            holdCount++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return 成功返回null，失败返回锁的剩余过期时间
+     */
+    private Long acquire(String acquireToken) throws Exception {
+        return (Long) manager.getClient().evalScript(manager.getAcquireScript(), Collections.singletonList(key),
+                Arrays.asList(acquireToken, String.valueOf(manager.getLeaseMillis())));
+    }
+
+    private synchronized boolean hold(final String holdToken) {
+        owner = Thread.currentThread();
+        holdCount = 1;
+        token = holdToken;
+        lost = false;
+        renewal = manager.getWatchdog().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                renew(holdToken);
+            }
+        }, manager.getRenewMillis(), manager.getRenewMillis(), TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    private void renew(String renewToken) {
+        try {
+            Object renewed = manager.getClient().evalScript(manager.getRenewScript(), Collections.singletonList(key),
+                    Arrays.asList(renewToken, String.valueOf(manager.getLeaseMillis())));
+            if (Long.valueOf(1L).equals(renewed)) {
+                return;
+            }
+            log.error("redis lock " + key + " lost, stop renewing");
+        } catch (Exception e) {
+            // 续期失败时下次再试，直到锁过期
+            log.error("redis lock " + key + " renew error!" + e);
+            return;
+        }
+        synchronized (this) {
+            if (renewToken.equals(token)) {
+                lost = true;
+                if (renewal != null) {
+                    renewal.cancel(false);
+                    renewal = null;
+                }
+            }
+        }
+    }
+
+    private static String newToken() {
+        return UUID.randomUUID().toString() + ":" + Thread.currentThread().getId();
+    }
+}
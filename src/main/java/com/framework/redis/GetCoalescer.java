@@ -0,0 +1,155 @@
+package com.framework.redis;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 单key GET 合并器
+ * 1 并发的单key读请求按分片排队，在很短的时间窗口内到达的请求合并成一次MGET
+ * 2 不额外起线程：先到的调用线程成为该分片的leader，等待窗口结束后执行MGET并把结果分发给其他等待线程
+ * 3 同一批次中重复的key只读取一次
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class GetCoalescer {
+
+    /**
+     * 在指定分片上执行一次MGET
+     */
+    public interface ShardLoader {
+        List<String> mget(int shard, String[] keys) throws Exception;
+    }
+
+    private final Lane[] lanes;
+    private final long windowNanos;
+    private final int maxBatch;
+    private final ShardLoader loader;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+
+    /**
+     * @param shardNum     分片个数
+     * @param windowMicros 合并窗口（微秒），leader等待这段时间收集请求
+     * @param maxBatch     单次MGET最多的key个数
+     * @param loader
+     */
+    public GetCoalescer(int shardNum, long windowMicros, int maxBatch, ShardLoader loader) {
+        this.lanes = new Lane[shardNum];
+        for (int i = 0; i < shardNum; i++) {
+            lanes[i] = new Lane();
+        }
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.maxBatch = maxBatch;
+        this.loader = loader;
+    }
+
+    public String get(int shard, String key) throws Exception {
+        requestCount.incrementAndGet();
+        Lane lane = lanes[shard];
+        Pending pending = new Pending(key);
+        lane.queue.offer(pending);
+        while (!pending.done) {
+            if (lane.leader.compareAndSet(false, true)) {
+                try {
+                    if (!pending.done) {
+                        if (windowNanos > 0) {
+                            LockSupport.parkNanos(this, windowNanos);
+                        }
+                        flush(shard, lane);
+                    }
+                } finally {
+                    lane.leader.set(false);
+                }
+                // 还有没被处理的请求，唤醒一个等待线程接任leader
+                Pending next = lane.queue.peek();
+                if (next != null) {
+                    LockSupport.unpark(next.waiter);
+                }
+            } else {
+                LockSupport.parkNanos(this, Math.max(windowNanos, 50000L));
+            }
+        }
+        if (pending.error != null) {
+            throw pending.error;
+        }
+        return pending.value;
+    }
+
+    private void flush(int shard, Lane lane) {
+        Map<String, List<Pending>> batch = new LinkedHashMap<String, List<Pending>>();
+        Pending p;
+        while (batch.size() < maxBatch && (p = lane.queue.poll()) != null) {
+            List<Pending> waiters = batch.get(p.key);
+            if (waiters == null) {
+                waiters = new ArrayList<Pending>(1);
+                batch.put(p.key, waiters);
+            }
+            waiters.add(p);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        batchCount.incrementAndGet();
+        String[] keys = batch.keySet().toArray(new String[batch.size()]);
+        try {
+            List<String> values = loader.mget(shard, keys);
+            for (int i = 0; i < keys.length; i++) {
+                String value = values == null || i >= values.size() ? null : values.get(i);
+                for (Pending waiter : batch.get(keys[i])) {
+                    waiter.complete(value, null);
+                }
+            }
+        } catch (Exception e) {
+            for (List<Pending> waiters : batch.values()) {
+                for (Pending waiter : waiters) {
+                    waiter.complete(null, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 合并前的请求数
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * 实际发出的MGET次数
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    private static final class Lane {
+        final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<Pending>();
+        final AtomicBoolean leader = new AtomicBoolean(false);
+    }
+
+    private static final class Pending {
+        final String key;
+        final Thread waiter = Thread.currentThread();
+        volatile boolean done;
+        String value;
+        Exception error;
+
+        Pending(String key) {
+            this.key = key;
+        }
+
+        void complete(String value, Exception error) {
+            this.value = value;
+            this.error = error;
+            this.done = true;
+            LockSupport.unpark(waiter);
+        }
+    }
+}
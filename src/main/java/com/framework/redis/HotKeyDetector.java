@@ -0,0 +1,213 @@
+package com.framework.redis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 热点key探测
+ * 1 每个分片一个CountMinSketch，按固定时间窗口统计key的访问次数
+ * 2 窗口内估计次数超过threshold的key进入候选，窗口结束时每个分片取次数最多的topN个作为热点，然后清零重新统计
+ * 3 热点列表可以通过getTopKeys和JMX查看，isHot供本地缓存热点key使用
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class HotKeyDetector implements HotKeyDetectorMXBean {
+
+    private final ShardStat[] shards;
+    private final int topN;
+    private final long windowMillis;
+    private final long threshold;
+
+    private volatile long windowStart = System.currentTimeMillis();
+    private final AtomicBoolean rotating = new AtomicBoolean(false);
+    private volatile Set<String> hotKeys = Collections.emptySet();
+
+    /**
+     * @param shardNum     分片个数
+     * @param topN         每个分片保留的热点key个数
+     * @param windowMillis 统计窗口（毫秒）
+     * @param threshold    窗口内访问次数达到这个值才可能成为热点
+     */
+    public HotKeyDetector(int shardNum, int topN, long windowMillis, long threshold) {
+        this.shards = new ShardStat[shardNum];
+        for (int i = 0; i < shardNum; i++) {
+            shards[i] = new ShardStat(topN * 8);
+        }
+        this.topN = topN;
+        this.windowMillis = windowMillis;
+        this.threshold = threshold;
+    }
+
+    /**
+     * 记录一次访问
+     */
+    public void record(int shard, String key) {
+        rotateIfNeeded();
+        if (shard < 0 || shard >= shards.length || key == null) {
+            return;
+        }
+        ShardStat stat = shards[shard];
+        stat.total.incrementAndGet();
+        long count = stat.sketch.add(key);
+        if (count >= threshold) {
+            stat.offer(key, count);
+        }
+    }
+
+    /**
+     * key是否是上一个窗口的热点
+     */
+    public boolean isHot(String key) {
+        rotateIfNeeded();
+        return hotKeys.contains(key);
+    }
+
+    /**
+     * 指定分片上一个窗口的热点key，按次数从多到少
+     */
+    public List<HotKey> getTopKeys(int shard) {
+        return shards[shard].top;
+    }
+
+    private void rotateIfNeeded() {
+        long now = System.currentTimeMillis();
+        if (now - windowStart < windowMillis || !rotating.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (now - windowStart < windowMillis) {
+                return;
+            }
+            Set<String> hot = new HashSet<String>();
+            for (int i = 0; i < shards.length; i++) {
+                shards[i].rotate(i, topN);
+                for (HotKey hotKey : shards[i].top) {
+                    hot.add(hotKey.getKey());
+                }
+            }
+            hotKeys = hot;
+            windowStart = now;
+        } finally {
+            rotating.set(false);
+        }
+    }
+
+    @Override
+    public List<String> getHotKeys() {
+        List<String> list = new ArrayList<String>();
+        for (int i = 0; i < shards.length; i++) {
+            list.addAll(topKeys(i));
+        }
+        return list;
+    }
+
+    @Override
+    public List<String> topKeys(int shard) {
+        List<String> list = new ArrayList<String>();
+        for (HotKey hotKey : getTopKeys(shard)) {
+            list.add(hotKey.toString());
+        }
+        return list;
+    }
+
+    @Override
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    @Override
+    public long getThreshold() {
+        return threshold;
+    }
+
+    @Override
+    public int getTopN() {
+        return topN;
+    }
+
+    private static final class ShardStat {
+        final CountMinSketch sketch = new CountMinSketch(4, 4096);
+        final AtomicLong total = new AtomicLong();
+        final Map<String, Long> candidates = new ConcurrentHashMap<String, Long>();
+        final int capacity;
+        volatile List<HotKey> top = Collections.emptyList();
+
+        ShardStat(int capacity) {
+            this.capacity = capacity;
+        }
+
+        void offer(String key, long count) {
+            if (candidates.size() < capacity || candidates.containsKey(key)) {
+                candidates.put(key, count);
+            }
+        }
+
+        void rotate(int shard, int topN) {
+            long windowTotal = total.getAndSet(0);
+            List<HotKey> list = new ArrayList<HotKey>(candidates.size());
+            for (Map.Entry<String, Long> entry : candidates.entrySet()) {
+                list.add(new HotKey(shard, entry.getKey(), entry.getValue(), windowTotal));
+            }
+            Collections.sort(list, new Comparator<HotKey>() {
+                @Override
+                public int compare(HotKey o1, HotKey o2) {
+                    return Long.compare(o2.getCount(), o1.getCount());
+                }
+            });
+            top = Collections.unmodifiableList(list.size() > topN ? new ArrayList<HotKey>(list.subList(0, topN)) : list);
+            candidates.clear();
+            sketch.reset();
+        }
+    }
+
+    /**
+     * 一个热点key在统计窗口内的访问情况
+     */
+    public static final class HotKey {
+        private final int shard;
+        private final String key;
+        private final long count;
+        private final long shardTotal;
+
+        HotKey(int shard, String key, long count, long shardTotal) {
+            this.shard = shard;
+            this.key = key;
+            this.count = count;
+            this.shardTotal = shardTotal;
+        }
+
+        public int getShard() {
+            return shard;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * 窗口内的访问次数（估计值，可能略偏大）
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * 占该分片窗口内请求数的比例
+         */
+        public double getRatio() {
+            return shardTotal == 0 ? 0 : Math.min(1.0, (double) count / shardTotal);
+        }
+
+        @Override
+        public String toString() {
+            return "shard" + shard + " " + key + " count=" + count + " ratio=" + String.format("%.1f%%", getRatio() * 100);
+        }
+    }
+}
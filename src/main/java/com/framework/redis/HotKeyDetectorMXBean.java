@@ -0,0 +1,26 @@
+package com.framework.redis;
+
+import java.util.List;
+
+/**
+ * 热点key的JMX接口
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public interface HotKeyDetectorMXBean {
+
+    /**
+     * 上一个统计窗口的热点key，格式为 shard{分片号} {key} count={次数} ratio={占分片请求的百分比}
+     */
+    List<String> getHotKeys();
+
+    /**
+     * 指定分片上一个统计窗口的热点key
+     */
+    List<String> topKeys(int shard);
+
+    long getWindowMillis();
+
+    long getThreshold();
+
+    int getTopN();
+}
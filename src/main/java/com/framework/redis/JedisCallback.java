@@ -0,0 +1,12 @@
+package com.framework.redis;
+
+import redis.clients.jedis.Jedis;
+
+/**
+ * 在某个分片的连接上执行一组命令，连接的借出和归还由客户端负责
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public interface JedisCallback<T> {
+
+    T doInJedis(Jedis jedis) throws Exception;
+}
@@ -1,8 +1,27 @@
 package com.framework.redis;
 
+import org.apache.log4j.Logger;
+
+import redis.clients.util.SafeEncoder;
+
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 /**
  * redis 写高可用方案，主要用于保证写入不丢失，防止由于网络问题导致消息写丢失
@@ -10,18 +29,151 @@ import java.util.List;
  * 2 双读，先读master队列,如果master读失败或master队列为空， 再从slave读取(slave读取优先级低于master)
  * 3 master和slave节点内部都可以hash分片（如master0,master1,slave0,slave1）
  * 4 master 和 slave内点可以部署到不同IDC，提高高可用性
+ * 5 lpop/rpop可开启对冲读（redis.ha.hedge.enable）：master超过历史耗时分位数还没返回时再读slave，先返回非空结果的一方胜出；
+ *   slave发出pop前master已经返回元素时不再读slave。只有两边的pop同时在途、都弹出了元素时，输的一方的元素放回原队列的同一端，
+ *   放回失败时写入本地暂存（开启时），期间其他消费者会暂时看不到这个元素
+ * 6 可开启本地暂存（redis.ha.spool.enable）：master和slave都写失败时写入本地内存映射文件并返回spool_num，恢复后后台按顺序回放
  * Created by wangkaiyan on 2017/11/17.
  */
 public class JedisHAClient {
 
+    private static final Logger log = Logger.getLogger(JedisHAClient.class);
+
     private static String MASETER_FLAG = "master";
     private static String SLAVE_FLAG = "slave";
-    private ShardJedisClient master;
-    private ShardJedisClient slave;
+    private ShardJedisTracerClient master;
+    private ShardJedisTracerClient slave;
+
+    // master和slave都写失败、写入本地暂存时的返回值
+    public static Long spool_num = -3L;
+    // 本地暂存，redis.ha.spool.enable=true时开启
+    private WriteSpool spool;
+
+    // 对冲读，redis.ha.hedge.enable=true时开启
+    private boolean hedgeEnable;
+    private PercentileTracker masterLatency;
+    private long hedgeMinDelayMicros;
+    private long hedgeMaxDelayMicros;
+    private double hedgeMaxRatio;
+    private ShardExecutor masterExecutor;
+    private ShardExecutor slaveExecutor;
+
+    private final AtomicLong popCount = new AtomicLong();
+    private final AtomicLong hedgeCount = new AtomicLong();
+    private final AtomicLong slaveWinCount = new AtomicLong();
+    private final AtomicLong compensateCount = new AtomicLong();
+    private final AtomicLong skipCount = new AtomicLong();
+
+    public JedisHAClient(final String config_name) throws FileNotFoundException, IOException {
+        // master和slave并行初始化（包括连接预热）
+        FutureTask<ShardJedisTracerClient> slaveTask = new FutureTask<ShardJedisTracerClient>(
+                new Callable<ShardJedisTracerClient>() {
+                    @Override
+                    public ShardJedisTracerClient call() throws Exception {
+                        return new ShardJedisTracerClient(config_name, SLAVE_FLAG);
+                    }
+                });
+        Thread slaveInit = new Thread(slaveTask, "redis-ha-init-" + SLAVE_FLAG);
+        slaveInit.setDaemon(true);
+        slaveInit.start();
+        master = new ShardJedisTracerClient(config_name, MASETER_FLAG);
+        try {
+            slave = slaveTask.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("redis ha init " + SLAVE_FLAG + " interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("redis ha init " + SLAVE_FLAG + " error", e.getCause());
+        }
+        hedgeEnable = Boolean.valueOf(master.getProperty("redis.ha.hedge.enable", "false"));
+        if (hedgeEnable) {
+            masterLatency = new PercentileTracker(1024,
+                    Double.valueOf(master.getProperty("redis.ha.hedge.percentile", "95")), 1000);
+            hedgeMinDelayMicros = TimeUnit.MILLISECONDS.toMicros(Long.valueOf(master.getProperty("redis.ha.hedge.minDelayMillis", "2")));
+            hedgeMaxDelayMicros = TimeUnit.MILLISECONDS.toMicros(Long.valueOf(master.getProperty("redis.ha.hedge.maxDelayMillis", "50")));
+            hedgeMaxRatio = Double.valueOf(master.getProperty("redis.ha.hedge.maxRatio", "0.1"));
+            int threads = Integer.valueOf(master.getProperty("redis.ha.hedge.threadsPerShard", "8"));
+            int queueSize = Integer.valueOf(master.getProperty("redis.ha.hedge.queueSize", "256"));
+            masterExecutor = new ShardExecutor("redis-hedge-master", master.getShardCount(), threads, queueSize);
+            slaveExecutor = new ShardExecutor("redis-hedge-slave", slave.getShardCount(), threads, queueSize);
+        }
+        if (Boolean.valueOf(master.getProperty("redis.ha.spool.enable", "false"))) {
+            spool = new WriteSpool(new File(master.getProperty("redis.ha.spool.dir", System.getProperty("java.io.tmpdir") + "/redis-spool")),
+                    Integer.valueOf(master.getProperty("redis.ha.spool.segmentSize", "67108864")),
+                    Integer.valueOf(master.getProperty("redis.ha.spool.maxSegments", "16")),
+                    Boolean.valueOf(master.getProperty("redis.ha.spool.forceEachWrite", "false")));
+            spool.startReplay(new WriteSpool.Replayer() {
+                @Override
+                public boolean replay(byte op, byte[] key, byte[][] values) {
+                    return replaySpooled(op, key, values);
+                }
+            }, Long.valueOf(master.getProperty("redis.ha.spool.retryMillis", "1000")));
+        }
+    }
+
+    //#####################Spool########################
+
+    private Long spool(byte op, byte[] key, byte[] value, String message) throws Exception {
+        return spool(op, key, new byte[][]{value}, message);
+    }
+
+    private Long spool(byte op, String key, String value, String message) throws Exception {
+        return spool(op, SafeEncoder.encode(key), new byte[][]{SafeEncoder.encode(value)}, message);
+    }
+
+    private Long spool(byte op, String key, String[] value, String message) throws Exception {
+        byte[][] values = new byte[value.length][];
+        for (int i = 0; i < value.length; i++) {
+            values[i] = SafeEncoder.encode(value[i]);
+        }
+        return spool(op, SafeEncoder.encode(key), values, message);
+    }
+
+    /**
+     * master和slave都写失败时写入本地暂存，暂存未开启或已满时抛出异常
+     */
+    private Long spool(byte op, byte[] key, byte[][] values, String message) throws Exception {
+        if (spool == null || !spool.append(op, key, values)) {
+            throw new Exception(message);
+        }
+        log.error(message + " spooled, key=" + SafeEncoder.encode(key) + " backlog=" + spool.getBacklogRecords());
+        return spool_num;
+    }
 
-    public JedisHAClient(String config_name) throws FileNotFoundException, IOException {
-        master = new ShardJedisClient(config_name, MASETER_FLAG);
-        slave = new ShardJedisClient(config_name, SLAVE_FLAG);
+    /**
+     * 回放暂存的写入，和正常写入一样先写master，失败再写slave
+     */
+    private boolean replaySpooled(byte op, byte[] key, byte[][] values) {
+        Long result = push(master, op, key, values);
+        if (result == ShardJedisTracerClient.error_num) {
+            result = push(slave, op, key, values);
+        }
+        return result != ShardJedisTracerClient.error_num;
+    }
+
+    private Long push(ShardJedisTracerClient client, byte op, byte[] key, byte[][] values) {
+        if (values.length == 1) {
+            return op == WriteSpool.OP_LPUSH ? client.lpush(key, values[0]) : client.rpush(key, values[0]);
+        }
+        String[] value = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            value[i] = SafeEncoder.encode(values[i]);
+        }
+        String strKey = SafeEncoder.encode(key);
+        return op == WriteSpool.OP_LPUSH ? client.lpush(strKey, value) : client.rpush(strKey, value);
+    }
+
+    /**
+     * 本地暂存，未开启时返回null，可查看积压
+     */
+    public WriteSpool getSpool() {
+        return spool;
     }
 
     //#####################List########################
@@ -36,10 +188,10 @@ public class JedisHAClient {
      */
     public Long rpush(final byte[] key, final byte[] value) throws Exception {
         Long result = master.rpush(key, value);
-        if (result == ShardJedisClient.error_num) {
+        if (result == ShardJedisTracerClient.error_num) {
             result = slave.rpush(key, value);
-            if (result == ShardJedisClient.error_num) {
-                throw new Exception("rpush master and slave all error!");
+            if (result == ShardJedisTracerClient.error_num) {
+                return spool(WriteSpool.OP_RPUSH, key, value, "rpush master and slave all error!");
             }
             ;
         }
@@ -56,10 +208,10 @@ public class JedisHAClient {
      */
     public Long rpush(final String key, final String value) throws Exception {
         Long result = master.rpush(key, value);
-        if (result == ShardJedisClient.error_num) {
+        if (result == ShardJedisTracerClient.error_num) {
             result = slave.rpush(key, value);
-            if (result == ShardJedisClient.error_num) {
-                throw new Exception("rpush master and slave all error!");
+            if (result == ShardJedisTracerClient.error_num) {
+                return spool(WriteSpool.OP_RPUSH, key, value, "rpush master and slave all error!");
             }
             ;
         }
@@ -76,10 +228,10 @@ public class JedisHAClient {
      */
     public Long rpush(final String key, final String[] value) throws Exception {
         Long result = master.rpush(key, value);
-        if (result == ShardJedisClient.error_num) {
+        if (result == ShardJedisTracerClient.error_num) {
             result = slave.rpush(key, value);
-            if (result == ShardJedisClient.error_num) {
-                throw new Exception("rpush master and slave all error!");
+            if (result == ShardJedisTracerClient.error_num) {
+                return spool(WriteSpool.OP_RPUSH, key, value, "rpush master and slave all error!");
             }
             ;
         }
@@ -96,10 +248,10 @@ public class JedisHAClient {
      */
     public Long lpush(final byte[] key, final byte[] value) throws Exception {
         Long result = master.lpush(key, value);
-        if (result == ShardJedisClient.error_num) {
+        if (result == ShardJedisTracerClient.error_num) {
             result = slave.lpush(key, value);
-            if (result == ShardJedisClient.error_num) {
-                throw new Exception("lpush master and slave all error!");
+            if (result == ShardJedisTracerClient.error_num) {
+                return spool(WriteSpool.OP_LPUSH, key, value, "lpush master and slave all error!");
             }
             ;
         }
@@ -116,10 +268,10 @@ public class JedisHAClient {
      */
     public Long lpush(final String key, final String value) throws Exception {
         Long result = master.lpush(key, value);
-        if (result == ShardJedisClient.error_num) {
+        if (result == ShardJedisTracerClient.error_num) {
             result = slave.lpush(key, value);
-            if (result == ShardJedisClient.error_num) {
-                throw new Exception("lpush master and slave all error!");
+            if (result == ShardJedisTracerClient.error_num) {
+                return spool(WriteSpool.OP_LPUSH, key, value, "lpush master and slave all error!");
             }
             ;
         }
@@ -136,16 +288,77 @@ public class JedisHAClient {
      */
     public Long lpush(final String key, final String[] value) throws Exception {
         Long result = master.lpush(key, value);
-        if (result == ShardJedisClient.error_num) {
+        if (result == ShardJedisTracerClient.error_num) {
             result = slave.lpush(key, value);
-            if (result == ShardJedisClient.error_num) {
-                throw new Exception("lpush master and slave all error!");
+            if (result == ShardJedisTracerClient.error_num) {
+                return spool(WriteSpool.OP_LPUSH, key, value, "lpush master and slave all error!");
             }
             ;
         }
         return result;
     }
 
+    /**
+     * 批量rpush：master按分片pipeline写入，只有失败的key再写slave，slave也失败时写入本地暂存（开启时）
+     *
+     * @param items key和要写入的values
+     * @return 每个key写到了哪里及结果，顺序与items一致
+     */
+    public Map<String, PushResult> rpushBatch(Map<String, List<String>> items) {
+        return pushBatch(items, false);
+    }
+
+    /**
+     * 批量lpush，见rpushBatch
+     */
+    public Map<String, PushResult> lpushBatch(Map<String, List<String>> items) {
+        return pushBatch(items, true);
+    }
+
+    private Map<String, PushResult> pushBatch(Map<String, List<String>> items, boolean left) {
+        Map<String, PushResult> pushed = new HashMap<String, PushResult>();
+        Map<String, Long> masterResult = left ? master.lpushBatch(items) : master.rpushBatch(items);
+        Map<String, List<String>> failed = new LinkedHashMap<String, List<String>>();
+        for (Map.Entry<String, Long> entry : masterResult.entrySet()) {
+            if (ShardJedisTracerClient.error_num.equals(entry.getValue())) {
+                failed.put(entry.getKey(), items.get(entry.getKey()));
+            } else {
+                pushed.put(entry.getKey(), new PushResult(PushResult.Target.MASTER, entry.getValue()));
+            }
+        }
+        if (!failed.isEmpty()) {
+            Map<String, Long> slaveResult = left ? slave.lpushBatch(failed) : slave.rpushBatch(failed);
+            for (Map.Entry<String, Long> entry : slaveResult.entrySet()) {
+                if (!ShardJedisTracerClient.error_num.equals(entry.getValue())) {
+                    pushed.put(entry.getKey(), new PushResult(PushResult.Target.SLAVE, entry.getValue()));
+                } else if (spoolQuietly(left ? WriteSpool.OP_LPUSH : WriteSpool.OP_RPUSH, entry.getKey(), failed.get(entry.getKey()))) {
+                    pushed.put(entry.getKey(), new PushResult(PushResult.Target.SPOOL, spool_num));
+                } else {
+                    log.error((left ? "lpushBatch" : "rpushBatch") + " master and slave all error! key=" + entry.getKey());
+                    pushed.put(entry.getKey(), new PushResult(PushResult.Target.FAILED, ShardJedisTracerClient.error_num));
+                }
+            }
+        }
+        Map<String, PushResult> result = new LinkedHashMap<String, PushResult>();
+        for (String key : items.keySet()) {
+            result.put(key, pushed.get(key));
+        }
+        return result;
+    }
+
+    private boolean spoolQuietly(byte op, String key, List<String> value) {
+        if (spool == null) {
+            return false;
+        }
+        try {
+            spool(op, key, value.toArray(new String[value.size()]),
+                    (op == WriteSpool.OP_LPUSH ? "lpushBatch" : "rpushBatch") + " master and slave all error!");
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
     /**
      * lrem，先删除master 再删除slave
      *
@@ -168,6 +381,9 @@ public class JedisHAClient {
      * @return
      */
     public String lpop(final String key) throws Exception {
+        if (hedgeEnable) {
+            return hedgedPop(key, true);
+        }
         String result = master.lpop(key);
         if (result == null) {
             result = slave.lpop(key);
@@ -182,6 +398,9 @@ public class JedisHAClient {
      * @return
      */
     public String rpop(String key) throws Exception {
+        if (hedgeEnable) {
+            return hedgedPop(key, false);
+        }
         String result = master.rpop(key);
         if (result == null) {
             result = slave.rpop(key);
@@ -189,7 +408,218 @@ public class JedisHAClient {
         return result;
     }
 
-    //这2个接口目前有bug 不建议使用
+    /**
+     * 一次往返从左边原子地弹出最多count个元素，先从master弹出，不够count个时再从slave弹出剩余个数
+     *
+     * @param key
+     * @param count
+     * @return master的元素在前，slave的元素在后
+     */
+    public List<String> lpopN(String key, int count) throws Exception {
+        List<String> result = master.lpopN(key, count);
+        if (result.size() < count) {
+            result.addAll(slave.lpopN(key, count - result.size()));
+        }
+        return result;
+    }
+
+    /**
+     * 一次往返从右边原子地弹出最多count个元素，先从master弹出，不够count个时再从slave弹出剩余个数
+     *
+     * @param key
+     * @param count
+     * @return master的元素在前，slave的元素在后
+     */
+    public List<String> rpopN(String key, int count) throws Exception {
+        List<String> result = master.rpopN(key, count);
+        if (result.size() < count) {
+            result.addAll(slave.rpopN(key, count - result.size()));
+        }
+        return result;
+    }
+
+    /**
+     * 一次往返从集合中随机弹出最多count个元素，先从master弹出，不够count个时再从slave弹出剩余个数
+     *
+     * @param key
+     * @param count
+     * @return
+     */
+    public Set<String> spopN(String key, long count) throws Exception {
+        Set<String> result = new HashSet<String>(master.spopN(key, count));
+        if (result.size() < count) {
+            result.addAll(slave.spopN(key, count - result.size()));
+        }
+        return result;
+    }
+
+    /**
+     * 对冲读：先读master，超过对冲延迟还没返回时同时读slave，先返回非空结果的一方胜出
+     * slave的pop在真正发出前检查master是否已经返回了元素，是则不再弹出；
+     * 两边都弹出了元素时把输的一方放回它原来的队列（lpop放回头部，rpop放回尾部），放回失败时写入本地暂存
+     *
+     * @param key
+     * @param left true为lpop，false为rpop
+     * @return
+     */
+    private String hedgedPop(final String key, final boolean left) throws Exception {
+        popCount.incrementAndGet();
+        final long start = System.nanoTime();
+        final CompletableFuture<String> masterFuture = masterExecutor.submit(master.getShardIndex(key), new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return left ? master.lpop(key) : master.rpop(key);
+            }
+        });
+        masterFuture.whenComplete(new BiConsumer<String, Throwable>() {
+            @Override
+            public void accept(String value, Throwable e) {
+                masterLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            }
+        });
+        String result;
+        try {
+            result = masterFuture.get(getHedgeDelayMicros(), TimeUnit.MICROSECONDS);
+        } catch (TimeoutException e) {
+            if (hedgeCount.get() >= popCount.get() * hedgeMaxRatio) {
+                // 对冲比例超过上限，说明master整体变慢，不再加倍请求，按原来的顺序读
+                result = getQuietly(masterFuture);
+                return result != null ? result : (left ? slave.lpop(key) : slave.rpop(key));
+            }
+            hedgeCount.incrementAndGet();
+            return race(key, left, masterFuture);
+        } catch (Exception e) {
+            // master线程池已满等，退回同步读
+            log.error("redis hedge master pop error!" + e);
+            result = left ? master.lpop(key) : master.rpop(key);
+        }
+        if (result == null) {
+            result = left ? slave.lpop(key) : slave.rpop(key);
+        }
+        return result;
+    }
+
+    private String race(final String key, final boolean left, final CompletableFuture<String> masterFuture) throws Exception {
+        final CompletableFuture<String> winner = new CompletableFuture<String>();
+        final AtomicInteger pending = new AtomicInteger(2);
+        masterFuture.whenComplete(new BiConsumer<String, Throwable>() {
+            @Override
+            public void accept(String value, Throwable e) {
+                settle(winner, pending, master, key, left, value, false);
+            }
+        });
+        CompletableFuture<String> slaveFuture = slaveExecutor.submit(slave.getShardIndex(key), new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                // 在slave线程池排队期间master已经返回了元素，不再从slave弹出
+                if (winner.isDone()) {
+                    skipCount.incrementAndGet();
+                    return null;
+                }
+                return left ? slave.lpop(key) : slave.rpop(key);
+            }
+        });
+        slaveFuture.whenComplete(new BiConsumer<String, Throwable>() {
+            @Override
+            public void accept(String value, Throwable e) {
+                settle(winner, pending, slave, key, left, value, true);
+            }
+        });
+        return winner.get();
+    }
+
+    private void settle(CompletableFuture<String> winner, AtomicInteger pending, ShardJedisTracerClient client,
+                        String key, boolean left, String value, boolean fromSlave) {
+        if (value != null) {
+            if (winner.complete(value)) {
+                if (fromSlave) {
+                    slaveWinCount.incrementAndGet();
+                }
+            } else {
+                // 另一方已经返回了元素，这个元素放回原队列
+                compensateCount.incrementAndGet();
+                pushBack(client, key, left, value);
+            }
+        }
+        if (pending.decrementAndGet() == 0) {
+            winner.complete(null);
+        }
+    }
+
+    /**
+     * 放回输的一方弹出的元素，失败时写入本地暂存，由暂存回放（先master后slave）写回
+     */
+    private void pushBack(ShardJedisTracerClient client, String key, boolean left, String value) {
+        Long pushed = left ? client.lpush(key, value) : client.rpush(key, value);
+        if (pushed != ShardJedisTracerClient.error_num) {
+            return;
+        }
+        try {
+            spool(left ? WriteSpool.OP_LPUSH : WriteSpool.OP_RPUSH, key, value, "redis hedge push back error!");
+        } catch (Exception e) {
+            log.error("redis hedge push back error, element lost! key=" + key + " value=" + value);
+        }
+    }
+
+    private String getQuietly(CompletableFuture<String> future) {
+        try {
+            return future.get();
+        } catch (Exception e) {
+            log.error("redis hedge master pop error!" + e);
+            return null;
+        }
+    }
+
+    /**
+     * 对冲延迟：master最近pop耗时的分位数，限制在[minDelay, maxDelay]内
+     */
+    private long getHedgeDelayMicros() {
+        long delay = masterLatency.get();
+        if (delay < 0) {
+            return hedgeMaxDelayMicros;
+        }
+        return Math.max(hedgeMinDelayMicros, Math.min(hedgeMaxDelayMicros, delay));
+    }
+
+    /**
+     * 对冲读的次数占pop次数的比例
+     */
+    public double getHedgeRate() {
+        long pops = popCount.get();
+        return pops == 0 ? 0 : (double) hedgeCount.get() / pops;
+    }
+
+    public long getPopCount() {
+        return popCount.get();
+    }
+
+    public long getHedgeCount() {
+        return hedgeCount.get();
+    }
+
+    /**
+     * 对冲读中slave先返回的次数
+     */
+    public long getSlaveWinCount() {
+        return slaveWinCount.get();
+    }
+
+    /**
+     * master和slave都弹出元素、把输的一方放回队列的次数
+     */
+    public long getCompensateCount() {
+        return compensateCount.get();
+    }
+
+    /**
+     * 对冲读中master先返回元素、slave的pop没有发出的次数
+     */
+    public long getHedgeSkipCount() {
+        return skipCount.get();
+    }
+
+    //这2个接口目前有bug 不建议使用，阻塞消费请使用QueueConsumer
+    @Deprecated
     public List<String> blpop(String key) throws Exception {
         List<String> result = master.blpop(key);
         if (result.size() == 0) {
@@ -198,6 +628,7 @@ public class JedisHAClient {
         return result;
     }
 
+    @Deprecated
     public List<String> brpop(String key) throws Exception {
         List<String> result = master.brpop(key);
         if (result.size() == 0) {
@@ -206,6 +637,7 @@ public class JedisHAClient {
         return result;
     }
 
+    @Deprecated
     public List<String> blpop(String key, int timeout) throws Exception {
         List<String> result = master.blpop(key, timeout);
         if (result.size() == 0) {
@@ -214,6 +646,7 @@ public class JedisHAClient {
         return result;
     }
 
+    @Deprecated
     public List<String> brpop(String key, int timeout) throws Exception {
         List<String> result = master.brpop(key, timeout);
         if (result.size() == 0) {
@@ -322,11 +755,26 @@ public class JedisHAClient {
         return slave.lset(key, index, value);
     }
 
-    public void setMaster(ShardJedisClient master) {
+    /**
+     * master和slave都预热完成，可以接流量
+     */
+    public boolean isReady() {
+        return master.isReady() && slave.isReady();
+    }
+
+    public ShardJedisTracerClient getMaster() {
+        return master;
+    }
+
+    public ShardJedisTracerClient getSlave() {
+        return slave;
+    }
+
+    public void setMaster(ShardJedisTracerClient master) {
         this.master = master;
     }
 
-    public void setSlave(ShardJedisClient slave) {
+    public void setSlave(ShardJedisTracerClient slave) {
         this.slave = slave;
     }
 
@@ -0,0 +1,141 @@
+package com.framework.redis;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 耗时直方图（微秒）
+ * 1 对数线性分桶：每个2的幂区间分8个桶，相对误差约12%，固定512个桶，覆盖到几天的耗时
+ * 2 记录只做一次桶下标计算和几次原子加，不加锁，不分配内存
+ * 3 分位数从快照计算，快照期间的并发记录可能只有一部分计入
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKET_NUM = 64 * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_NUM);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void recordNanos(long nanos) {
+        record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        counts.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        long current = max.get();
+        while (micros > current && !max.compareAndSet(current, micros)) {
+            current = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public Snapshot snapshot() {
+        return snapshot(false);
+    }
+
+    /**
+     * @param reset 取快照的同时清零，用于按周期统计
+     */
+    public Snapshot snapshot(boolean reset) {
+        long[] buckets = new long[BUCKET_NUM];
+        long total = 0;
+        for (int i = 0; i < BUCKET_NUM; i++) {
+            buckets[i] = reset ? counts.getAndSet(i, 0) : counts.get(i);
+            total += buckets[i];
+        }
+        long sumMicros = reset ? sum.getAndSet(0) : sum.get();
+        long maxMicros = reset ? max.getAndSet(0) : max.get();
+        if (reset) {
+            count.addAndGet(-total);
+        }
+        return new Snapshot(buckets, total, sumMicros, maxMicros);
+    }
+
+    static int bucket(long micros) {
+        if (micros < SUB_COUNT) {
+            return (int) micros;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exp - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * 桶内的最大值
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_COUNT) {
+            return bucket;
+        }
+        int exp = bucket / SUB_COUNT + SUB_BITS - 1;
+        long sub = bucket % SUB_COUNT;
+        return ((SUB_COUNT + sub + 1) << (exp - SUB_BITS)) - 1;
+    }
+
+    /**
+     * 直方图快照，耗时单位均为微秒
+     */
+    public static final class Snapshot {
+        private final long[] buckets;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] buckets, long count, long sum, long max) {
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @param percentile 0~100
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && buckets[i] > 0) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " mean=" + getMean() + "us p50=" + getPercentile(50) + "us p99="
+                    + getPercentile(99) + "us p999=" + getPercentile(99.9) + "us max=" + max + "us";
+        }
+    }
+}
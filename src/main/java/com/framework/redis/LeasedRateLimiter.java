@@ -0,0 +1,58 @@
+package com.framework.redis;
+
+/**
+ * 本地预取许可的限流
+ * 1 本地许可不够时一次从redis取最多batch个，之后的判断在本地完成，不访问redis
+ * 2 取到的许可leaseMillis后作废，避免空闲的进程长期占着许可
+ * 3 精度换吞吐：多个进程各自预取，瞬时的总量仍不超过redis上的限制，但先取到许可的进程可能用不完，
+ *   其他进程会提前被拒绝，batch越大越明显
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class LeasedRateLimiter extends RateLimiter {
+
+    private final RateLimiter delegate;
+    private final int batch;
+    private final long leaseMillis;
+
+    private long available;
+    private long expireAt;
+
+    /**
+     * @param delegate    redis上的限流
+     * @param batch       每次预取的许可数
+     * @param leaseMillis 预取的许可多久后作废
+     */
+    public LeasedRateLimiter(RateLimiter delegate, int batch, long leaseMillis) {
+        this.delegate = delegate;
+        this.batch = batch;
+        this.leaseMillis = leaseMillis;
+    }
+
+    @Override
+    protected synchronized int acquire(int permits, boolean partial) throws Exception {
+        long now = System.currentTimeMillis();
+        if (now >= expireAt) {
+            available = 0;
+        }
+        if (available < permits) {
+            int leased = delegate.tryAcquireUpTo((int) Math.max(batch, permits - available));
+            if (leased > 0) {
+                available += leased;
+                expireAt = now + leaseMillis;
+            }
+        }
+        int granted = (int) Math.min(permits, available);
+        if (granted < permits && !partial) {
+            return 0;
+        }
+        available -= granted;
+        return granted;
+    }
+
+    /**
+     * 本地剩余的许可数
+     */
+    public synchronized long getAvailable() {
+        return System.currentTimeMillis() >= expireAt ? 0 : available;
+    }
+}
@@ -0,0 +1,282 @@
+package com.framework.redis;
+
+import org.apache.log4j.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.JedisShardInfo;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * 分布式锁的公共部分，每个客户端一个
+ * 1 注册加锁、解锁、续期三个Lua脚本
+ * 2 续期线程：持有中的锁每隔renewMillis把过期时间重新设为leaseMillis，进程退出后不再续期，锁最多leaseMillis后自动释放
+ * 3 解锁时在锁所在分片PUBLISH，每个分片一个订阅线程（独立长连接PSUBSCRIBE），收到后唤醒本进程内等待这把锁的线程，不需要轮询
+ * Created by wangkaiyan on 2017/11/17.
+ */
+class LockManager {
+    private static final Logger log = Logger.getLogger(LockManager.class);
+
+    static final String CHANNEL_PREFIX = "__lock__:";
+
+    private final ShardJedisTracerClient client;
+    private final long leaseMillis;
+    private final long renewMillis;
+    private final LuaScript acquireScript;
+    private final LuaScript releaseScript;
+    private final LuaScript renewScript;
+    private final ScheduledExecutorService watchdog;
+    // 本进程内正在等待的锁，key为频道
+    private final ConcurrentHashMap<String, Signal> signals = new ConcurrentHashMap<String, Signal>();
+    // 每个分片的订阅线程，下标即分片号，第一次等待该分片上的锁时启动
+    private final Subscriber[] subscribers;
+
+    LockManager(ShardJedisTracerClient client, long leaseMillis, long renewMillis) {
+        this.client = client;
+        this.leaseMillis = leaseMillis;
+        this.renewMillis = renewMillis;
+        // 加锁成功返回nil，失败返回锁的剩余过期时间
+        this.acquireScript = client.registerScript("lock.acquire",
+                "if redis.call('SET', KEYS[1], ARGV[1], 'NX', 'PX', ARGV[2]) then return nil end " +
+                "return redis.call('PTTL', KEYS[1])");
+        this.releaseScript = client.registerScript("lock.release",
+                "if redis.call('GET', KEYS[1]) == ARGV[1] then " +
+                "redis.call('DEL', KEYS[1]) redis.call('PUBLISH', ARGV[2], '0') return 1 end " +
+                "return 0");
+        this.renewScript = client.registerScript("lock.renew",
+                "if redis.call('GET', KEYS[1]) == ARGV[1] then return redis.call('PEXPIRE', KEYS[1], ARGV[2]) end " +
+                "return 0");
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "redis-lock-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.subscribers = new Subscriber[client.getShardCount()];
+    }
+
+    ShardJedisTracerClient getClient() {
+        return client;
+    }
+
+    long getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    long getRenewMillis() {
+        return renewMillis;
+    }
+
+    LuaScript getAcquireScript() {
+        return acquireScript;
+    }
+
+    LuaScript getReleaseScript() {
+        return releaseScript;
+    }
+
+    LuaScript getRenewScript() {
+        return renewScript;
+    }
+
+    ScheduledExecutorService getWatchdog() {
+        return watchdog;
+    }
+
+    static String channel(String key) {
+        return CHANNEL_PREFIX + key;
+    }
+
+    /**
+     * 开始等待一把锁，返回的Signal用完后要调用leave
+     */
+    Signal enter(String key) {
+        ensureSubscribed(client.getShardIndex(key));
+        return signals.compute(channel(key), new BiFunction<String, Signal, Signal>() {
+            @Override
+            public Signal apply(String channel, Signal signal) {
+                if (signal == null) {
+                    signal = new Signal();
+                }
+                signal.waiters++;
+                return signal;
+            }
+        });
+    }
+
+    void leave(String key) {
+        signals.computeIfPresent(channel(key), new BiFunction<String, Signal, Signal>() {
+            @Override
+            public Signal apply(String channel, Signal signal) {
+                return --signal.waiters == 0 ? null : signal;
+            }
+        });
+    }
+
+    private void wake(String channel) {
+        Signal signal = signals.get(channel);
+        if (signal != null) {
+            signal.wake();
+        }
+    }
+
+    /**
+     * 订阅断开期间可能漏掉解锁通知，唤醒所有等待线程重新尝试
+     */
+    private void wakeAll() {
+        for (Signal signal : signals.values()) {
+            signal.wake();
+        }
+    }
+
+    /**
+     * 分片重新加载后调用，地址变化的分片的订阅线程断开后按新地址重连
+     */
+    void resubscribe() {
+        synchronized (subscribers) {
+            for (int i = 0; i < subscribers.length; i++) {
+                if (subscribers[i] != null) {
+                    subscribers[i].reconnectIfMoved(client.getShardInfos().get(i));
+                }
+            }
+        }
+    }
+
+    private void ensureSubscribed(int shard) {
+        Subscriber subscriber = subscribers[shard];
+        if (subscriber == null) {
+            synchronized (subscribers) {
+                subscriber = subscribers[shard];
+                if (subscriber == null) {
+                    subscriber = new Subscriber(shard);
+                    subscribers[shard] = subscriber;
+                    subscriber.start();
+                }
+            }
+        }
+        subscriber.awaitSubscribed();
+    }
+
+    /**
+     * 等待一把锁的线程共用的通知，version在每次收到解锁通知时递增
+     */
+    static final class Signal {
+        private int waiters;
+        private long version;
+
+        synchronized long version() {
+            return version;
+        }
+
+        /**
+         * version没有变化时最多等待waitMillis
+         */
+        synchronized void await(long version, long waitMillis) throws InterruptedException {
+            if (this.version == version && waitMillis > 0) {
+                wait(waitMillis);
+            }
+        }
+
+        synchronized void wake() {
+            version++;
+            notifyAll();
+        }
+    }
+
+    private final class Subscriber extends JedisPubSub implements Runnable {
+        private final int shard;
+        // 当前连接的分片，每次重连时从客户端重新取，分片重新加载后连到新地址
+        private volatile JedisShardInfo shardInfo;
+        private final CountDownLatch subscribed = new CountDownLatch(1);
+
+        Subscriber(int shard) {
+            this.shard = shard;
+        }
+
+        void start() {
+            Thread thread = new Thread(this, "redis-lock-subscriber-" + shard);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * 第一次订阅完成前最多等1秒，订阅不上时等待线程按锁的过期时间重试
+         */
+        void awaitSubscribed() {
+            try {
+                subscribed.await(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * 地址变化时取消订阅，run中的psubscribe返回后按新地址重连
+         */
+        void reconnectIfMoved(JedisShardInfo current) {
+            JedisShardInfo connected = shardInfo;
+            if (connected == null || ShardTopology.sameAddress(connected, current) || !isSubscribed()) {
+                return;
+            }
+            log.info("redis lock subscriber " + shard + " moved to " + current.getHost() + ":" + current.getPort());
+            try {
+                punsubscribe();
+            } catch (Exception e) {
+                // 刚好断开，run会重连
+                log.error("redis lock subscriber " + shard + " unsubscribe error!" + e);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Jedis jedis = null;
+                try {
+                    JedisShardInfo shardInfo = client.getShardInfos().get(shard);
+                    this.shardInfo = shardInfo;
+                    jedis = new Jedis(shardInfo.getHost(), shardInfo.getPort(), shardInfo.getConnectionTimeout(), 0);
+                    if (shardInfo.getPassword() != null) {
+                        jedis.auth(shardInfo.getPassword());
+                    }
+                    jedis.psubscribe(this, CHANNEL_PREFIX + "*");
+                } catch (Exception e) {
+                    log.error("redis lock subscriber " + shard + " error!" + e);
+                } finally {
+                    if (jedis != null) {
+                        try {
+                            jedis.close();
+                        } catch (Exception e) {
+                            log.error("redis lock subscriber " + shard + " close error!" + e);
+                        }
+                    }
+                }
+                wakeAll();
+                try {
+                    TimeUnit.SECONDS.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void onPSubscribe(String pattern, int subscribedChannels) {
+            subscribed.countDown();
+            // 订阅之前的解锁通知可能已经错过
+            wakeAll();
+        }
+
+        @Override
+        public void onPMessage(String pattern, String channel, String message) {
+            wake(channel);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.framework.redis;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * redis 客户端进程内一级缓存（near cache）
+ * 1 以redis key为单位缓存，同一个key下可以缓存多种读视图（get/hget/hgetall）
+ * 2 容量和TTL双重限制，容量超限时按分段LRU淘汰
+ * 3 本地写操作通过invalidate使key失效；读回填时校验版本号，防止并发写入后回填旧值
+ * 4 记录命中/未命中/淘汰次数
+ * 注意：只能感知本进程内的写，其他进程写入的数据最多在TTL内不可见
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class NearCache {
+
+    /** 未命中时的返回值，用于区分“缓存了null”和“没有缓存” */
+    public static final Object MISS = new Object();
+
+    static final String VIEW_GET = "get";
+    static final String VIEW_GET_BYTES = "getb";
+    static final String VIEW_HGETALL = "hgetall";
+    static final String VIEW_HGET_PREFIX = "hget:";
+
+    private static final Object NULL_VALUE = new Object();
+    private static final int STAMP_STRIPES = 1024;
+
+    private final Segment[] segments;
+    private final long ttlNanos;
+    // 按key hash分条的失效版本号，回填前后比较，不一致说明期间发生过写
+    private final AtomicLongArray stamps = new AtomicLongArray(STAMP_STRIPES);
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * @param maxSize    最多缓存的key个数
+     * @param ttlMillis  每个key写入缓存后的存活时间
+     */
+    public NearCache(int maxSize, long ttlMillis) {
+        int segmentNum = maxSize >= 1024 ? 16 : 1;
+        int perSegment = Math.max(1, maxSize / segmentNum);
+        this.segments = new Segment[segmentNum];
+        for (int i = 0; i < segmentNum; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * 读缓存
+     *
+     * @param key
+     * @param view
+     * @return 缓存值（可能为null），没有缓存时返回 {@link #MISS}
+     */
+    public Object get(String key, String view) {
+        Entry entry = segmentFor(key).get(key);
+        if (entry == null || entry.isExpired()) {
+            missCount.incrementAndGet();
+            return MISS;
+        }
+        Object value = entry.views.get(view);
+        if (value == null) {
+            missCount.incrementAndGet();
+            return MISS;
+        }
+        hitCount.incrementAndGet();
+        return value == NULL_VALUE ? null : value;
+    }
+
+    /**
+     * 回源前先取版本号，回填时带上，期间有写操作则放弃回填
+     */
+    public long stamp(String key) {
+        return stamps.get(stripe(key));
+    }
+
+    public void put(String key, String view, Object value, long stamp) {
+        if (stamps.get(stripe(key)) != stamp) {
+            return;
+        }
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            Entry entry = segment.map.get(key);
+            if (entry == null || entry.isExpired()) {
+                entry = new Entry(System.nanoTime() + ttlNanos);
+                segment.map.put(key, entry);
+            }
+            entry.views.put(view, value == null ? NULL_VALUE : value);
+        }
+        // 放入后再确认一次，防止和invalidate交错
+        if (stamps.get(stripe(key)) != stamp) {
+            invalidate(key);
+        }
+    }
+
+    public void invalidate(String key) {
+        stamps.incrementAndGet(stripe(key));
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.map.remove(key);
+        }
+    }
+
+    public void invalidateAll() {
+        for (int i = 0; i < STAMP_STRIPES; i++) {
+            stamps.incrementAndGet(i);
+        }
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.map.clear();
+            }
+        }
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.map.size();
+            }
+        }
+        return size;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public double getHitRate() {
+        long hit = hitCount.get();
+        long total = hit + missCount.get();
+        return total == 0 ? 0.0 : (double) hit / total;
+    }
+
+    private Segment segmentFor(String key) {
+        return segments[(spread(key.hashCode()) & 0x7fffffff) % segments.length];
+    }
+
+    private int stripe(String key) {
+        return spread(key.hashCode()) & (STAMP_STRIPES - 1);
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Entry {
+        final long expireAtNanos;
+        final Map<String, Object> views = new ConcurrentHashMap<String, Object>(4);
+
+        Entry(long expireAtNanos) {
+            this.expireAtNanos = expireAtNanos;
+        }
+
+        boolean isExpired() {
+            return System.nanoTime() - expireAtNanos > 0;
+        }
+    }
+
+    private final class Segment {
+        final LinkedHashMap<String, Entry> map;
+
+        Segment(final int capacity) {
+            // 匿名子类内部的Entry会解析成继承来的Map.Entry，这里必须写全NearCache.Entry
+            this.map = new LinkedHashMap<String, NearCache.Entry>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, NearCache.Entry> eldest) {
+                    if (size() > capacity) {
+                        evictionCount.incrementAndGet();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        synchronized Entry get(String key) {
+            Entry entry = map.get(key);
+            if (entry != null && entry.isExpired()) {
+                map.remove(key);
+                return null;
+            }
+            return entry;
+        }
+    }
+}
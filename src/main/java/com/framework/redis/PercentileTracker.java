@@ -0,0 +1,67 @@
+package com.framework.redis;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 最近N次耗时的分位数
+ * 1 耗时写入固定大小的环形数组，覆盖最旧的样本，写入无锁
+ * 2 分位数按refreshMillis间隔重新排序计算，其余时间直接返回缓存值
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class PercentileTracker {
+
+    private final AtomicLongArray samples;
+    private final AtomicLong index = new AtomicLong();
+    private final double percentile;
+    private final long refreshMillis;
+
+    private volatile long cachedValue = -1;
+    private volatile long cachedAt;
+
+    /**
+     * @param size          保留的样本个数
+     * @param percentile    分位数，如95表示P95
+     * @param refreshMillis 重新计算的间隔
+     */
+    public PercentileTracker(int size, double percentile, long refreshMillis) {
+        this.samples = new AtomicLongArray(size);
+        this.percentile = percentile;
+        this.refreshMillis = refreshMillis;
+    }
+
+    public void record(long value) {
+        samples.set((int) (index.getAndIncrement() % samples.length()), value);
+    }
+
+    /**
+     * 当前分位数，样本不足时返回-1
+     */
+    public long get() {
+        long now = System.currentTimeMillis();
+        if (now - cachedAt >= refreshMillis) {
+            cachedAt = now;
+            cachedValue = compute();
+        }
+        return cachedValue;
+    }
+
+    private long compute() {
+        int count = (int) Math.min(index.get(), samples.length());
+        if (count < Math.min(samples.length(), 20)) {
+            return -1;
+        }
+        long[] copy = new long[count];
+        for (int i = 0; i < count; i++) {
+            copy[i] = samples.get(i);
+        }
+        Arrays.sort(copy);
+        int pos = (int) Math.ceil(percentile / 100 * count) - 1;
+        return copy[Math.max(0, Math.min(count - 1, pos))];
+    }
+
+    public double getPercentile() {
+        return percentile;
+    }
+}
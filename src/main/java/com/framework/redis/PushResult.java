@@ -0,0 +1,43 @@
+package com.framework.redis;
+
+/**
+ * JedisHAClient批量写入中单个key的结果
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class PushResult {
+
+    /**
+     * 最终写到哪里
+     */
+    public enum Target {
+        MASTER, SLAVE, SPOOL, FAILED
+    }
+
+    private final Target target;
+    private final Long result;
+
+    public PushResult(Target target, Long result) {
+        this.target = target;
+        this.result = result;
+    }
+
+    public Target getTarget() {
+        return target;
+    }
+
+    /**
+     * 写入后list的长度，写入暂存时为spool_num，失败时为error_num
+     */
+    public Long getResult() {
+        return result;
+    }
+
+    public boolean isSuccess() {
+        return target != Target.FAILED;
+    }
+
+    @Override
+    public String toString() {
+        return target + ":" + result;
+    }
+}
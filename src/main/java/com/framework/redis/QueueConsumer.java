@@ -0,0 +1,380 @@
+package com.framework.redis;
+
+import com.framework.log.LogContext;
+import org.apache.log4j.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisShardInfo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 多线程队列消费
+ * 1 每一侧（master/slave）的每个分片一个拉取线程，使用独立的长连接执行BLPOP/BRPOP，阻塞等待不占用共享连接池
+ * 2 BLPOP取到一条消息后，再用lpopN/rpopN一次取出同一个key上最多drainBatch条，积压时每次往返取一批
+ * 3 master和slave同时拉取，消息先放入有界的本地缓冲，缓冲满时拉取线程阻塞，不再从redis取消息（反压）
+ * 4 固定个数的工作线程从缓冲中取消息调用MessageHandler
+ * 5 stop超时后中断拉取线程，拉取线程已取出但没放入缓冲的消息、缓冲中没来得及处理的消息放回原队列的同一端
+ * 6 分片重新加载后，拉取线程在下一次BLPOP前发现分片地址变化，断开重连到新地址
+ * 注意：与BLPOP语义一致，消息取出后进程异常退出会丢失缓冲中未处理的消息，需要不丢消息时使用ReliableQueue
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class QueueConsumer {
+    private static final Logger log = Logger.getLogger(QueueConsumer.class);
+
+    /**
+     * 消息处理
+     */
+    public interface MessageHandler {
+        void handle(String key, String value) throws Exception;
+    }
+
+    private final List<Fetcher> fetchers = new ArrayList<Fetcher>();
+    private final BlockingQueue<Message> buffer;
+    private final MessageHandler handler;
+    private final int workerNum;
+    private final List<Thread> workers = new ArrayList<Thread>();
+
+    private volatile boolean running;
+    private volatile boolean fetching;
+
+    private final AtomicLong fetchedCount = new AtomicLong();
+    private final AtomicLong handledCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong pushedBackCount = new AtomicLong();
+
+    /**
+     * 消费HA队列，master和slave同时拉取，参数读取配置redis.consumer.*
+     */
+    public QueueConsumer(JedisHAClient client, List<String> keys, boolean left, MessageHandler handler) {
+        this(Arrays.asList(client.getMaster(), client.getSlave()), keys, left, handler,
+                Integer.valueOf(client.getMaster().getProperty("redis.consumer.workers", "8")),
+                Integer.valueOf(client.getMaster().getProperty("redis.consumer.bufferSize", "1024")),
+                Integer.valueOf(client.getMaster().getProperty("redis.consumer.blockSeconds", "2")),
+                Integer.valueOf(client.getMaster().getProperty("redis.consumer.drainBatch", "100")));
+    }
+
+    /**
+     * @param sides        要拉取的各侧客户端（如master、slave）
+     * @param keys         队列key
+     * @param left         true为BLPOP，false为BRPOP
+     * @param handler      消息处理
+     * @param workerNum    工作线程数
+     * @param bufferSize   本地缓冲的消息个数
+     * @param blockSeconds 每次BLPOP的阻塞时间（秒），停止时最多等待这么久
+     * @param drainBatch   BLPOP取到消息后再从同一个key最多取出的条数，0表示每次只取一条
+     */
+    public QueueConsumer(List<ShardJedisTracerClient> sides, List<String> keys, boolean left, MessageHandler handler,
+                         int workerNum, int bufferSize, int blockSeconds, int drainBatch) {
+        this.buffer = new ArrayBlockingQueue<Message>(bufferSize);
+        this.handler = handler;
+        this.workerNum = workerNum;
+        for (int side = 0; side < sides.size(); side++) {
+            ShardJedisTracerClient client = sides.get(side);
+            // 同一分片上的key用一条BLPOP同时等待
+            Map<Integer, List<String>> shardKeys = new LinkedHashMap<Integer, List<String>>();
+            for (String key : keys) {
+                int shard = client.getShardIndex(key);
+                List<String> keyList = shardKeys.get(shard);
+                if (keyList == null) {
+                    keyList = new ArrayList<String>();
+                    shardKeys.put(shard, keyList);
+                }
+                keyList.add(key);
+            }
+            for (Map.Entry<Integer, List<String>> entry : shardKeys.entrySet()) {
+                fetchers.add(new Fetcher("redis-consumer-side" + side + "-shard" + entry.getKey(), client,
+                        entry.getKey(), entry.getValue(), left, blockSeconds, drainBatch));
+            }
+        }
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        fetching = true;
+        for (int i = 0; i < workerNum; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "redis-consumer-worker-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Fetcher fetcher : fetchers) {
+            fetcher.start();
+        }
+    }
+
+    /**
+     * 停止拉取，工作线程处理完缓冲中的消息后退出
+     * 超过awaitMillis时中断拉取线程，缓冲中还没处理的消息放回原队列；
+     * 正在BLPOP的拉取线程不能被中断，放回它取到的消息最多还要等blockSeconds
+     *
+     * @param awaitMillis 最多等待的时间
+     */
+    public synchronized void stop(long awaitMillis) throws InterruptedException {
+        if (!running) {
+            return;
+        }
+        fetching = false;
+        long deadline = System.currentTimeMillis() + awaitMillis;
+        for (Fetcher fetcher : fetchers) {
+            fetcher.join(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+        // 缓冲满时拉取线程阻塞在put上，中断后由拉取线程把手里的消息放回队列
+        for (Fetcher fetcher : fetchers) {
+            fetcher.interrupt();
+        }
+        running = false;
+        for (Thread worker : workers) {
+            worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+        workers.clear();
+        pushBackBuffered();
+        for (Fetcher fetcher : fetchers) {
+            fetcher.join((fetcher.blockSeconds + 1) * 1000L);
+        }
+    }
+
+    /**
+     * 缓冲中没来得及处理的消息按拉取线程和key放回原队列
+     */
+    private void pushBackBuffered() {
+        List<Message> remain = new ArrayList<Message>();
+        buffer.drainTo(remain);
+        if (remain.isEmpty()) {
+            return;
+        }
+        log.error("redis consumer stopped with " + remain.size() + " unhandled messages, push back");
+        Map<Fetcher, Map<String, List<String>>> grouped = new LinkedHashMap<Fetcher, Map<String, List<String>>>();
+        for (Message message : remain) {
+            Map<String, List<String>> keyValues = grouped.get(message.fetcher);
+            if (keyValues == null) {
+                keyValues = new LinkedHashMap<String, List<String>>();
+                grouped.put(message.fetcher, keyValues);
+            }
+            List<String> values = keyValues.get(message.key);
+            if (values == null) {
+                values = new ArrayList<String>();
+                keyValues.put(message.key, values);
+            }
+            values.add(message.value);
+        }
+        for (Map.Entry<Fetcher, Map<String, List<String>>> entry : grouped.entrySet()) {
+            for (Map.Entry<String, List<String>> keyValues : entry.getValue().entrySet()) {
+                entry.getKey().pushBack(keyValues.getKey(), keyValues.getValue());
+            }
+        }
+    }
+
+    private void work() {
+        while (running || !buffer.isEmpty()) {
+            Message message;
+            try {
+                message = buffer.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (message == null) {
+                continue;
+            }
+            LogContext.remove();
+            try {
+                handler.handle(message.key, message.value);
+                handledCount.incrementAndGet();
+            } catch (Exception e) {
+                failedCount.incrementAndGet();
+                log.error("redis consumer handle " + message.key + " error!" + e);
+            }
+        }
+    }
+
+    /**
+     * 拉取线程拉到的消息数
+     */
+    public long getFetchedCount() {
+        return fetchedCount.get();
+    }
+
+    public long getHandledCount() {
+        return handledCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * 本地缓冲中等待处理的消息数
+     */
+    public int getBufferedCount() {
+        return buffer.size();
+    }
+
+    /**
+     * 停止时放回队列的消息数
+     */
+    public long getPushedBackCount() {
+        return pushedBackCount.get();
+    }
+
+    private static final class Message {
+        final Fetcher fetcher;
+        final String key;
+        final String value;
+
+        Message(Fetcher fetcher, String key, String value) {
+            this.fetcher = fetcher;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final class Fetcher implements Runnable {
+        private final String name;
+        private final ShardJedisTracerClient client;
+        private final int shard;
+        // 当前连接的分片，只在拉取线程中访问
+        private JedisShardInfo shardInfo;
+        private final String[] keys;
+        private final boolean left;
+        private final int blockSeconds;
+        private final int drainBatch;
+        private Thread thread;
+
+        Fetcher(String name, ShardJedisTracerClient client, int shard, List<String> keys, boolean left,
+                int blockSeconds, int drainBatch) {
+            this.name = name;
+            this.client = client;
+            this.shard = shard;
+            this.keys = keys.toArray(new String[keys.size()]);
+            this.left = left;
+            this.blockSeconds = blockSeconds;
+            this.drainBatch = drainBatch;
+        }
+
+        void start() {
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void join(long millis) throws InterruptedException {
+            if (thread != null) {
+                thread.join(millis);
+            }
+        }
+
+        void interrupt() {
+            if (thread != null && thread.isAlive()) {
+                thread.interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            Jedis jedis = null;
+            // 已经从redis取出、还没放入缓冲的消息
+            Deque<String> held = new ArrayDeque<String>();
+            String heldKey = null;
+            while (fetching) {
+                try {
+                    JedisShardInfo current = client.getShardInfos().get(shard);
+                    if (jedis != null && !ShardTopology.sameAddress(shardInfo, current)) {
+                        log.info("redis consumer " + name + " moved to " + current.getHost() + ":" + current.getPort());
+                        close(jedis);
+                        jedis = null;
+                    }
+                    if (jedis == null) {
+                        jedis = connect(current);
+                    }
+                    List<String> reply = left ? jedis.blpop(blockSeconds, keys) : jedis.brpop(blockSeconds, keys);
+                    if (reply == null || reply.size() < 2) {
+                        continue;
+                    }
+                    heldKey = reply.get(0);
+                    held.add(reply.get(1));
+                    int more = Math.min(drainBatch, buffer.remainingCapacity() - 1);
+                    if (more > 0) {
+                        held.addAll(left ? client.lpopN(heldKey, more) : client.rpopN(heldKey, more));
+                    }
+                    fetchedCount.addAndGet(held.size());
+                    while (!held.isEmpty()) {
+                        // 缓冲满时在这里阻塞，不再拉取
+                        buffer.put(new Message(this, heldKey, held.peekFirst()));
+                        held.pollFirst();
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                } catch (Exception e) {
+                    log.error("redis consumer " + name + " error!" + e);
+                    close(jedis);
+                    jedis = null;
+                    try {
+                        TimeUnit.SECONDS.sleep(1);
+                    } catch (InterruptedException ie) {
+                        break;
+                    }
+                }
+            }
+            if (!held.isEmpty()) {
+                pushBack(heldKey, new ArrayList<String>(held));
+            }
+            close(jedis);
+        }
+
+        /**
+         * 按取出的逆序放回同一端，放回后队列顺序和取出前一致
+         */
+        void pushBack(String key, List<String> values) {
+            String[] value = new String[values.size()];
+            for (int i = 0; i < value.length; i++) {
+                value[i] = values.get(value.length - 1 - i);
+            }
+            Long result = left ? client.lpush(key, value) : client.rpush(key, value);
+            if (result == ShardJedisTracerClient.error_num) {
+                log.error("redis consumer " + name + " push back " + key + " error, lost " + values);
+                return;
+            }
+            pushedBackCount.addAndGet(value.length);
+        }
+
+        /**
+         * 独立的长连接，读超时比BLPOP阻塞时间长
+         */
+        private Jedis connect(JedisShardInfo shardInfo) {
+            this.shardInfo = shardInfo;
+            Jedis jedis = new Jedis(shardInfo.getHost(), shardInfo.getPort(), shardInfo.getConnectionTimeout(),
+                    shardInfo.getSoTimeout() + blockSeconds * 1000);
+            if (shardInfo.getPassword() != null) {
+                jedis.auth(shardInfo.getPassword());
+            }
+            return jedis;
+        }
+
+        private void close(Jedis jedis) {
+            if (jedis != null) {
+                try {
+                    jedis.close();
+                } catch (Exception e) {
+                    log.error("redis consumer " + name + " close error!" + e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.framework.redis;
+
+/**
+ * 分布式限流
+ * 1 每次判断是一次EVALSHA，判断和扣减在redis上原子完成
+ * 2 时间由调用方传入，多台机器的时钟偏差会影响精度
+ * 3 可用LeasedRateLimiter包装，按批从redis预取许可，多数判断在本地完成
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public abstract class RateLimiter {
+
+    public boolean tryAcquire() throws Exception {
+        return tryAcquire(1);
+    }
+
+    /**
+     * 获取permits个许可，不够时一个也不取
+     */
+    public boolean tryAcquire(int permits) throws Exception {
+        return acquire(permits, false) == permits;
+    }
+
+    /**
+     * 获取最多permits个许可
+     *
+     * @return 实际获取到的个数
+     */
+    public int tryAcquireUpTo(int permits) throws Exception {
+        return acquire(permits, true);
+    }
+
+    /**
+     * @param partial 许可不够时是否取剩下的部分
+     */
+    protected abstract int acquire(int permits, boolean partial) throws Exception;
+}
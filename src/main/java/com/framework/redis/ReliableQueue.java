@@ -0,0 +1,362 @@
+package com.framework.redis;
+
+import org.apache.log4j.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.params.sortedset.ZAddParams;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 可靠队列（至少一次投递）
+ * 1 LPUSH入队；出队用RPOPLPUSH把消息原子地移到本消费者的processing列表，同时在inflight有序集合中记录超时时间
+ * 2 处理完后ack，ack先在本地累积，按批次用pipeline执行LREM+ZREM，不会每条消息多一次往返
+ * 3 reaper定期把所有消费者超时未ack的消息放回队列（从出队的一端放回，下次优先取到），消费者崩溃不会丢消息
+ * 4 队列的processing/inflight/consumers等key都只在队列所在分片上访问，不受分片路由影响
+ * 5 没有消息在处理的消费者会被reaper注销，每次取到消息时重新注册，processing列表非空的消费者一定在consumers中
+ * 注意：inflight以消息内容为成员，同一时刻有多条内容完全相同的消息在处理时共用一个超时时间
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class ReliableQueue {
+    private static final Logger log = Logger.getLogger(ReliableQueue.class);
+
+    // 原子出队、记录超时时间并重新注册消费者（可能已经在空闲时被reaper注销）
+    private static final String POLL_SCRIPT =
+            "local v = redis.call('RPOPLPUSH', KEYS[1], KEYS[2]) " +
+            "if v then redis.call('ZADD', KEYS[3], ARGV[1], v) redis.call('SADD', KEYS[4], ARGV[2]) end " +
+            "return v";
+    // 超时消息放回队列，已经被ack的消息不会重复放回
+    private static final String REQUEUE_SCRIPT =
+            "local n = redis.call('LREM', KEYS[1], 1, ARGV[1]) " +
+            "redis.call('ZREM', KEYS[2], ARGV[1]) " +
+            "if n > 0 then redis.call('RPUSH', KEYS[3], ARGV[1]) end " +
+            "return n";
+    // 没有消息在处理的消费者注销，检查和注销是原子的，不会注销刚取到消息的消费者
+    private static final String UNREGISTER_SCRIPT =
+            "if redis.call('LLEN', KEYS[1]) == 0 and redis.call('ZCARD', KEYS[2]) == 0 then " +
+            "return redis.call('SREM', KEYS[3], ARGV[1]) end " +
+            "return 0";
+
+    private final ShardJedisTracerClient client;
+    private final String queue;
+    private final String consumerId;
+    private final String processing;
+    private final String inflight;
+    private final String consumers;
+    private final long visibilityMillis;
+    private final int ackBatch;
+    private final long ackIntervalMillis;
+    private final long reapIntervalMillis;
+    private final LuaScript pollScript;
+    private final LuaScript requeueScript;
+    private final LuaScript unregisterScript;
+
+    private final List<String> pendingAcks = new ArrayList<String>();
+    private ScheduledExecutorService scheduler;
+
+    private final AtomicLong polledCount = new AtomicLong();
+    private final AtomicLong ackedCount = new AtomicLong();
+    private final AtomicLong requeuedCount = new AtomicLong();
+
+    /**
+     * 参数读取配置redis.reliable.*
+     */
+    public ReliableQueue(ShardJedisTracerClient client, String queue, String consumerId) {
+        this(client, queue, consumerId,
+                Long.valueOf(client.getProperty("redis.reliable.visibilityMillis", "30000")),
+                Integer.valueOf(client.getProperty("redis.reliable.ackBatch", "100")),
+                Long.valueOf(client.getProperty("redis.reliable.ackIntervalMillis", "50")),
+                Long.valueOf(client.getProperty("redis.reliable.reapIntervalMillis", "5000")));
+    }
+
+    /**
+     * @param client             redis客户端
+     * @param queue              队列key
+     * @param consumerId         消费者标识，同一个队列的每个消费实例唯一，重启后沿用可以更快恢复
+     * @param visibilityMillis   取出后多久未ack视为超时，放回队列
+     * @param ackBatch           累积多少个ack发送一次
+     * @param ackIntervalMillis  ack最多累积多久
+     * @param reapIntervalMillis 检查超时消息的间隔
+     */
+    public ReliableQueue(ShardJedisTracerClient client, String queue, String consumerId, long visibilityMillis,
+                         int ackBatch, long ackIntervalMillis, long reapIntervalMillis) {
+        this.client = client;
+        this.queue = queue;
+        this.consumerId = consumerId;
+        this.processing = queue + ":processing:" + consumerId;
+        this.inflight = queue + ":inflight:" + consumerId;
+        this.consumers = queue + ":consumers";
+        this.visibilityMillis = visibilityMillis;
+        this.ackBatch = ackBatch;
+        this.ackIntervalMillis = ackIntervalMillis;
+        this.reapIntervalMillis = reapIntervalMillis;
+        this.pollScript = client.registerScript("reliable.poll", POLL_SCRIPT);
+        this.requeueScript = client.registerScript("reliable.requeue", REQUEUE_SCRIPT);
+        this.unregisterScript = client.registerScript("reliable.unregister", UNREGISTER_SCRIPT);
+    }
+
+    /**
+     * 注册消费者并启动ack刷新和超时检查
+     */
+    public synchronized void start() throws Exception {
+        if (scheduler != null) {
+            return;
+        }
+        client.execute(queue, new JedisCallback<Long>() {
+            @Override
+            public Long doInJedis(Jedis jedis) {
+                return jedis.sadd(consumers, consumerId);
+            }
+        });
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "redis-reliable-" + queue);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flushAcks();
+                } catch (Exception e) {
+                    log.error("redis reliable queue " + queue + " flush ack error!" + e);
+                }
+            }
+        }, ackIntervalMillis, ackIntervalMillis, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reap();
+                } catch (Exception e) {
+                    log.error("redis reliable queue " + queue + " reap error!" + e);
+                }
+            }
+        }, reapIntervalMillis, reapIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止后台任务并发送剩余的ack
+     */
+    public synchronized void stop() throws Exception {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler.awaitTermination(reapIntervalMillis, TimeUnit.MILLISECONDS);
+            scheduler = null;
+        }
+        flushAcks();
+    }
+
+    public Long push(String value) {
+        return client.lpush(queue, value);
+    }
+
+    /**
+     * 非阻塞出队
+     *
+     * @return 消息，队列为空时返回null
+     */
+    public String poll() throws Exception {
+        String value = (String) client.evalScript(queue, pollScript, Arrays.asList(queue, processing, inflight, consumers),
+                Arrays.asList(String.valueOf(System.currentTimeMillis() + visibilityMillis), consumerId));
+        if (value != null) {
+            polledCount.incrementAndGet();
+        }
+        return value;
+    }
+
+    /**
+     * 阻塞出队，占用一个连接池连接直到返回，timeoutSeconds不宜过长
+     *
+     * @return 消息，超时返回null
+     */
+    public String poll(final int timeoutSeconds) throws Exception {
+        String value = client.executeBlocking(queue, new JedisCallback<String>() {
+            @Override
+            public String doInJedis(Jedis jedis) {
+                String v = jedis.brpoplpush(queue, processing, timeoutSeconds);
+                if (v != null) {
+                    // BRPOPLPUSH不能放在脚本里，这里和超时时间的记录、重新注册不是原子的；
+                    // processing列表非空时reaper不会注销本消费者，遗漏的超时时间reaper会补上
+                    Pipeline pipeline = jedis.pipelined();
+                    pipeline.zadd(inflight, System.currentTimeMillis() + visibilityMillis, v);
+                    pipeline.sadd(consumers, consumerId);
+                    pipeline.sync();
+                }
+                return v;
+            }
+        });
+        if (value != null) {
+            polledCount.incrementAndGet();
+        }
+        return value;
+    }
+
+    /**
+     * 确认消息处理完成，累积到ackBatch个或ackIntervalMillis后批量发送
+     */
+    public void ack(String value) throws Exception {
+        boolean flush;
+        synchronized (pendingAcks) {
+            pendingAcks.add(value);
+            flush = pendingAcks.size() >= ackBatch;
+        }
+        if (flush) {
+            flushAcks();
+        }
+    }
+
+    /**
+     * 立即发送累积的ack
+     */
+    public void flushAcks() throws Exception {
+        final List<String> acks;
+        synchronized (pendingAcks) {
+            if (pendingAcks.isEmpty()) {
+                return;
+            }
+            acks = new ArrayList<String>(pendingAcks);
+            pendingAcks.clear();
+        }
+        try {
+            client.execute(queue, new JedisCallback<Void>() {
+                @Override
+                public Void doInJedis(Jedis jedis) {
+                    Pipeline pipeline = jedis.pipelined();
+                    for (String value : acks) {
+                        pipeline.lrem(processing, 1, value);
+                        pipeline.zrem(inflight, value);
+                    }
+                    pipeline.sync();
+                    return null;
+                }
+            });
+        } catch (Exception e) {
+            // 发送失败的ack放回，下次重试；超时前没有发出去的消息会被重新投递
+            synchronized (pendingAcks) {
+                pendingAcks.addAll(0, acks);
+            }
+            throw e;
+        }
+        ackedCount.addAndGet(acks.size());
+    }
+
+    /**
+     * 把所有消费者超时未ack的消息放回队列
+     *
+     * @return 放回的消息数
+     */
+    public int reap() throws Exception {
+        int requeued = 0;
+        final long now = System.currentTimeMillis();
+        Set<String> members = client.execute(queue, new JedisCallback<Set<String>>() {
+            @Override
+            public Set<String> doInJedis(Jedis jedis) {
+                return jedis.smembers(consumers);
+            }
+        });
+        for (String consumer : members) {
+            final String consumerProcessing = queue + ":processing:" + consumer;
+            final String consumerInflight = queue + ":inflight:" + consumer;
+            Set<String> expired = client.execute(queue, new JedisCallback<Set<String>>() {
+                @Override
+                public Set<String> doInJedis(Jedis jedis) {
+                    markUntracked(jedis, consumerProcessing, consumerInflight, now);
+                    return jedis.zrangeByScore(consumerInflight, 0, now, 0, 1000);
+                }
+            });
+            for (String value : expired) {
+                Object n = client.evalScript(queue, requeueScript, Arrays.asList(consumerProcessing, consumerInflight, queue),
+                        Collections.singletonList(value));
+                if (n instanceof Long && (Long) n > 0) {
+                    requeued++;
+                }
+            }
+            if (!consumer.equals(consumerId)) {
+                // 已经没有消息在处理的其他消费者，注销；之后取到消息时会重新注册
+                client.evalScript(queue, unregisterScript, Arrays.asList(consumerProcessing, consumerInflight, consumers),
+                        Collections.singletonList(consumer));
+            }
+        }
+        if (requeued > 0) {
+            requeuedCount.addAndGet(requeued);
+            log.info("redis reliable queue " + queue + " requeue " + requeued + " expired messages");
+        }
+        return requeued;
+    }
+
+    /**
+     * processing列表中没有超时时间的消息（BRPOPLPUSH后进程退出）补上超时时间
+     */
+    private void markUntracked(Jedis jedis, String consumerProcessing, String consumerInflight, long now) {
+        List<String> values = jedis.lrange(consumerProcessing, 0, 999);
+        if (values.isEmpty()) {
+            return;
+        }
+        Pipeline pipeline = jedis.pipelined();
+        Map<String, Response<Double>> scores = new LinkedHashMap<String, Response<Double>>();
+        for (String value : values) {
+            scores.put(value, pipeline.zscore(consumerInflight, value));
+        }
+        pipeline.sync();
+        pipeline = null;
+        for (Map.Entry<String, Response<Double>> score : scores.entrySet()) {
+            if (score.getValue().get() == null) {
+                if (pipeline == null) {
+                    pipeline = jedis.pipelined();
+                }
+                pipeline.zadd(consumerInflight, now + visibilityMillis, score.getKey(), ZAddParams.zAddParams().nx());
+            }
+        }
+        if (pipeline != null) {
+            pipeline.sync();
+        }
+    }
+
+    public String getQueue() {
+        return queue;
+    }
+
+    public String getConsumerId() {
+        return consumerId;
+    }
+
+    public long getPolledCount() {
+        return polledCount.get();
+    }
+
+    public long getAckedCount() {
+        return ackedCount.get();
+    }
+
+    /**
+     * 超时放回队列的消息数
+     */
+    public long getRequeuedCount() {
+        return requeuedCount.get();
+    }
+
+    /**
+     * 本地累积还没发送的ack数
+     */
+    public int getPendingAckCount() {
+        synchronized (pendingAcks) {
+            return pendingAcks.size();
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package com.framework.redis;
+
+import org.apache.log4j.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 在线扩容时的数据迁移
+ * 1 新增的分片追加在配置的最后，旧环由前fromNum个分片组成；一致性hash下只有落到新分片的key需要移动
+ * 2 迁移窗口内访问一个需要移动的key时，先把它从旧分片MIGRATE到新分片（旧分片上没有则什么也不做），再访问新分片，读写都不会丢数据
+ * 3 后台线程逐个SCAN旧分片，把需要移动的key迁到新分片，按keysPerSecond限速；单个key迁移失败或连接断开时记录后继续
+ * 4 后台迁移完成后在0号分片上写完成标记，所有实例每隔10秒检查一次，看到标记后访问时不再检查旧分片
+ * 注意：迁移窗口内所有客户端都需要使用相同的新配置；后台迁移只需要在一个实例上开启，开始时会清除上一次同样扩容留下的标记
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class ReshardMigrator implements Runnable {
+    private static final Logger log = Logger.getLogger(ReshardMigrator.class);
+
+    private static final long CHECK_DONE_INTERVAL_MILLIS = 10000L;
+    // 完成标记保留7天，之后再做同样分片数的扩容不会误读
+    private static final int DONE_EXPIRE_SECONDS = 7 * 24 * 3600;
+    // RESTORE key pttl serialized，pttl以字符串传入，不受int范围限制
+    private static final byte[] RESTORE_SCRIPT = SafeEncoder.encode(
+            "return redis.call('RESTORE', KEYS[1], ARGV[1], ARGV[2])");
+
+    private final List<ShardPool> shardPools;
+    private final ConsistentHashRouter oldRouter;
+    private final ConsistentHashRouter newRouter;
+    private final int timeoutMillis;
+    private final boolean useDump;
+    private final int keysPerSecond;
+    private final int scanBatch;
+    // 迁移完成标记，在0号分片上
+    private final String doneKey;
+
+    private volatile boolean active = true;
+    private volatile boolean running;
+    private volatile boolean finished;
+    private volatile int currentShard = -1;
+    private volatile long startTime;
+    private volatile long endTime;
+    private Thread thread;
+
+    private final AtomicLong scannedKeys = new AtomicLong();
+    private final AtomicLong movedKeys = new AtomicLong();
+    private final AtomicLong accessMovedKeys = new AtomicLong();
+    private final AtomicLong failedKeys = new AtomicLong();
+    private final AtomicLong lastCheckDoneMillis = new AtomicLong();
+
+    /**
+     * @param shardPools    新环上所有分片的连接池，前fromNum个是旧分片
+     * @param oldRouter     旧环
+     * @param newRouter     新环
+     * @param timeoutMillis 单个key迁移的超时时间
+     * @param useDump       true时用DUMP+RESTORE代替MIGRATE（旧分片连不到新分片或新分片有密码时使用）
+     * @param keysPerSecond 后台迁移每秒最多扫描的key个数
+     * @param scanBatch     每次SCAN的COUNT
+     */
+    public ReshardMigrator(List<ShardPool> shardPools, ConsistentHashRouter oldRouter, ConsistentHashRouter newRouter,
+                           int timeoutMillis, boolean useDump, int keysPerSecond, int scanBatch) {
+        this.shardPools = shardPools;
+        this.oldRouter = oldRouter;
+        this.newRouter = newRouter;
+        this.timeoutMillis = timeoutMillis;
+        this.useDump = useDump;
+        this.keysPerSecond = keysPerSecond;
+        this.scanBatch = scanBatch;
+        this.doneKey = "framework:reshard:done:" + oldRouter.getShardNum() + "-" + newRouter.getShardNum();
+    }
+
+    /**
+     * 计算key在新环上的分片，key需要移动且还在旧分片上时先迁移过去
+     */
+    public int route(String key) {
+        int newShard = newRouter.getShardIndex(key);
+        if (active && !checkDone()) {
+            int oldShard = oldRouter.getShardIndex(key);
+            if (oldShard != newShard) {
+                migrateOnAccess(oldShard, newShard, SafeEncoder.encode(key));
+            }
+        }
+        return newShard;
+    }
+
+    public int route(byte[] key) {
+        int newShard = newRouter.getShardIndex(key);
+        if (active && !checkDone()) {
+            int oldShard = oldRouter.getShardIndex(key);
+            if (oldShard != newShard) {
+                migrateOnAccess(oldShard, newShard, key);
+            }
+        }
+        return newShard;
+    }
+
+    /**
+     * 每隔10秒由一个请求线程检查一次完成标记，其他线程不等待
+     *
+     * @return 是否已经完成
+     */
+    private boolean checkDone() {
+        long now = System.currentTimeMillis();
+        long last = lastCheckDoneMillis.get();
+        if (now - last < CHECK_DONE_INTERVAL_MILLIS || !lastCheckDoneMillis.compareAndSet(last, now)) {
+            return false;
+        }
+        ShardPool pool = shardPools.get(0);
+        Jedis jedis = null;
+        try {
+            jedis = pool.getResource();
+            boolean done = jedis.exists(doneKey);
+            pool.returnResource(jedis);
+            if (done) {
+                active = false;
+                log.info("redis reshard finished by another instance, stop checking old shards");
+            }
+            return done;
+        } catch (Exception e) {
+            pool.returnBrokenResource(jedis);
+            log.error("redis reshard check " + doneKey + " error!" + e);
+            return false;
+        }
+    }
+
+    private void migrateOnAccess(int oldShard, int newShard, byte[] key) {
+        ShardPool pool = shardPools.get(oldShard);
+        Jedis source = null;
+        try {
+            source = pool.getResource();
+            if (migrate(source, newShard, key)) {
+                accessMovedKeys.incrementAndGet();
+            }
+            pool.returnResource(source);
+        } catch (Exception e) {
+            // 迁移失败时仍然访问新分片，数据在旧分片上暂时不可见，后台迁移会重试
+            failedKeys.incrementAndGet();
+            if (source != null) {
+                pool.returnBrokenResource(source);
+            }
+            log.error("redis reshard migrate " + SafeEncoder.encode(key) + " error!" + e);
+        }
+    }
+
+    /**
+     * 把key从source所在分片迁到newShard
+     *
+     * @return true表示key被移动，false表示source上没有这个key
+     */
+    private boolean migrate(Jedis source, int newShard, byte[] key) {
+        if (useDump) {
+            return dumpAndRestore(source, newShard, key);
+        }
+        ShardPool target = shardPools.get(newShard);
+        try {
+            String reply = source.migrate(SafeEncoder.encode(target.getShardInfo().getHost()),
+                    target.getShardInfo().getPort(), key, Protocol.DEFAULT_DATABASE, timeoutMillis);
+            return ShardJedisTracerClient.REDIS_RET_OK.equals(reply);
+        } catch (JedisDataException e) {
+            // MIGRATE返回的是"ERR Target instance replied with error: BUSYKEY ..."
+            if (e.getMessage() != null && e.getMessage().contains("BUSYKEY")) {
+                // 新分片上已经有这个key（迁移窗口内新写入的），以新分片为准
+                source.del(key);
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    private boolean dumpAndRestore(Jedis source, int newShard, byte[] key) {
+        byte[] dumped = source.dump(key);
+        if (dumped == null) {
+            return false;
+        }
+        long pttl = source.pttl(key);
+        if (pttl == -2) {
+            return false;
+        }
+        ShardPool target = shardPools.get(newShard);
+        Jedis jedis = target.getResource();
+        try {
+            // jedis 2.9的restore只接受int的ttl，剩余超过约24.8天（2^31毫秒）会溢出成负数，redis返回Invalid TTL value；
+            // Connection.sendCommand不是public，用脚本发送完整的long型PTTL，RESTORE仍是一条原子命令
+            jedis.eval(RESTORE_SCRIPT, Collections.singletonList(key),
+                    Arrays.asList(SafeEncoder.encode(String.valueOf(pttl > 0 ? pttl : 0)), dumped));
+        } catch (JedisDataException e) {
+            target.returnResource(jedis);
+            if (e.getMessage() == null || !e.getMessage().contains("BUSYKEY")) {
+                throw e;
+            }
+            source.del(key);
+            return false;
+        } catch (RuntimeException e) {
+            target.returnBrokenResource(jedis);
+            throw e;
+        }
+        target.returnResource(jedis);
+        source.del(key);
+        return true;
+    }
+
+    /**
+     * 启动后台迁移线程
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this, "redis-reshard");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    @Override
+    public void run() {
+        running = true;
+        startTime = System.currentTimeMillis();
+        log.info("redis reshard start, old shards=" + oldRouter.getShardNum() + " new shards=" + newRouter.getShardNum());
+        long intervalNanos = keysPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / keysPerSecond : 0;
+        long next = System.nanoTime();
+        try {
+            clearDone();
+            for (int shard = 0; shard < oldRouter.getShardNum(); shard++) {
+                currentShard = shard;
+                byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
+                ScanParams params = new ScanParams().count(scanBatch);
+                do {
+                    ShardPool pool = shardPools.get(shard);
+                    Jedis source = null;
+                    try {
+                        source = pool.getResource();
+                        ScanResult<byte[]> scanResult = source.scan(cursor, params);
+                        for (byte[] key : scanResult.getResult()) {
+                            scannedKeys.incrementAndGet();
+                            int newShard = newRouter.getShardIndex(key);
+                            if (newShard != shard) {
+                                migrateKey(source, newShard, key);
+                            }
+                            if (intervalNanos > 0) {
+                                next += intervalNanos;
+                                long wait = next - System.nanoTime();
+                                if (wait > 0) {
+                                    TimeUnit.NANOSECONDS.sleep(wait);
+                                } else if (-wait > TimeUnit.SECONDS.toNanos(1)) {
+                                    // 落后太多时不补发，避免突发流量
+                                    next = System.nanoTime();
+                                }
+                            }
+                        }
+                        pool.returnResource(source);
+                        cursor = scanResult.getCursorAsBytes();
+                    } catch (JedisConnectionException e) {
+                        // 旧分片连接断开，稍后用同一个cursor重新扫描，已经迁走的key不会再被移动
+                        pool.returnBrokenResource(source);
+                        log.error("redis reshard scan shard" + shard + " error, retry later!" + e);
+                        TimeUnit.SECONDS.sleep(1);
+                    }
+                } while (!ScanParams.SCAN_POINTER_START.equals(SafeEncoder.encode(cursor)));
+            }
+            finished = true;
+            active = false;
+            markDone();
+            log.info("redis reshard finished, " + this);
+        } catch (InterruptedException e) {
+            log.info("redis reshard stopped, " + this);
+        } catch (Exception e) {
+            log.error("redis reshard error, " + this + " " + e);
+        } finally {
+            running = false;
+            endTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * 迁移一个key，失败时记录后继续；旧分片的连接断开时抛出，由调用方重新借连接
+     */
+    private void migrateKey(Jedis source, int newShard, byte[] key) {
+        try {
+            if (migrate(source, newShard, key)) {
+                movedKeys.incrementAndGet();
+            }
+        } catch (RuntimeException e) {
+            failedKeys.incrementAndGet();
+            log.error("redis reshard migrate " + SafeEncoder.encode(key) + " error!" + e);
+            if (source.getClient().isBroken()) {
+                throw e instanceof JedisConnectionException ? e : new JedisConnectionException(e);
+            }
+        }
+    }
+
+    private void clearDone() {
+        ShardPool pool = shardPools.get(0);
+        Jedis jedis = pool.getResource();
+        try {
+            jedis.del(doneKey);
+        } catch (RuntimeException e) {
+            pool.returnBrokenResource(jedis);
+            throw e;
+        }
+        pool.returnResource(jedis);
+    }
+
+    private void markDone() {
+        ShardPool pool = shardPools.get(0);
+        Jedis jedis = null;
+        try {
+            jedis = pool.getResource();
+            jedis.setex(doneKey, DONE_EXPIRE_SECONDS, String.valueOf(System.currentTimeMillis()));
+            pool.returnResource(jedis);
+        } catch (Exception e) {
+            pool.returnBrokenResource(jedis);
+            log.error("redis reshard mark " + doneKey + " error, other instances keep checking old shards!" + e);
+        }
+    }
+
+    /**
+     * 访问时是否还需要检查旧分片
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * 正在扫描的旧分片号
+     */
+    public int getCurrentShard() {
+        return currentShard;
+    }
+
+    public long getScannedKeys() {
+        return scannedKeys.get();
+    }
+
+    /**
+     * 后台迁移移动的key个数
+     */
+    public long getMovedKeys() {
+        return movedKeys.get();
+    }
+
+    /**
+     * 访问时移动的key个数
+     */
+    public long getAccessMovedKeys() {
+        return accessMovedKeys.get();
+    }
+
+    public long getFailedKeys() {
+        return failedKeys.get();
+    }
+
+    /**
+     * 后台迁移的扫描速度（key/秒）
+     */
+    public long getScanRate() {
+        if (startTime == 0) {
+            return 0;
+        }
+        long elapsed = (running ? System.currentTimeMillis() : endTime) - startTime;
+        return elapsed <= 0 ? 0 : scannedKeys.get() * 1000 / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return "shard=" + currentShard + "/" + oldRouter.getShardNum() + " scanned=" + getScannedKeys()
+                + " moved=" + getMovedKeys() + " accessMoved=" + getAccessMovedKeys() + " failed=" + getFailedKeys()
+                + " rate=" + getScanRate() + "/s";
+    }
+}
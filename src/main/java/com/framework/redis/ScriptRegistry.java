@@ -0,0 +1,116 @@
+package com.framework.redis;
+
+import org.apache.log4j.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lua脚本注册表
+ * 1 脚本按名字注册，同名只能注册一次
+ * 2 每个分片记录已经SCRIPT LOAD过的sha，执行时只发EVALSHA；分片上第一次执行某个脚本前先SCRIPT LOAD
+ * 3 分片重启或SCRIPT FLUSH后收到NOSCRIPT时改用EVAL执行，EVAL会让redis重新缓存脚本，后续继续走EVALSHA
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class ScriptRegistry {
+    private static final Logger log = Logger.getLogger(ScriptRegistry.class);
+
+    private final ConcurrentHashMap<String, LuaScript> scripts = new ConcurrentHashMap<String, LuaScript>();
+    // 每个分片已加载的sha，下标即分片号
+    private final List<Set<String>> loaded;
+
+    private final AtomicLong loadCount = new AtomicLong();
+    private final AtomicLong noScriptCount = new AtomicLong();
+
+    public ScriptRegistry(int shardNum) {
+        loaded = new ArrayList<Set<String>>(shardNum);
+        for (int i = 0; i < shardNum; i++) {
+            loaded.add(Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
+        }
+    }
+
+    /**
+     * 注册脚本，同名同内容重复注册返回已有的脚本，同名不同内容抛IllegalStateException
+     */
+    public LuaScript register(String name, String script) {
+        LuaScript luaScript = new LuaScript(script);
+        LuaScript exist = scripts.putIfAbsent(name, luaScript);
+        if (exist == null) {
+            return luaScript;
+        }
+        if (!exist.getSha1().equals(luaScript.getSha1())) {
+            throw new IllegalStateException("redis script " + name + " already registered with sha " + exist.getSha1());
+        }
+        return exist;
+    }
+
+    /**
+     * 按名字取脚本，没有注册时返回null
+     */
+    public LuaScript get(String name) {
+        return scripts.get(name);
+    }
+
+    public Map<String, LuaScript> getScripts() {
+        return Collections.unmodifiableMap(scripts);
+    }
+
+    /**
+     * 把所有已注册的脚本加载到分片
+     */
+    public void loadAll(int shard, Jedis jedis) {
+        for (LuaScript script : scripts.values()) {
+            load(shard, jedis, script);
+        }
+    }
+
+    private void load(int shard, Jedis jedis, LuaScript script) {
+        jedis.scriptLoad(script.getScript());
+        loaded.get(shard).add(script.getSha1());
+        loadCount.incrementAndGet();
+    }
+
+    /**
+     * 在分片上执行脚本，调用方保证jedis是该分片的连接、keys都属于该分片
+     */
+    public Object eval(int shard, Jedis jedis, LuaScript script, List<String> keys, List<String> args) {
+        if (!loaded.get(shard).contains(script.getSha1())) {
+            load(shard, jedis, script);
+        }
+        try {
+            return jedis.evalsha(script.getSha1(), keys, args);
+        } catch (JedisNoScriptException e) {
+            noScriptCount.incrementAndGet();
+            log.info("redis script " + script.getSha1() + " not found on shard " + shard + ", fallback to eval");
+            return jedis.eval(script.getScript(), keys, args);
+        }
+    }
+
+    /**
+     * 分片替换（如重建连接池）后调用，下次执行时重新加载
+     */
+    public void invalidate(int shard) {
+        loaded.get(shard).clear();
+    }
+
+    /**
+     * SCRIPT LOAD次数
+     */
+    public long getLoadCount() {
+        return loadCount.get();
+    }
+
+    /**
+     * 收到NOSCRIPT改用EVAL的次数
+     */
+    public long getNoScriptCount() {
+        return noScriptCount.get();
+    }
+}
@@ -0,0 +1,15 @@
+package com.framework.redis;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/**
+ * 分片熔断器打开时借连接直接失败，不等待连接池和socket超时
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class ShardCircuitOpenException extends JedisConnectionException {
+    private static final long serialVersionUID = 1L;
+
+    public ShardCircuitOpenException(String message) {
+        super(message);
+    }
+}
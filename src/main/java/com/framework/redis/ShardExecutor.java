@@ -0,0 +1,123 @@
+package com.framework.redis;
+
+import com.framework.log.LogContext;
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按分片隔离的有界线程池
+ * 1 每个分片一组独立线程和有界队列，某个分片变慢只会占满自己的队列，不影响其他分片
+ * 2 队列满时直接拒绝，返回异常完成的future，不会阻塞调用线程
+ * 3 提交任务时捕获调用线程的LogContext，在工作线程中恢复，保证tracer日志的requestId和step连续
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class ShardExecutor {
+    private static final Logger log = Logger.getLogger(ShardExecutor.class);
+
+    private final String name;
+    private final ThreadPoolExecutor[] lanes;
+
+    /**
+     * @param name            线程名前缀
+     * @param shardNum        分片个数
+     * @param threadsPerShard 每个分片的线程数
+     * @param queueSize       每个分片的等待队列长度
+     */
+    public ShardExecutor(String name, int shardNum, int threadsPerShard, int queueSize) {
+        this.name = name;
+        this.lanes = new ThreadPoolExecutor[shardNum];
+        for (int i = 0; i < shardNum; i++) {
+            lanes[i] = new ThreadPoolExecutor(threadsPerShard, threadsPerShard, 60L, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize), new LaneThreadFactory(name + "-shard" + i),
+                    new ThreadPoolExecutor.AbortPolicy());
+            lanes[i].allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * 在指定分片的线程组上执行任务
+     *
+     * @param shard 分片号
+     * @param task
+     * @return 任务结果，分片队列已满时以RejectedExecutionException异常完成
+     */
+    public <T> CompletableFuture<T> submit(int shard, final Callable<T> task) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        final LogContext logContext = LogContext.get();
+        try {
+            lanes[shard].execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (future.isDone()) {
+                        return;
+                    }
+                    LogContext previous = LogContext.get();
+                    LogContext.set(logContext);
+                    try {
+                        future.complete(task.call());
+                    } catch (Throwable e) {
+                        future.completeExceptionally(e);
+                    } finally {
+                        if (previous == null) {
+                            LogContext.remove();
+                        } else {
+                            LogContext.set(previous);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.error(name + " shard" + shard + " queue is full, reject task");
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    public int getShardNum() {
+        return lanes.length;
+    }
+
+    /**
+     * 分片上等待执行的任务数
+     */
+    public int getQueueSize(int shard) {
+        return lanes[shard].getQueue().size();
+    }
+
+    /**
+     * 分片上正在执行的任务数
+     */
+    public int getActiveCount(int shard) {
+        return lanes[shard].getActiveCount();
+    }
+
+    public void shutdown() {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    private static final class LaneThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger index = new AtomicInteger();
+
+        LaneThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + "-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
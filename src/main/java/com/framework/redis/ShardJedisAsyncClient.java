@@ -0,0 +1,645 @@
+package com.framework.redis;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * ShardJedisTracerClient 的异步版本，所有方法立即返回CompletableFuture
+ * 1 任务按key所在分片提交到ShardExecutor，每个分片线程数和队列长度有上限，慢分片不会拖垮其他分片
+ * 2 LogContext会带到执行线程，tracer日志中的requestId和step与同步调用保持一致
+ * 3 结果语义和同步方法相同（包括出错时返回的null/false/error_num），分片队列满时future以异常完成
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class ShardJedisAsyncClient {
+
+    private final ShardJedisTracerClient client;
+    private final ShardExecutor executor;
+
+    public ShardJedisAsyncClient(String config_name, String HA_flag) throws FileNotFoundException, IOException {
+        this(new ShardJedisTracerClient(config_name, HA_flag));
+    }
+
+    public ShardJedisAsyncClient(ShardJedisTracerClient client) {
+        this(client, Integer.valueOf(client.getProperty("redis.async.threadsPerShard", "16")),
+                Integer.valueOf(client.getProperty("redis.async.queueSize", "1024")));
+    }
+
+    /**
+     * @param client          实际执行命令的同步客户端
+     * @param threadsPerShard 每个分片的线程数
+     * @param queueSize       每个分片的等待队列长度
+     */
+    public ShardJedisAsyncClient(ShardJedisTracerClient client, int threadsPerShard, int queueSize) {
+        this.client = client;
+        this.executor = new ShardExecutor("redis-async", client.getShardCount(), threadsPerShard, queueSize);
+    }
+
+    public ShardJedisTracerClient getClient() {
+        return client;
+    }
+
+    public ShardExecutor getExecutor() {
+        return executor;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private <T> CompletableFuture<T> submit(String key, Callable<T> task) {
+        return executor.submit(client.getShardIndex(key), task);
+    }
+
+    private <T> CompletableFuture<T> submit(byte[] key, Callable<T> task) {
+        return executor.submit(client.getShardIndex(key), task);
+    }
+
+    //#####################Key########################
+
+    public CompletableFuture<Boolean> expire(final String key, final int seconds) {
+        return submit(key, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return client.expire(key, seconds);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> ttl(final String key) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.ttl(key);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> del(final String key) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.del(key);
+            }
+        });
+    }
+
+    public CompletableFuture<Boolean> exists(final String key) {
+        return submit(key, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return client.exists(key);
+            }
+        });
+    }
+
+    //#####################String########################
+
+    public CompletableFuture<String> get(final String key) {
+        return submit(key, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return client.get(key);
+            }
+        });
+    }
+
+    public CompletableFuture<byte[]> get(final byte[] key) {
+        return submit(key, new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return client.get(key);
+            }
+        });
+    }
+
+    public CompletableFuture<Boolean> set(final String key, final String value) {
+        return submit(key, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return client.set(key, value);
+            }
+        });
+    }
+
+    public CompletableFuture<Boolean> set(final byte[] key, final byte[] value) {
+        return submit(key, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return client.set(key, value);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> setnx(final String key, final String value) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.setnx(key, value);
+            }
+        });
+    }
+
+    /**
+     * mget会跨分片，按第一个key所在分片排队
+     */
+    public CompletableFuture<List<String>> mget(final String... keys) {
+        return submit(keys.length == 0 ? "" : keys[0], new Callable<List<String>>() {
+            @Override
+            public List<String> call() throws Exception {
+                return client.mget(keys);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> incr(final String key) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.incr(key);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> incrBy(final String key, final long value) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.incrBy(key, value);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> decr(final String key) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.decr(key);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> decrBy(final String key, final long value) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.decrBy(key, value);
+            }
+        });
+    }
+
+    //#####################Hash########################
+
+    public CompletableFuture<String> hget(final String key, final String field) {
+        return submit(key, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return client.hget(key, field);
+            }
+        });
+    }
+
+    public CompletableFuture<byte[]> hget(final byte[] key, final byte[] field) {
+        return submit(key, new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return client.hget(key, field);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> hset(final String key, final String field, final String value) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.hset(key, field, value);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> hset(final byte[] key, final byte[] field, final byte[] value) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.hset(key, field, value);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> hsetnx(final String key, final String field, final String value) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.hsetnx(key, field, value);
+            }
+        });
+    }
+
+    public CompletableFuture<String> hmset(final String key, final Map<String, String> map) {
+        return submit(key, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return client.hmset(key, map);
+            }
+        });
+    }
+
+    public CompletableFuture<List<String>> hmget(final String key, final String... fields) {
+        return submit(key, new Callable<List<String>>() {
+            @Override
+            public List<String> call() throws Exception {
+                return client.hmget(key, fields);
+            }
+        });
+    }
+
+    public CompletableFuture<Map<String, String>> hgetall(final String key) {
+        return submit(key, new Callable<Map<String, String>>() {
+            @Override
+            public Map<String, String> call() throws Exception {
+                return client.hgetall(key);
+            }
+        });
+    }
+
+    public CompletableFuture<Boolean> hexists(final String key, final String field) {
+        return submit(key, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return client.hexists(key, field);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> hincrby(final String key, final String field, final Long value) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.hincrby(key, field, value);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> hdel(final String key, final String... fields) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.hdel(key, fields);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> hlen(final String key) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.hlen(key);
+            }
+        });
+    }
+
+    public CompletableFuture<Set<String>> hkeys(final String key) {
+        return submit(key, new Callable<Set<String>>() {
+            @Override
+            public Set<String> call() throws Exception {
+                return client.hkeys(key);
+            }
+        });
+    }
+
+    public CompletableFuture<List<String>> hvals(final String key) {
+        return submit(key, new Callable<List<String>>() {
+            @Override
+            public List<String> call() throws Exception {
+                return client.hvals(key);
+            }
+        });
+    }
+
+    //#####################List########################
+
+    public CompletableFuture<Long> lpush(final String key, final String value) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.lpush(key, value);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> lpush(final String key, final String[] value) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.lpush(key, value);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> lpush(final byte[] key, final byte[] value) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.lpush(key, value);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> rpush(final String key, final String value) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.rpush(key, value);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> rpush(final String key, final String[] value) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.rpush(key, value);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> rpush(final byte[] key, final byte[] value) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.rpush(key, value);
+            }
+        });
+    }
+
+    public CompletableFuture<String> lpop(final String key) {
+        return submit(key, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return client.lpop(key);
+            }
+        });
+    }
+
+    public CompletableFuture<String> rpop(final String key) {
+        return submit(key, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return client.rpop(key);
+            }
+        });
+    }
+
+    public CompletableFuture<String> lindex(final String key, final long index) {
+        return submit(key, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return client.lindex(key, index);
+            }
+        });
+    }
+
+    public CompletableFuture<List<String>> lrange(final String key, final long start, final long end) {
+        return submit(key, new Callable<List<String>>() {
+            @Override
+            public List<String> call() throws Exception {
+                return client.lrange(key, start, end);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> llen(final String key) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.llen(key);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> lrem(final String key, final Long count, final String value) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.lrem(key, count, value);
+            }
+        });
+    }
+
+    public CompletableFuture<String> lset(final String key, final long index, final String value) {
+        return submit(key, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return client.lset(key, index, value);
+            }
+        });
+    }
+
+    //#####################Set########################
+
+    public CompletableFuture<Long> sadd(final String key, final String... member) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.sadd(key, member);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> srem(final String key, final String... members) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.srem(key, members);
+            }
+        });
+    }
+
+    public CompletableFuture<Boolean> sismember(final String key, final String member) {
+        return submit(key, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return client.sismember(key, member);
+            }
+        });
+    }
+
+    public CompletableFuture<String> spop(final String key) {
+        return submit(key, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return client.spop(key);
+            }
+        });
+    }
+
+    public CompletableFuture<Set<String>> spop(final String key, final long count) {
+        return submit(key, new Callable<Set<String>>() {
+            @Override
+            public Set<String> call() throws Exception {
+                return client.spop(key, count);
+            }
+        });
+    }
+
+    public CompletableFuture<Set<String>> smembers(final String key) {
+        return submit(key, new Callable<Set<String>>() {
+            @Override
+            public Set<String> call() throws Exception {
+                return client.smembers(key);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> scard(final String key) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.scard(key);
+            }
+        });
+    }
+
+    //#####################ZSet########################
+
+    public CompletableFuture<Long> zadd(final String key, final long score, final String member) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.zadd(key, score, member);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> zadd(final String key, final Map<String, Double> scoreMembers) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.zadd(key, scoreMembers);
+            }
+        });
+    }
+
+    public CompletableFuture<Set<String>> zrange(final String key, final long start, final long end) {
+        return submit(key, new Callable<Set<String>>() {
+            @Override
+            public Set<String> call() throws Exception {
+                return client.zrange(key, start, end);
+            }
+        });
+    }
+
+    public CompletableFuture<Set<String>> zrevrange(final String key, final long start, final long end) {
+        return submit(key, new Callable<Set<String>>() {
+            @Override
+            public Set<String> call() throws Exception {
+                return client.zrevrange(key, start, end);
+            }
+        });
+    }
+
+    public CompletableFuture<Set<String>> zrangeByScore(final String key, final double min, final double max) {
+        return submit(key, new Callable<Set<String>>() {
+            @Override
+            public Set<String> call() throws Exception {
+                return client.zrangeByScore(key, min, max);
+            }
+        });
+    }
+
+    public CompletableFuture<Set<String>> zrangeByScore(final String key, final double min, final double max,
+                                                        final int offset, final int count) {
+        return submit(key, new Callable<Set<String>>() {
+            @Override
+            public Set<String> call() throws Exception {
+                return client.zrangeByScore(key, min, max, offset, count);
+            }
+        });
+    }
+
+    public CompletableFuture<Set<String>> zrevrangeByScore(final String key, final double max, final double min) {
+        return submit(key, new Callable<Set<String>>() {
+            @Override
+            public Set<String> call() throws Exception {
+                return client.zrevrangeByScore(key, max, min);
+            }
+        });
+    }
+
+    public CompletableFuture<Set<String>> zrevrangeByScore(final String key, final double max, final double min,
+                                                           final int offset, final int count) {
+        return submit(key, new Callable<Set<String>>() {
+            @Override
+            public Set<String> call() throws Exception {
+                return client.zrevrangeByScore(key, max, min, offset, count);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> zrem(final String key, final String... members) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.zrem(key, members);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> zremrangeByScore(final String key, final String start, final String end) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.zremrangeByScore(key, start, end);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> zcount(final String key, final double min, final double max) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.zcount(key, min, max);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> zcard(final String key) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.zcard(key);
+            }
+        });
+    }
+
+    public CompletableFuture<Double> zscore(final String key, final String member) {
+        return submit(key, new Callable<Double>() {
+            @Override
+            public Double call() throws Exception {
+                return client.zscore(key, member);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> zrank(final String key, final String member) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.zrank(key, member);
+            }
+        });
+    }
+
+    public CompletableFuture<Long> zrevrank(final String key, final String member) {
+        return submit(key, new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                return client.zrevrank(key, member);
+            }
+        });
+    }
+}
@@ -15,8 +15,10 @@ public class ShardJedisClient {
     // redis的配置文件名字，默认redis.properties
     private  String config_path="";
     private final Properties properties = new Properties();
-    // shardedJedis池
-    private ShardedJedisPool shardPool;
+    // shardedJedis池，重新加载配置时替换
+    private volatile ShardedJedisPool shardPool;
+    // 配置文件变化时重新加载，redis.reload.enable=true时开启
+    private ConfigWatcher configWatcher;
 
     private ShardJedisClient(){}
 
@@ -44,42 +46,110 @@ public class ShardJedisClient {
 
         // 加载redis配置文件
         properties.load(reader);
+        shardPool = buildPool(properties);
+
+        // 配置文件变化时重新加载连接池，默认关闭
+        if (Boolean.valueOf(properties.getProperty("redis.reload.enable", "false"))) {
+            File configFile = ConfigWatcher.resolve(config_path, ShardJedisClient.class);
+            if (configFile == null) {
+                log.error("redis config " + config_path + " is not a file, reload disabled");
+            } else {
+                configWatcher = new ConfigWatcher(configFile,
+                        Long.valueOf(properties.getProperty("redis.reload.intervalMillis", "5000")), new Runnable() {
+                    @Override
+                    public void run() {
+                        reload();
+                    }
+                });
+                configWatcher.start();
+            }
+        }
+    }
+
+    private ShardedJedisPool buildPool(Properties props) {
         // 创建jedis池配置实例
         JedisPoolConfig config = new JedisPoolConfig();
         // 设置池配置项值
-//        config.setMaxActive(Integer.valueOf(properties.getProperty("redis.pool.maxActive")));
-        config.setMaxIdle(Integer.valueOf(properties.getProperty("redis.pool.maxIdle")));
-        config.setMaxWaitMillis(Long.valueOf(properties.getProperty("redis.pool.maxWait")));
-        config.setTestOnBorrow(Boolean.valueOf(properties.getProperty("redis.pool.testOnBorrow")));
-        config.setTestOnReturn(Boolean.valueOf(properties.getProperty("redis.pool.testOnReturn")));
+//        config.setMaxActive(Integer.valueOf(props.getProperty("redis.pool.maxActive")));
+        config.setMaxIdle(Integer.valueOf(props.getProperty("redis.pool.maxIdle")));
+        config.setMaxWaitMillis(Long.valueOf(props.getProperty("redis.pool.maxWait")));
+        config.setTestOnBorrow(Boolean.valueOf(props.getProperty("redis.pool.testOnBorrow")));
+        config.setTestOnReturn(Boolean.valueOf(props.getProperty("redis.pool.testOnReturn")));
+        // 空闲连接在后台检测，不在每次借还连接时PING
+        config.setTestWhileIdle(Boolean.valueOf(props.getProperty("redis.pool.testWhileIdle", "true")));
+        config.setTimeBetweenEvictionRunsMillis(Long.valueOf(props.getProperty("redis.pool.timeBetweenEvictionRunsMillis", "30000")));
+        config.setNumTestsPerEvictionRun(Integer.valueOf(props.getProperty("redis.pool.numTestsPerEvictionRun", "-1")));
+        config.setMinEvictableIdleTimeMillis(Long.valueOf(props.getProperty("redis.pool.minEvictableIdleTimeMillis", "60000")));
 
         // 根据配置创建多个redis共享服务
-        int redis_num = Integer.valueOf(properties.getProperty("redis.num"));
+        int redis_num = Integer.valueOf(props.getProperty("redis.num"));
         List<JedisShardInfo> list = new LinkedList<JedisShardInfo>();
         if (redis_num > 0) {
             for (int i = 0; i < redis_num; i++) {
-                JedisShardInfo jedisShardInfo = new JedisShardInfo(properties.getProperty("redis" + i + ".ip"), Integer.valueOf(properties.getProperty("redis" + i + ".port")));
+                JedisShardInfo jedisShardInfo = new JedisShardInfo(props.getProperty("redis" + i + ".ip"), Integer.valueOf(props.getProperty("redis" + i + ".port")));
                 list.add(jedisShardInfo);
             }
         }
 
         // 根据配置文件,创建shared池实例
-        shardPool = new ShardedJedisPool(config, list);
+        return new ShardedJedisPool(config, list);
+    }
+
+    /**
+     * 重新读取配置文件，新建连接池后替换，旧连接池等借出的连接归还后关闭
+     * 分片个数变化时不替换，key的路由会整体变化，需要迁移数据后重启
+     *
+     * @return 是否替换
+     */
+    public synchronized boolean reload() {
+        File file = ConfigWatcher.resolve(config_path, ShardJedisClient.class);
+        if (file == null) {
+            log.error("redis reload " + config_path + " error! not a file");
+            return false;
+        }
+        Properties props = new Properties();
+        ShardedJedisPool next;
+        try {
+            Reader reader = new FileReader(file);
+            try {
+                props.load(reader);
+            } finally {
+                reader.close();
+            }
+            if (!props.getProperty("redis.num", "").equals(properties.getProperty("redis.num"))) {
+                log.error("redis reload " + config_path + " skipped, redis.num changed from "
+                        + properties.getProperty("redis.num") + " to " + props.getProperty("redis.num") + ", restart needed");
+                return false;
+            }
+            next = buildPool(props);
+        } catch (Exception e) {
+            log.error("redis reload " + config_path + " error!" + e);
+            return false;
+        }
+        ShardedJedisPool old = shardPool;
+        shardPool = next;
+        properties.putAll(props);
+        properties.keySet().retainAll(props.keySet());
+        ConfigWatcher.drain(config_path, Collections.singletonList(old),
+                Long.valueOf(props.getProperty("redis.reload.drainMillis", "30000")));
+        log.info("redis reload " + config_path + " done");
+        return true;
     }
 
 
     
     public boolean expire(String key, int seconds) {
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardedJedisPool pool = shardPool;
+        ShardedJedis shardJedis = pool.getResource();
         Long result = null;
         try {
             result = shardJedis.expire(key, seconds);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(shardJedis);
             log.error("redis expire error!"+e);
             return false;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(shardJedis);
         if (result == null || result != 1) {
             return false;
         }
@@ -88,200 +158,213 @@ public class ShardJedisClient {
 
     
     public Long del(final String key){
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardedJedisPool pool = shardPool;
+        ShardedJedis shardJedis = pool.getResource();
         Long result = null;
         try {
             result = shardJedis.del(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(shardJedis);
             log.error("redis expire error!"+e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(shardJedis);
         return result;
     }
 
     
     public Long setnx(String key, String value) {
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardedJedisPool pool = shardPool;
+        ShardedJedis shardJedis = pool.getResource();
         Long result = null;
         try {
             result = shardJedis.setnx(key, value);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(shardJedis);
             log.error("redis expire error!"+e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(shardJedis);
         return result;
     }
 
 
     public Boolean set(byte[] key, byte[] value) {
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardedJedisPool pool = shardPool;
+        ShardedJedis shardJedis = pool.getResource();
         String result = null;
         try {
             result = shardJedis.set(key, value);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(shardJedis);
             log.error("redis expire error!"+e);
             return false;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(shardJedis);
         return REDIS_RET_OK.equalsIgnoreCase(result);
     }
 
 
     public Boolean set(String key, String value) {
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardedJedisPool pool = shardPool;
+        ShardedJedis shardJedis = pool.getResource();
         String result = null;
         try {
             result = shardJedis.set(key, value);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(shardJedis);
             log.error("redis expire error!"+e);
             return false;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(shardJedis);
         return REDIS_RET_OK.equalsIgnoreCase(result);
     }
 
 
      
     public String get(String key) {
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardedJedisPool pool = shardPool;
+        ShardedJedis shardJedis = pool.getResource();
         String result = null;
         try {
             result = shardJedis.get(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(shardJedis);
             log.error("redis expire error!"+e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(shardJedis);
         return result;
     }
 
 
 
     public Long rpush(byte[] key, byte[] value) {
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardedJedisPool pool = shardPool;
+        ShardedJedis shardJedis = pool.getResource();
         Long result = null;
         try {
             result = shardJedis.rpush(key, value);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(shardJedis);
             log.error("redis expire error!"+e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(shardJedis);
         return result;
     }
 
 
      
     public Long rpush(String key, String value) {
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardedJedisPool pool = shardPool;
+        ShardedJedis shardJedis = pool.getResource();
         Long result = null;
         try {
             result = shardJedis.rpush(key, value);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(shardJedis);
             log.error("redis expire error!"+e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(shardJedis);
         return result;
     }
 
 
     public String rpop(String key) {
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardedJedisPool pool = shardPool;
+        ShardedJedis shardJedis = pool.getResource();
         String result = null;
         try {
             result = shardJedis.rpop(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(shardJedis);
             log.error("redis expire error!"+e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(shardJedis);
         return result;
     }
 
 
     public String lpop(String key) {
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardedJedisPool pool = shardPool;
+        ShardedJedis shardJedis = pool.getResource();
         String result = null;
         try {
             result = shardJedis.lpop(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(shardJedis);
             log.error("redis expire error!"+e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(shardJedis);
         return result;
     }
 
 
      
     public Long lpush(byte[] key, byte[] value) {
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardedJedisPool pool = shardPool;
+        ShardedJedis shardJedis = pool.getResource();
         Long result = null;
         try {
             result = shardJedis.lpush(key, value);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(shardJedis);
             log.error("redis expire error!"+e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(shardJedis);
         return result;
     }
 
 
     public Long lpush(String key, String value) {
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardedJedisPool pool = shardPool;
+        ShardedJedis shardJedis = pool.getResource();
         Long result = null;
         try {
             result = shardJedis.lpush(key, value);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(shardJedis);
             log.error("redis expire error!"+e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(shardJedis);
         return result;
     }
 
 
     public byte[] get(byte[] key) {
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardedJedisPool pool = shardPool;
+        ShardedJedis shardJedis = pool.getResource();
         byte[] result = null;
         try {
             result = shardJedis.get(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(shardJedis);
             log.error("redis get error!"+e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(shardJedis);
         return result;
     }
 
     public <T extends Serializable> List<T> hvalsToObject(String key){
         List<T> list= new ArrayList<T>();
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardedJedisPool pool = shardPool;
+        ShardedJedis shardJedis = pool.getResource();
         Collection<byte[]> result = null;
         try {
             result = shardJedis.hvals(key.getBytes());
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(shardJedis);
             log.error("redis hvalsToObject error!"+e);
             return null;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(shardJedis);
         Iterator<byte[]> it= result.iterator();
         while(it.hasNext()){
             list.add((T) SerializeUtil.decode(it.next()));
@@ -7,9 +7,20 @@ import com.framework.util.SerializeUtil;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.log4j.Logger;
 import redis.clients.jedis.*;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Created by wangkaiyan on 2017/11/17.
@@ -22,19 +33,74 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     // redis的配置文件名字，默认redis.properties
     private  String config_path="";
     private final Properties properties = new Properties();
-    // shardedJedis池
-    private  ShardedJedisPool shardPool;
     // 高可用方案中 指定master或slave
     private String HA_flag =null;
+    // 本地一级缓存，redis.nearcache.enable=true时开启
+    private NearCache nearCache;
+    // 热点key探测，redis.hotkey.enable=true时开启
+    private HotKeyDetector hotKeyDetector;
+    // 热点key的短时本地缓存，redis.hotkey.localCache.enable=true时开启
+    private NearCache hotCache;
+    // 分片信息、每个分片独立的连接池、路由（和shardedJedis池使用同样的一致性hash，redis.hashtag.enable=true时按{tag}路由）
+    // 重新加载配置时整体替换
+    private volatile ShardTopology topology;
+    // 配置文件变化时重新加载，redis.reload.enable=true时开启
+    private ConfigWatcher configWatcher;
+    // 扩容迁移，配置redis.reshard.fromNum时开启
+    private ReshardMigrator reshardMigrator;
+    // 单key get合并为分片MGET，redis.get.coalesce.enable=true时开启
+    private GetCoalescer getCoalescer;
+    // 多key操作(mget/mset/del/keys)按分片并行执行的线程池
+    private ShardExecutor fanoutExecutor;
+    // 多key操作等待所有分片返回的最长时间
+    private long multiTimeoutMillis;
+    // SCAN遍历、按pattern删除/过期使用的线程池
+    private ShardExecutor scanExecutor;
+    private long scanTimeoutMillis;
+    private long scanIdleTimeoutMillis;
+    // Lua脚本，每个分片缓存已加载的sha
+    private ScriptRegistry scriptRegistry;
+    // 分布式锁的续期线程和解锁通知订阅，第一次getLock时创建
+    private volatile LockManager lockManager;
+    // 启动预热时每个分片建立的连接数，0表示不预热
+    private int warmupConnections;
+    // 预热完成或所有分片都已有warmupConnections个连接
+    private volatile boolean ready;
+    // 按命令、分片、结果统计耗时，redis.metrics.enable=false时关闭
+    private CommandMetrics commandMetrics;
+    // 慢命令记录，redis.slowlog.enable=false时关闭
+    private SlowLog slowLog;
+    // 当前线程上这次调用路由到的分片，用于耗时统计，不再按参数重新计算分片
+    private static final ThreadLocal<int[]> CALL_SHARD = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[]{UNROUTED};
+        }
+    };
+    private static final int UNROUTED = -2;
+    // 耗时是阻塞等待而不是redis变慢的命令，不记入慢命令
+    private static final Set<String> BLOCKING_COMMANDS = new HashSet<String>(
+            Arrays.asList("blpop", "brpop", "executeBlocking"));
 
     private ShardJedisTracerClient(){}
 
     static final String REDIS_RET_OK = "OK";
+
+    // 从左边原子地取出最多N个元素
+    private static final LuaScript LPOPN_SCRIPT = new LuaScript(
+            "local v = redis.call('LRANGE', KEYS[1], 0, tonumber(ARGV[1]) - 1) " +
+            "if #v > 0 then redis.call('LTRIM', KEYS[1], #v, -1) end " +
+            "return v");
+    // 从右边原子地取出最多N个元素，返回顺序与LRANGE一致，调用方需要反转
+    private static final LuaScript RPOPN_SCRIPT = new LuaScript(
+            "local v = redis.call('LRANGE', KEYS[1], -tonumber(ARGV[1]), -1) " +
+            "if #v > 0 then redis.call('LTRIM', KEYS[1], 0, -#v - 1) end " +
+            "return v");
     // 应用程序根据指定的redis配置文件来初始化池配置
     public ShardJedisTracerClient(String config_name, String HA_flag) throws FileNotFoundException, IOException{
         this.config_path = config_name;
         this.HA_flag = HA_flag;
-        if(shardPool==null){
+        if(topology==null){
             initial();
         }
     }
@@ -55,33 +121,940 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
         // 加载redis配置文件
         properties.load(reader);
         reader.close();
+        warmupConnections = Integer.valueOf(properties.getProperty("redis.warmup.connections", "0"));
+        boolean hashTag = Boolean.valueOf(properties.getProperty("redis.hashtag.enable", "false"));
+        topology = buildTopology(properties);
+        registerPoolMBeans(topology);
+        scriptRegistry = new ScriptRegistry(topology.getShardCount());
+        if (Boolean.valueOf(properties.getProperty("redis.metrics.enable", "true"))) {
+            commandMetrics = new CommandMetrics(topology.getShardCount());
+            registerMBean(commandMetrics, "CommandMetrics");
+        }
+        if (Boolean.valueOf(properties.getProperty("redis.slowlog.enable", "true"))) {
+            slowLog = new SlowLog(TimeUnit.MILLISECONDS.toMicros(Long.valueOf(properties.getProperty("redis.slowlog.thresholdMillis", "10"))),
+                    Integer.valueOf(properties.getProperty("redis.slowlog.capacity", "256")));
+            registerMBean(slowLog, "SlowLog");
+        }
+
+        // 扩容迁移窗口：旧环为前fromNum个分片
+        int fromNum = Integer.valueOf(properties.getProperty("redis.reshard.fromNum", "0"));
+        if (fromNum > 0 && fromNum < topology.getShardCount()) {
+            reshardMigrator = new ReshardMigrator(topology.getShardPools(),
+                    new ConsistentHashRouter(topology.getShardInfos().subList(0, fromNum), hashTag), topology.getRouter(),
+                    Integer.valueOf(properties.getProperty("redis.reshard.timeoutMillis", "2000")),
+                    Boolean.valueOf(properties.getProperty("redis.reshard.useDump", "false")),
+                    Integer.valueOf(properties.getProperty("redis.reshard.keysPerSecond", "1000")),
+                    Integer.valueOf(properties.getProperty("redis.reshard.scanBatch", "100")));
+            if (Boolean.valueOf(properties.getProperty("redis.reshard.migrator.enable", "false"))) {
+                reshardMigrator.start();
+            }
+        }
+        fanoutExecutor = new ShardExecutor("redis-fanout", topology.getShardInfos().size(),
+                Integer.valueOf(properties.getProperty("redis.multi.threadsPerShard", "8")),
+                Integer.valueOf(properties.getProperty("redis.multi.queueSize", "256")));
+        multiTimeoutMillis = Long.valueOf(properties.getProperty("redis.multi.timeoutMillis", "3000"));
+        scanExecutor = new ShardExecutor("redis-scan", topology.getShardInfos().size(),
+                Integer.valueOf(properties.getProperty("redis.scan.threadsPerShard", "2")),
+                Integer.valueOf(properties.getProperty("redis.scan.queueSize", "16")));
+        scanTimeoutMillis = Long.valueOf(properties.getProperty("redis.scan.timeoutMillis", "600000"));
+        scanIdleTimeoutMillis = Long.valueOf(properties.getProperty("redis.scan.idleTimeoutMillis", "60000"));
+
+        // 本地一级缓存，默认关闭
+        if (Boolean.valueOf(properties.getProperty("redis.nearcache.enable", "false"))) {
+            nearCache = new NearCache(Integer.valueOf(properties.getProperty("redis.nearcache.maxSize", "10000")),
+                    Long.valueOf(properties.getProperty("redis.nearcache.ttlMillis", "1000")));
+        }
+
+        // 热点key探测，默认关闭
+        if (Boolean.valueOf(properties.getProperty("redis.hotkey.enable", "false"))) {
+            hotKeyDetector = new HotKeyDetector(topology.getShardInfos().size(),
+                    Integer.valueOf(properties.getProperty("redis.hotkey.topN", "10")),
+                    Long.valueOf(properties.getProperty("redis.hotkey.windowMillis", "1000")),
+                    Long.valueOf(properties.getProperty("redis.hotkey.threshold", "500")));
+            registerMBean(hotKeyDetector, "HotKeyDetector");
+            if (Boolean.valueOf(properties.getProperty("redis.hotkey.localCache.enable", "false"))) {
+                hotCache = new NearCache(Integer.valueOf(properties.getProperty("redis.hotkey.localCache.maxSize", "1000")),
+                        Long.valueOf(properties.getProperty("redis.hotkey.localCache.ttlMillis", "100")));
+            }
+        }
+
+        // 并发get合并，默认关闭
+        if (Boolean.valueOf(properties.getProperty("redis.get.coalesce.enable", "false"))) {
+            getCoalescer = new GetCoalescer(topology.getShardInfos().size(),
+                    Long.valueOf(properties.getProperty("redis.get.coalesce.windowMicros", "100")),
+                    Integer.valueOf(properties.getProperty("redis.get.coalesce.maxBatch", "128")),
+                    new GetCoalescer.ShardLoader() {
+                        @Override
+                        public List<String> mget(int shard, String[] keys) throws Exception {
+                            return mgetOnShard(shard, keys);
+                        }
+                    });
+        }
+
+        // 启动预热，HA模式下master和slave在JedisHAClient中并行初始化
+        ready = warmUp(warmupConnections, Long.valueOf(properties.getProperty("redis.warmup.timeoutMillis", "3000")));
+
+        // 配置文件变化时重新加载连接池，默认关闭
+        if (Boolean.valueOf(properties.getProperty("redis.reload.enable", "false"))) {
+            File configFile = ConfigWatcher.resolve(config_path, ShardJedisTracerClient.class);
+            if (configFile == null) {
+                log.error("redis config " + config_path + " is not a file, reload disabled");
+            } else {
+                configWatcher = new ConfigWatcher(configFile,
+                        Long.valueOf(properties.getProperty("redis.reload.intervalMillis", "5000")), new Runnable() {
+                    @Override
+                    public void run() {
+                        reload();
+                    }
+                });
+                configWatcher.start();
+            }
+        }
+    }
+
+    /**
+     * 按配置创建分片连接池和路由，不修改当前使用的拓扑
+     */
+    private ShardTopology buildTopology(Properties props) {
         // 创建jedis池配置实例
         JedisPoolConfig config = new JedisPoolConfig();
         // 设置池配置项值
-        //config.setTimeBetweenEvictionRunsMillis(Integer.valueOf(properties.getProperty("redis.pool.maxActive")));
-        config.setMaxTotal(Integer.valueOf(properties.getProperty("redis.pool.maxActive")));
-        config.setMaxIdle(Integer.valueOf(properties.getProperty("redis.pool.maxIdle")));
-        config.setMaxWaitMillis(Long.valueOf(properties.getProperty("redis.pool.maxWait")));
-        config.setTestOnBorrow(Boolean.valueOf(properties.getProperty("redis.pool.testOnBorrow")));
-        config.setTestOnReturn(Boolean.valueOf(properties.getProperty("redis.pool.testOnReturn")));
+        //config.setTimeBetweenEvictionRunsMillis(Integer.valueOf(props.getProperty("redis.pool.maxActive")));
+        config.setMaxTotal(Integer.valueOf(props.getProperty("redis.pool.maxActive")));
+        config.setMaxIdle(Integer.valueOf(props.getProperty("redis.pool.maxIdle")));
+        config.setMaxWaitMillis(Long.valueOf(props.getProperty("redis.pool.maxWait")));
+        config.setTestOnBorrow(Boolean.valueOf(props.getProperty("redis.pool.testOnBorrow")));
+        config.setTestOnReturn(Boolean.valueOf(props.getProperty("redis.pool.testOnReturn")));
+        // 空闲连接在后台检测，不在每次借还连接时PING
+        config.setTestWhileIdle(Boolean.valueOf(props.getProperty("redis.pool.testWhileIdle", "true")));
+        config.setTimeBetweenEvictionRunsMillis(Long.valueOf(props.getProperty("redis.pool.timeBetweenEvictionRunsMillis", "30000")));
+        config.setNumTestsPerEvictionRun(Integer.valueOf(props.getProperty("redis.pool.numTestsPerEvictionRun", "-1")));
+        config.setMinEvictableIdleTimeMillis(Long.valueOf(props.getProperty("redis.pool.minEvictableIdleTimeMillis", "60000")));
+        // 预热的连接不被空闲回收
+        config.setMinIdle(Integer.valueOf(props.getProperty("redis.pool.minIdle", props.getProperty("redis.warmup.connections", "0"))));
 
         // 根据配置创建多个redis共享服务
-        int redis_num = Integer.valueOf(properties.getProperty("redis.num"));
+        int redis_num = Integer.valueOf(props.getProperty("redis.num"));
         List<JedisShardInfo> list = new LinkedList<JedisShardInfo>();
         if (redis_num > 0) {
             for (int i = 0; i < redis_num; i++) {
                 if (StringUtils.isEmpty(HA_flag)) {
-                    JedisShardInfo jedisShardInfo = new JedisShardInfo(properties.getProperty("redis" + i + ".ip"), Integer.valueOf(properties.getProperty("redis" + i + ".port")));
+                    JedisShardInfo jedisShardInfo = new JedisShardInfo(props.getProperty("redis" + i + ".ip"), Integer.valueOf(props.getProperty("redis" + i + ".port")),
+                            Protocol.DEFAULT_TIMEOUT, Protocol.DEFAULT_TIMEOUT, Integer.valueOf(props.getProperty("redis" + i + ".weight", "1")));
                     list.add(jedisShardInfo);
                 } else {
-                    JedisShardInfo jedisShardInfo = new JedisShardInfo(properties.getProperty(HA_flag + "_" + "redis" + i + ".ip"), Integer.valueOf(properties.getProperty(HA_flag + "_" + "redis" + i + ".port")));
+                    JedisShardInfo jedisShardInfo = new JedisShardInfo(props.getProperty(HA_flag + "_" + "redis" + i + ".ip"), Integer.valueOf(props.getProperty(HA_flag + "_" + "redis" + i + ".port")),
+                            Protocol.DEFAULT_TIMEOUT, Protocol.DEFAULT_TIMEOUT, Integer.valueOf(props.getProperty(HA_flag + "_" + "redis" + i + ".weight", "1")));
                     list.add(jedisShardInfo);
                 }
             }
         }
 
         // 根据配置文件,创建shared池实例
-        shardPool = new ShardedJedisPool(config, list);
+        boolean hashTag = Boolean.valueOf(props.getProperty("redis.hashtag.enable", "false"));
+        ShardedJedisPool shardedPool;
+        if (hashTag) {
+            shardedPool = new ShardedJedisPool(config, list, ConsistentHashRouter.KEY_TAG_PATTERN);
+        } else {
+            shardedPool = new ShardedJedisPool(config, list);
+        }
+        List<ShardPool> pools = new ArrayList<ShardPool>(list.size());
+        for (int i = 0; i < list.size(); i++) {
+            pools.add(new ShardPool(i, list.get(i), shardPoolConfig(props, config, i), shardBreaker(props, i)));
+        }
+        return new ShardTopology(list, pools, new ConsistentHashRouter(list, hashTag), shardedPool);
+    }
+
+    /**
+     * 重新读取配置文件，在后台新建分片连接池并预热，然后整体替换路由和连接池，旧连接池等借出的连接归还后关闭
+     * 分片个数变化或扩容迁移窗口内不替换，需要重启；新分片预热失败（每个分片至少建一个连接）时不替换，继续使用旧的
+     * 有分片地址变化时清空本地缓存，并让锁的订阅线程重连到新地址
+     *
+     * @return 是否替换
+     */
+    public synchronized boolean reload() {
+        File file = ConfigWatcher.resolve(config_path, ShardJedisTracerClient.class);
+        if (file == null) {
+            log.error("redis reload " + config_path + " error! not a file");
+            return false;
+        }
+        Properties props = new Properties();
+        ShardTopology next;
+        try {
+            Reader reader = new FileReader(file);
+            try {
+                props.load(reader);
+            } finally {
+                reader.close();
+            }
+            next = buildTopology(props);
+        } catch (Exception e) {
+            log.error("redis reload " + config_path + " error!" + e);
+            return false;
+        }
+        ShardTopology old = topology;
+        if (next.getShardCount() != old.getShardCount() || reshardMigrator != null) {
+            log.error("redis reload " + config_path + " skipped, shard number changed or resharding, restart needed");
+            ConfigWatcher.drain(config_path + "-rejected", next.getPools(), 0);
+            return false;
+        }
+        int connections = Integer.valueOf(props.getProperty("redis.warmup.connections", "0"));
+        // 至少建一个连接，确认新分片都连得上再替换
+        if (!warmUp(next.getShardPools(), Math.max(connections, 1),
+                Long.valueOf(props.getProperty("redis.warmup.timeoutMillis", "3000")))) {
+            log.error("redis reload " + config_path + " skipped, warm up failed, keep shards=" + old.getShardInfos());
+            ConfigWatcher.drain(config_path + "-rejected", next.getPools(), 0);
+            return false;
+        }
+        boolean moved = false;
+        for (int i = 0; i < next.getShardCount(); i++) {
+            if (!ShardTopology.sameAddress(old.getShardInfos().get(i), next.getShardInfos().get(i))) {
+                moved = true;
+            }
+        }
+        topology = next;
+        if (moved) {
+            // 本地缓存的是旧redis上的值；替换之后再清空，清空前开始的回源按版本号丢弃
+            if (nearCache != null) {
+                nearCache.invalidateAll();
+            }
+            if (hotCache != null) {
+                hotCache.invalidateAll();
+            }
+            if (lockManager != null) {
+                lockManager.resubscribe();
+            }
+        }
+        warmupConnections = connections;
+        properties.putAll(props);
+        properties.keySet().retainAll(props.keySet());
+        // 新连接可能连到新的redis，脚本需要重新加载
+        for (int i = 0; i < next.getShardCount(); i++) {
+            scriptRegistry.invalidate(i);
+        }
+        unregisterPoolMBeans(old);
+        registerPoolMBeans(next);
+        ConfigWatcher.drain(config_path + (StringUtils.isEmpty(HA_flag) ? "" : "@" + HA_flag), old.getPools(),
+                Long.valueOf(props.getProperty("redis.reload.drainMillis", "30000")));
+        log.info("redis reload " + config_path + " done, shards=" + next.getShardInfos());
+        return true;
+    }
+
+    /**
+     * 当前的分片拓扑
+     */
+    public ShardTopology getTopology() {
+        return topology;
+    }
+
+    private void registerPoolMBeans(ShardTopology topology) {
+        for (ShardPool pool : topology.getShardPools()) {
+            registerMBean(pool, "ShardPool", "shard=" + pool.getIndex());
+        }
+    }
+
+    private void unregisterPoolMBeans(ShardTopology topology) {
+        for (ShardPool pool : topology.getShardPools()) {
+            unregisterMBean("ShardPool", "shard=" + pool.getIndex());
+        }
+    }
+
+    /**
+     * 预热：所有分片并行建立连接，每个分片connections个，不在第一批请求中建连
+     *
+     * @param connections   每个分片的连接数
+     * @param timeoutMillis 最多等待的时间，超时未建好的连接继续在后台建立
+     * @return 是否所有连接都在时间内建好
+     */
+    public boolean warmUp(int connections, long timeoutMillis) {
+        if (!warmUp(topology.getShardPools(), connections, timeoutMillis)) {
+            return false;
+        }
+        if (connections > 0 && warmupConnections <= connections) {
+            ready = true;
+        }
+        return true;
+    }
+
+    private boolean warmUp(List<ShardPool> pools, int connections, long timeoutMillis) {
+        if (connections <= 0) {
+            return true;
+        }
+        long start = System.currentTimeMillis();
+        int taskNum = pools.size() * connections;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(taskNum, 32), new ThreadFactory() {
+            private final AtomicInteger seq = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "redis-warmup-" + seq.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        List<Future<?>> futures = new ArrayList<Future<?>>(taskNum);
+        for (final ShardPool pool : pools) {
+            for (int i = 0; i < connections; i++) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        pool.addObjects(1);
+                    }
+                }));
+            }
+        }
+        executor.shutdown();
+        boolean done;
+        try {
+            done = executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            done = false;
+        }
+        int failed = 0;
+        for (Future<?> future : futures) {
+            if (!future.isDone()) {
+                failed++;
+                continue;
+            }
+            try {
+                future.get();
+            } catch (Exception e) {
+                failed++;
+            }
+        }
+        if (failed > 0 || !done) {
+            log.error("redis warm up " + config_path + " " + (taskNum - failed) + "/" + taskNum
+                    + " connections in " + (System.currentTimeMillis() - start) + "ms");
+            return false;
+        }
+        log.info("redis warm up " + config_path + " " + taskNum + " connections in "
+                + (System.currentTimeMillis() - start) + "ms");
+        return true;
+    }
+
+    /**
+     * 是否可以接流量：预热成功，或预热超时后每个分片的连接数已经达到redis.warmup.connections
+     */
+    public boolean isReady() {
+        if (ready) {
+            return true;
+        }
+        for (ShardPool pool : topology.getShardPools()) {
+            if (pool.getNumIdle() + pool.getNumActive() < warmupConnections) {
+                return false;
+            }
+        }
+        ready = true;
+        return true;
+    }
+
+    /**
+     * 在指定分片上执行一次原生MGET，调用方保证keys属于该分片
+     */
+    private List<String> mgetOnShard(int shard, final String[] keys) throws Exception {
+        return callOnShard(topology.getShardPools().get(shard), new JedisCallback<List<String>>() {
+            @Override
+            public List<String> doInJedis(Jedis jedis) {
+                return jedis.mget(keys);
+            }
+        });
+    }
+
+    /**
+     * 按key所在分片分组，保持key的原始顺序
+     */
+    private Map<Integer, List<String>> groupByShard(Collection<String> keys) {
+        Map<Integer, List<String>> shardKeys = new LinkedHashMap<Integer, List<String>>();
+        for (String key : keys) {
+            int shard = route(key);
+            List<String> keyList = shardKeys.get(shard);
+            if (keyList == null) {
+                keyList = new ArrayList<String>();
+                shardKeys.put(shard, keyList);
+            }
+            keyList.add(key);
+        }
+        return shardKeys;
+    }
+
+    /**
+     * 多个分片上的任务并行执行，等待全部完成，总耗时超过redis.multi.timeoutMillis时抛TimeoutException
+     * 只涉及一个分片时直接在调用线程执行
+     */
+    private <T> Map<Integer, T> runOnShards(Map<Integer, Callable<T>> tasks) throws Exception {
+        return runOnShards(tasks, fanoutExecutor, multiTimeoutMillis);
+    }
+
+    private <T> Map<Integer, T> runOnShards(Map<Integer, Callable<T>> tasks, ShardExecutor executor,
+                                            long timeoutMillis) throws Exception {
+        Map<Integer, T> results = new HashMap<Integer, T>();
+        if (tasks.size() == 1) {
+            Map.Entry<Integer, Callable<T>> task = tasks.entrySet().iterator().next();
+            results.put(task.getKey(), task.getValue().call());
+            return results;
+        }
+        Map<Integer, CompletableFuture<T>> futures = new HashMap<Integer, CompletableFuture<T>>();
+        for (Map.Entry<Integer, Callable<T>> task : tasks.entrySet()) {
+            futures.put(task.getKey(), executor.submit(task.getKey(), task.getValue()));
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            for (Map.Entry<Integer, CompletableFuture<T>> future : futures.entrySet()) {
+                long remain = Math.max(0L, deadline - System.nanoTime());
+                results.put(future.getKey(), future.getValue().get(remain, TimeUnit.NANOSECONDS));
+            }
+        } catch (ExecutionException e) {
+            cancelAll(futures.values());
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } catch (TimeoutException e) {
+            cancelAll(futures.values());
+            throw e;
+        }
+        return results;
+    }
+
+    /**
+     * 多个分片上的任务并行执行，只返回在redis.multi.timeoutMillis内成功完成的分片，出错或超时的分片不在结果中
+     * 超时的分片任务如果还在排队会被取消，已经在执行的无法撤回；只涉及一个分片时直接在调用线程执行
+     */
+    private <T> Map<Integer, T> runOnShardsPartial(Map<Integer, Callable<T>> tasks) {
+        Map<Integer, T> results = new HashMap<Integer, T>();
+        if (tasks.size() == 1) {
+            Map.Entry<Integer, Callable<T>> task = tasks.entrySet().iterator().next();
+            try {
+                results.put(task.getKey(), task.getValue().call());
+            } catch (Exception e) {
+                log.error("redis shard" + task.getKey() + " error!" + e);
+            }
+            return results;
+        }
+        Map<Integer, CompletableFuture<T>> futures = new HashMap<Integer, CompletableFuture<T>>();
+        for (Map.Entry<Integer, Callable<T>> task : tasks.entrySet()) {
+            futures.put(task.getKey(), fanoutExecutor.submit(task.getKey(), task.getValue()));
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(multiTimeoutMillis);
+        for (Map.Entry<Integer, CompletableFuture<T>> future : futures.entrySet()) {
+            long remain = Math.max(0L, deadline - System.nanoTime());
+            try {
+                results.put(future.getKey(), future.getValue().get(remain, TimeUnit.NANOSECONDS));
+            } catch (ExecutionException e) {
+                log.error("redis shard" + future.getKey() + " error!" + e.getCause());
+            } catch (TimeoutException e) {
+                future.getValue().cancel(false);
+                log.error("redis shard" + future.getKey() + " timeout after " + multiTimeoutMillis + "ms");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancelAll(futures.values());
+                break;
+            }
+        }
+        return results;
+    }
+
+    private static void cancelAll(Collection<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * get合并器，未开启时返回null，可用于查看合并前后的请求数
+     */
+    public GetCoalescer getGetCoalescer() {
+        return getCoalescer;
+    }
+
+    /**
+     * 分片的池配置，redis{i}.pool.*（HA模式下为 {HA_flag}_redis{i}.pool.*）可以覆盖全局的redis.pool.*
+     */
+    private JedisPoolConfig shardPoolConfig(Properties props, JedisPoolConfig defaults, int shard) {
+        String prefix = (StringUtils.isEmpty(HA_flag) ? "" : HA_flag + "_") + "redis" + shard + ".pool.";
+        JedisPoolConfig config = new JedisPoolConfig();
+        config.setMaxTotal(Integer.valueOf(props.getProperty(prefix + "maxActive", String.valueOf(defaults.getMaxTotal()))));
+        config.setMaxIdle(Integer.valueOf(props.getProperty(prefix + "maxIdle", String.valueOf(defaults.getMaxIdle()))));
+        config.setMaxWaitMillis(Long.valueOf(props.getProperty(prefix + "maxWait", String.valueOf(defaults.getMaxWaitMillis()))));
+        config.setTestOnBorrow(defaults.getTestOnBorrow());
+        config.setTestOnReturn(defaults.getTestOnReturn());
+        config.setTestWhileIdle(defaults.getTestWhileIdle());
+        config.setTimeBetweenEvictionRunsMillis(defaults.getTimeBetweenEvictionRunsMillis());
+        config.setNumTestsPerEvictionRun(defaults.getNumTestsPerEvictionRun());
+        config.setMinEvictableIdleTimeMillis(defaults.getMinEvictableIdleTimeMillis());
+        config.setMinIdle(Integer.valueOf(props.getProperty(prefix + "minIdle", String.valueOf(defaults.getMinIdle()))));
+        return config;
+    }
+
+    /**
+     * 分片熔断器，redis.breaker.enable=false时不熔断
+     */
+    private CircuitBreaker shardBreaker(Properties props, int shard) {
+        if (!Boolean.valueOf(props.getProperty("redis.breaker.enable", "false"))) {
+            return null;
+        }
+        return new CircuitBreaker((StringUtils.isEmpty(HA_flag) ? "" : HA_flag + "_") + "redis" + shard,
+                Long.valueOf(props.getProperty("redis.breaker.windowMillis", "10000")),
+                Integer.valueOf(props.getProperty("redis.breaker.minRequests", "20")),
+                Double.valueOf(props.getProperty("redis.breaker.failureRate", "0.5")),
+                Long.valueOf(props.getProperty("redis.breaker.slowMillis", "1000")),
+                Double.valueOf(props.getProperty("redis.breaker.slowRate", "0.8")),
+                Long.valueOf(props.getProperty("redis.breaker.openMillis", "5000")),
+                Integer.valueOf(props.getProperty("redis.breaker.probeNum", "5")));
+    }
+
+    /**
+     * key所在分片的连接池
+     */
+    private ShardPool getShardPool(String key) {
+        return topology.getShardPools().get(route(key));
+    }
+
+    private ShardPool getShardPool(byte[] key) {
+        return topology.getShardPools().get(route(key));
+    }
+
+    /**
+     * 访问key前确定分片，扩容迁移窗口内key还在旧分片上时先迁移到新分片
+     */
+    private int route(String key) {
+        int shard = reshardMigrator == null ? topology.getRouter().getShardIndex(key) : reshardMigrator.route(key);
+        if (hotKeyDetector != null) {
+            hotKeyDetector.record(shard, key);
+        }
+        markCallShard(shard);
+        return shard;
+    }
+
+    private int route(byte[] key) {
+        int shard = reshardMigrator == null ? topology.getRouter().getShardIndex(key) : reshardMigrator.route(key);
+        if (hotKeyDetector != null) {
+            hotKeyDetector.record(shard, SafeEncoder.encode(key));
+        }
+        markCallShard(shard);
+        return shard;
+    }
+
+    /**
+     * 借出分片连接执行callback，出错时连接按broken归还
+     */
+    private <T> T callOnShard(ShardPool pool, JedisCallback<T> callback) throws Exception {
+        return callOnShard(pool, callback, false);
+    }
+
+    /**
+     * @param blocking callback里执行的是阻塞命令，等待时间不计入分片的命令耗时和熔断器的慢请求
+     */
+    private <T> T callOnShard(ShardPool pool, JedisCallback<T> callback, boolean blocking) throws Exception {
+        Jedis jedis = blocking ? pool.getBlockingResource() : pool.getResource();
+        T result = null;
+        try {
+            result = callback.doInJedis(jedis);
+        } catch (Exception e) {
+            pool.returnBrokenResource(jedis);
+            throw e;
+        }
+        pool.returnResource(jedis);
+        return result;
+    }
+
+    private <T> Callable<T> shardTask(int shard, final JedisCallback<T> callback) {
+        final ShardPool pool = topology.getShardPools().get(shard);
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return callOnShard(pool, callback);
+            }
+        };
+    }
+
+    /**
+     * 在key所在分片的连接上执行callback，用于脚本、事务等需要多个key在同一分片的操作
+     * 注意：callback里访问的其他key由调用方保证只通过这种方式访问，不能再用按key路由的方法读写
+     *
+     * @param key      决定分片的key
+     * @param callback
+     * @return callback的返回值
+     * @throws Exception callback或借连接出错
+     */
+    public <T> T execute(String key, JedisCallback<T> callback) throws Exception {
+        LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
+        doBeforeService(logFoot);
+        T result = null;
+        try {
+            result = callOnShard(getShardPool(key), callback);
+        } catch (Exception e) {
+            log.error("redis execute error!"+e);
+            doAferService(logFoot,"execute",false,new Object[]{key},e);
+            throw e;
+        }
+        doAferService(logFoot,"execute",true,new Object[]{key},result);
+        return result;
+    }
+
+    /**
+     * 同execute，用于callback里执行阻塞命令（如brpoplpush），阻塞等待不算分片变慢
+     */
+    public <T> T executeBlocking(String key, JedisCallback<T> callback) throws Exception {
+        LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
+        doBeforeService(logFoot);
+        T result = null;
+        try {
+            result = callOnShard(getShardPool(key), callback, true);
+        } catch (Exception e) {
+            log.error("redis executeBlocking error!"+e);
+            doAferService(logFoot,"executeBlocking",false,new Object[]{key},e);
+            throw e;
+        }
+        doAferService(logFoot,"executeBlocking",true,new Object[]{key},result);
+        return result;
+    }
+
+    /**
+     * 注册Lua脚本并加载到所有分片，加载失败的分片在第一次执行时再加载；同名脚本已注册时不再加载
+     */
+    public LuaScript registerScript(String name, String script) {
+        boolean registered = scriptRegistry.get(name) != null;
+        final LuaScript luaScript = scriptRegistry.register(name, script);
+        if (registered) {
+            return luaScript;
+        }
+        for (int i = 0; i < topology.getShardPools().size(); i++) {
+            final int shard = i;
+            try {
+                callOnShard(topology.getShardPools().get(shard), new JedisCallback<Void>() {
+                    @Override
+                    public Void doInJedis(Jedis jedis) {
+                        scriptRegistry.loadAll(shard, jedis);
+                        return null;
+                    }
+                });
+            } catch (Exception e) {
+                log.error("redis load script " + name + " on shard " + shard + " error!" + e);
+            }
+        }
+        return luaScript;
+    }
+
+    /**
+     * 按名字执行已注册的脚本
+     */
+    public Object evalScript(String name, List<String> keys, List<String> args) throws Exception {
+        LuaScript script = scriptRegistry.get(name);
+        if (script == null) {
+            throw new IllegalArgumentException("redis script " + name + " not registered");
+        }
+        return evalScript(script, keys, args);
+    }
+
+    /**
+     * 执行脚本，按第一个key路由，EVALSHA一次往返；所有key必须在同一个分片上（可开启redis.hashtag.enable用{tag}保证）
+     *
+     * @param keys 脚本的KEYS，不能为空
+     * @param args 脚本的ARGV
+     */
+    public Object evalScript(final LuaScript script, final List<String> keys, final List<String> args) throws Exception {
+        if (keys == null || keys.isEmpty()) {
+            throw new IllegalArgumentException("redis script needs at least one key to route");
+        }
+        return doEvalScript(null, script, keys, args);
+    }
+
+    /**
+     * 执行脚本，按routeKey路由，不检查keys的路由；用于只在某个key所在分片上访问的一组key（如ReliableQueue的processing/inflight）
+     *
+     * @param routeKey 决定分片的key
+     * @param keys     脚本的KEYS
+     * @param args     脚本的ARGV
+     */
+    public Object evalScript(String routeKey, LuaScript script, List<String> keys, List<String> args) throws Exception {
+        return doEvalScript(routeKey, script, keys, args);
+    }
+
+    /**
+     * 在doBeforeService之后路由，耗时统计记到脚本所在分片；每个key只路由一次
+     *
+     * @param routeKey 决定分片的key，null时按keys路由并检查所有key在同一个分片上
+     */
+    private Object doEvalScript(String routeKey, final LuaScript script, final List<String> keys,
+                                final List<String> args) throws Exception {
+        LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
+        doBeforeService(logFoot);
+        int routed = route(routeKey != null ? routeKey : keys.get(0));
+        if (routeKey == null) {
+            for (int i = 1; i < keys.size(); i++) {
+                if (route(keys.get(i)) != routed) {
+                    IllegalArgumentException e = new IllegalArgumentException("redis script keys " + keys
+                            + " are not on the same shard");
+                    doAferService(logFoot,"evalScript",false,new Object[]{script.getSha1(),keys,args},e);
+                    throw e;
+                }
+            }
+        }
+        final int shard = routed;
+        Object result = null;
+        try {
+            result = callOnShard(topology.getShardPools().get(shard), new JedisCallback<Object>() {
+                @Override
+                public Object doInJedis(Jedis jedis) {
+                    return scriptRegistry.eval(shard, jedis, script, keys, args);
+                }
+            });
+        } catch (Exception e) {
+            log.error("redis evalScript error!"+e);
+            doAferService(logFoot,"evalScript",false,new Object[]{script.getSha1(),keys,args},e);
+            throw e;
+        }
+        doAferService(logFoot,"evalScript",true,new Object[]{script.getSha1(),keys,args},result);
+        return result;
+    }
+
+    public ScriptRegistry getScriptRegistry() {
+        return scriptRegistry;
+    }
+
+    /**
+     * 分布式锁，锁的key按普通key路由到分片，租期和续期间隔读取配置redis.lock.*
+     */
+    public DistributedLock getLock(String key) {
+        if (lockManager == null) {
+            synchronized (this) {
+                if (lockManager == null) {
+                    lockManager = new LockManager(this,
+                            Long.valueOf(properties.getProperty("redis.lock.leaseMillis", "30000")),
+                            Long.valueOf(properties.getProperty("redis.lock.renewMillis", "10000")));
+                }
+            }
+        }
+        return new DistributedLock(lockManager, key);
+    }
+
+    /**
+     * 所有分片的连接池，可查看每个分片的活跃/空闲连接数和借连接等待时间
+     */
+    public List<ShardPool> getShardPools() {
+        return topology.getShardPools();
+    }
+
+    /**
+     * 所有分片连接池的快照：活跃/空闲/等待连接数、broken归还次数、借连接等待和命令耗时分位数
+     *
+     * @param reset 是否同时清零耗时直方图
+     */
+    public List<ShardPool.Stats> getPoolStats(boolean reset) {
+        List<ShardPool.Stats> stats = new ArrayList<ShardPool.Stats>(topology.getShardPools().size());
+        for (ShardPool pool : topology.getShardPools()) {
+            stats.add(pool.getStats(reset));
+        }
+        return stats;
+    }
+
+    String getProperty(String name, String defaultValue) {
+        return properties.getProperty(name, defaultValue);
+    }
+
+    /**
+     * 分片个数
+     */
+    public int getShardCount() {
+        return topology.getShardCount();
+    }
+
+    /**
+     * 所有分片信息，下标即分片号
+     */
+    public List<JedisShardInfo> getShardInfos() {
+        return topology.getShardInfos();
+    }
+
+    /**
+     * key所在的分片号，和ShardedJedis的路由结果一致
+     */
+    public int getShardIndex(String key) {
+        return topology.getRouter().getShardIndex(key);
+    }
+
+    public int getShardIndex(byte[] key) {
+        return topology.getRouter().getShardIndex(key);
+    }
+
+    public ConsistentHashRouter getRouter() {
+        return topology.getRouter();
+    }
+
+    /**
+     * 扩容迁移进度，没有配置redis.reshard.fromNum时为null
+     */
+    public ReshardMigrator getReshardMigrator() {
+        return reshardMigrator;
+    }
+
+    /**
+     * 本地一级缓存，未开启时返回null，可用于查看命中率
+     */
+    public NearCache getNearCache() {
+        return nearCache;
+    }
+
+    /**
+     * 热点key探测，未开启时返回null
+     */
+    public HotKeyDetector getHotKeyDetector() {
+        return hotKeyDetector;
+    }
+
+    /**
+     * 热点key的本地缓存，未开启时返回null
+     */
+    public NearCache getHotCache() {
+        return hotCache;
+    }
+
+    /**
+     * 读请求使用的本地缓存：开启了一级缓存时所有key都走一级缓存，否则只有热点key走热点缓存
+     */
+    private NearCache localCache(String key) {
+        if (nearCache != null) {
+            return nearCache;
+        }
+        if (hotCache != null && hotKeyDetector.isHot(key)) {
+            return hotCache;
+        }
+        return null;
+    }
+
+    /**
+     * 从本地缓存读取，热点缓存命中时也计入访问次数，避免热点key因为不再访问redis而掉出热点
+     */
+    private Object getLocal(NearCache cache, String key, String view) {
+        Object cached = cache.get(key, view);
+        if (cached != NearCache.MISS && cache == hotCache) {
+            hotKeyDetector.record(topology.getRouter().getShardIndex(key), key);
+        }
+        return cached;
+    }
+
+    /**
+     * 记录开始时间，用于统计命令耗时
+     */
+    @Override
+    public void doBeforeService(LogFoot logFoot) {
+        logFoot.setStartNanos(System.nanoTime());
+        CALL_SHARD.get()[0] = UNROUTED;
+        super.doBeforeService(logFoot);
+    }
+
+    /**
+     * 统计命令耗时、记录慢命令（阻塞命令除外）后再写追踪日志，没有LogContext（不写日志）时也统计
+     */
+    @Override
+    public void doAferService(LogFoot logFoot, String method, Boolean succ, Object[] arguments, Object result) {
+        long elapsed = System.nanoTime() - logFoot.getStartNanos();
+        boolean slow = slowLog != null && slowLog.isSlow(elapsed) && !BLOCKING_COMMANDS.contains(method);
+        if (commandMetrics != null || slow) {
+            int shard = callShard();
+            if (commandMetrics != null) {
+                commandMetrics.record(method, shard, Boolean.TRUE.equals(succ), elapsed);
+            }
+            if (slow) {
+                slowLog.record(method, shard, Boolean.TRUE.equals(succ), elapsed, arguments, result);
+            }
+        }
+        super.doAferService(logFoot, method, succ, arguments, result);
+    }
+
+    /**
+     * 记录本次调用在当前线程上路由到的分片，路由到多个分片时为-1
+     */
+    private static void markCallShard(int shard) {
+        int[] callShard = CALL_SHARD.get();
+        callShard[0] = callShard[0] == UNROUTED || callShard[0] == shard ? shard : -1;
+    }
+
+    /**
+     * 本次调用访问的分片，没有路由（如本地缓存命中）或访问了多个分片时为-1
+     */
+    private static int callShard() {
+        int[] callShard = CALL_SHARD.get();
+        int shard = callShard[0];
+        callShard[0] = UNROUTED;
+        return shard < 0 ? -1 : shard;
+    }
+
+    /**
+     * 命令耗时统计，未开启时返回null
+     */
+    public CommandMetrics getCommandMetrics() {
+        return commandMetrics;
+    }
+
+    /**
+     * 慢命令记录，未开启时返回null
+     */
+    public SlowLog getSlowLog() {
+        return slowLog;
+    }
+
+    void registerMBean(Object bean, String type) {
+        registerMBean(bean, type, null);
+    }
+
+    /**
+     * @param property 附加的ObjectName属性（如shard=0），同一类型有多个实例时区分
+     */
+    void registerMBean(Object bean, String type, String property) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            String name = mbeanName(type, property);
+            ObjectName objectName = new ObjectName(name);
+            if (server.isRegistered(objectName)) {
+                objectName = new ObjectName(name + ",id=" + System.identityHashCode(this));
+            }
+            server.registerMBean(bean, objectName);
+        } catch (Exception e) {
+            log.error("redis register mbean " + type + " error!" + e);
+        }
+    }
+
+    void unregisterMBean(String type, String property) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(mbeanName(type, property));
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (Exception e) {
+            log.error("redis unregister mbean " + type + " error!" + e);
+        }
+    }
+
+    private String mbeanName(String type, String property) {
+        return "com.framework.redis:type=" + type + ",name="
+                + ObjectName.quote(config_path + (StringUtils.isEmpty(HA_flag) ? "" : "@" + HA_flag))
+                + (property == null ? "" : "," + property);
+    }
+
+    private void invalidateLocal(String key) {
+        if (key != null) {
+            if (nearCache != null) {
+                nearCache.invalidate(key);
+            }
+            if (hotCache != null) {
+                hotCache.invalidate(key);
+            }
+        }
+    }
+
+    private void invalidateLocal(byte[] key) {
+        if ((nearCache != null || hotCache != null) && key != null) {
+            invalidateLocal(SafeEncoder.encode(key));
+        }
+    }
+
+    private void invalidateLocal(Collection<String> keys) {
+        if ((nearCache != null || hotCache != null) && keys != null) {
+            for (String key : keys) {
+                invalidateLocal(key);
+            }
+        }
     }
 
 
@@ -92,17 +1065,21 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public boolean expire(String key, int seconds) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.expire(key, seconds);
+            jedis = pool.getResource();
+            result = jedis.expire(key, seconds);
+            invalidateLocal(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            invalidateLocal(key);
+            pool.returnBrokenResource(jedis);
             log.error("redis expire error!"+e);
             doAferService(logFoot,"expire",false,new Object[]{key,seconds},e);
             return false;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         if (result == null || result != 1) {
             doAferService(logFoot,"expire",false,new Object[]{key,seconds},false);
             return false;
@@ -115,17 +1092,21 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public boolean expire(final byte[] key, final int seconds){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.expire(key, seconds);
+            jedis = pool.getResource();
+            result = jedis.expire(key, seconds);
+            invalidateLocal(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            invalidateLocal(key);
+            pool.returnBrokenResource(jedis);
             log.error("redis expire error!"+e);
             doAferService(logFoot,"expire",false,new Object[]{key,seconds},e);
             return false;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         if (result == null || result != 1) {
             doAferService(logFoot,"expire",false,new Object[]{key,seconds},false);
             return false;
@@ -138,17 +1119,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long ttl(String key){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.ttl(key);
+            jedis = pool.getResource();
+            result = jedis.ttl(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis ttl error!"+e);
             doAferService(logFoot,"ttl",false,new Object[]{key},e);
             return -2L;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"ttl",true,new Object[]{key},result);
         return result;
     }
@@ -157,17 +1140,21 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long del(final String key){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.del(key);
+            jedis = pool.getResource();
+            result = jedis.del(key);
+            invalidateLocal(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            invalidateLocal(key);
+            pool.returnBrokenResource(jedis);
             log.error("redis del error!"+e);
             doAferService(logFoot,"del",false,new Object[]{key},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"del",true,new Object[]{key},result);
         return result;
     }
@@ -176,36 +1163,28 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long del(final List<String> keys){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
         Long result = 0L;
-        Map<Jedis,Set<String>> shardmap = new HashMap<Jedis,Set<String>>();
-        try {
-            for(String key: keys){
-                Jedis jedis = shardJedis.getShard(key);
-                Set<String> keyList =shardmap.get(jedis);
-                if(keyList==null){
-                    keyList = new HashSet();
-                    keyList.add(key);
-                }else{
-                    keyList.add(key);
-                }
-                shardmap.put(jedis,keyList);
+        try {
+            Map<Integer, Callable<Long>> tasks = new HashMap<Integer, Callable<Long>>();
+            for (Map.Entry<Integer, List<String>> entry : groupByShard(keys).entrySet()) {
+                final String[] keyArr = entry.getValue().toArray(new String[entry.getValue().size()]);
+                tasks.put(entry.getKey(), shardTask(entry.getKey(), new JedisCallback<Long>() {
+                    @Override
+                    public Long doInJedis(Jedis jedis) {
+                        return jedis.del(keyArr);
+                    }
+                }));
             }
-            Collection<Jedis> jedisList = shardJedis.getAllShards();
-            for(Jedis jedis :jedisList){
-                Set<String>	keySet = shardmap.get(jedis);
-                if(keySet==null) continue;
-                String[] keyArr = new String[keySet.size()];
-                Long succkey = jedis.del(keySet.toArray(keyArr));
+            for (Long succkey : runOnShards(tasks).values()) {
                 result += succkey;
             }
+            invalidateLocal(keys);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            invalidateLocal(keys);
             log.error("redis del error!"+e);
             doAferService(logFoot,"del",false,new Object[]{keys},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
         doAferService(logFoot,"del",true,new Object[]{keys},result);
         return result;
     }
@@ -217,17 +1196,21 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long setnx(String key, String value) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.setnx(key, value);
+            jedis = pool.getResource();
+            result = jedis.setnx(key, value);
+            invalidateLocal(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            invalidateLocal(key);
+            pool.returnBrokenResource(jedis);
             log.error("redis setnx error!"+e);
             doAferService(logFoot,"setnx",false,new Object[]{key,value},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"setnx",true,new Object[]{key,value},result);
         return result;
     }
@@ -239,17 +1222,21 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Boolean set(byte[] key, byte[] value) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         String result = null;
         try {
-            result = shardJedis.set(key, value);
+            jedis = pool.getResource();
+            result = jedis.set(key, value);
+            invalidateLocal(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            invalidateLocal(key);
+            pool.returnBrokenResource(jedis);
             log.error("redis set error!"+e);
             doAferService(logFoot,"set",false,new Object[]{key,value},e);
             return false;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"set",true,new Object[]{key,value},result);
         return REDIS_RET_OK.equalsIgnoreCase(result);
     }
@@ -261,17 +1248,21 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Boolean set(String key, String value) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         String result = null;
         try {
-            result = shardJedis.set(key, value);
+            jedis = pool.getResource();
+            result = jedis.set(key, value);
+            invalidateLocal(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            invalidateLocal(key);
+            pool.returnBrokenResource(jedis);
             log.error("redis set error!"+e);
             doAferService(logFoot,"set",false,new Object[]{key,value},e);
             return false;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"set",true,new Object[]{key,value},result);
         return REDIS_RET_OK.equalsIgnoreCase(result);
     }
@@ -284,17 +1275,42 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public String get(String key) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        long stamp = 0;
+        NearCache cache = localCache(key);
+        if (cache != null) {
+            Object cached = getLocal(cache, key, NearCache.VIEW_GET);
+            if (cached != NearCache.MISS) {
+                doAferService(logFoot,"get",true,new Object[]{key},cached);
+                return (String) cached;
+            }
+            stamp = cache.stamp(key);
+        }
         String result = null;
-        try {
-            result = shardJedis.get(key);
-        } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
-            log.error("redis get error!"+e);
-            doAferService(logFoot,"get",false,new Object[]{key},e);
-            return result;
+        if (getCoalescer != null) {
+            try {
+                result = getCoalescer.get(route(key), key);
+            } catch (Exception e) {
+                log.error("redis get error!"+e);
+                doAferService(logFoot,"get",false,new Object[]{key},e);
+                return result;
+            }
+        } else {
+            ShardPool pool = getShardPool(key);
+            Jedis jedis = null;
+            try {
+                jedis = pool.getResource();
+                result = jedis.get(key);
+            } catch (Exception e) {
+                pool.returnBrokenResource(jedis);
+                log.error("redis get error!"+e);
+                doAferService(logFoot,"get",false,new Object[]{key},e);
+                return result;
+            }
+            pool.returnResource(jedis);
+        }
+        if (cache != null) {
+            cache.put(key, NearCache.VIEW_GET, result, stamp);
         }
-        shardPool.returnResource(shardJedis);
         doAferService(logFoot,"get",true,new Object[]{key},result);
         return result;
     }
@@ -307,17 +1323,38 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
         String keyStr= new String(key);
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        long stamp = 0;
+        String cacheKey = null;
+        NearCache cache = null;
+        if (nearCache != null || hotCache != null) {
+            cacheKey = SafeEncoder.encode(key);
+            cache = localCache(cacheKey);
+        }
+        if (cache != null) {
+            Object cached = getLocal(cache, cacheKey, NearCache.VIEW_GET_BYTES);
+            if (cached != NearCache.MISS) {
+                byte[] bytes = cached == null ? null : ((byte[]) cached).clone();
+                doAferService(logFoot,"get",true,new Object[]{keyStr},bytes==null?"":new String(bytes));
+                return bytes;
+            }
+            stamp = cache.stamp(cacheKey);
+        }
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         byte[] result = null;
         try {
-            result = shardJedis.get(key);
+            jedis = pool.getResource();
+            result = jedis.get(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis get error!"+e);
             doAferService(logFoot,"get",false,new Object[]{keyStr},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
+        if (cache != null) {
+            cache.put(cacheKey, NearCache.VIEW_GET_BYTES, result == null ? null : result.clone(), stamp);
+        }
         doAferService(logFoot,"get",true,new Object[]{keyStr},result==null?"":new String(result));
         return result;
     }
@@ -326,23 +1363,36 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public List<String> mget(final String... keys) throws Exception{
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
         List<String> list = new ArrayList<String>();
         try {
-            ShardedJedisPipeline pipeline  = shardJedis.pipelined();
-            for (String key:keys)
-                pipeline.get(key);
-            List<Object> results = pipeline.syncAndReturnAll();
-            for(Object o:results){
-                list.add((String)o);
+            Map<Integer, List<String>> shardKeys = groupByShard(Arrays.asList(keys));
+            Map<Integer, Callable<List<String>>> tasks = new HashMap<Integer, Callable<List<String>>>();
+            for (Map.Entry<Integer, List<String>> entry : shardKeys.entrySet()) {
+                final String[] keyArr = entry.getValue().toArray(new String[entry.getValue().size()]);
+                tasks.put(entry.getKey(), shardTask(entry.getKey(), new JedisCallback<List<String>>() {
+                    @Override
+                    public List<String> doInJedis(Jedis jedis) {
+                        return jedis.mget(keyArr);
+                    }
+                }));
+            }
+            Map<Integer, List<String>> results = runOnShards(tasks);
+            // 按原始顺序组装结果
+            Map<String, String> values = new HashMap<String, String>();
+            for (Map.Entry<Integer, List<String>> entry : shardKeys.entrySet()) {
+                List<String> shardValues = results.get(entry.getKey());
+                for (int i = 0; i < entry.getValue().size(); i++) {
+                    values.put(entry.getValue().get(i), shardValues.get(i));
+                }
+            }
+            for (String key : keys) {
+                list.add(values.get(key));
             }
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
             log.error("redis mget error!"+e);
             doAferService(logFoot,"mget",false,new Object[]{keys},e);
             throw new Exception(e);
         }
-        shardPool.returnResource(shardJedis);
         doAferService(logFoot,"mget",true,new Object[]{keys},list);
         return list;
     }
@@ -351,23 +1401,36 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public List<String> mset(final Map<String,String> map) throws Exception{
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
         List<String> list = new ArrayList<String>();
         try {
-            ShardedJedisPipeline pipeline  = shardJedis.pipelined();
-            for (Map.Entry entry:map.entrySet())
-                pipeline.set((String)entry.getKey(), (String)entry.getValue());
-            List<Object> results = pipeline.syncAndReturnAll();
-            for(Object o:results){
-                list.add((String)o);
+            Map<Integer, List<String>> shardKeys = groupByShard(map.keySet());
+            Map<Integer, Callable<String>> tasks = new HashMap<Integer, Callable<String>>();
+            for (Map.Entry<Integer, List<String>> entry : shardKeys.entrySet()) {
+                final String[] keysvalues = new String[entry.getValue().size() * 2];
+                int i = 0;
+                for (String key : entry.getValue()) {
+                    keysvalues[i++] = key;
+                    keysvalues[i++] = map.get(key);
+                }
+                tasks.put(entry.getKey(), shardTask(entry.getKey(), new JedisCallback<String>() {
+                    @Override
+                    public String doInJedis(Jedis jedis) {
+                        return jedis.mset(keysvalues);
+                    }
+                }));
+            }
+            Map<Integer, String> results = runOnShards(tasks);
+            invalidateLocal(map.keySet());
+            // 每个key返回所在分片MSET的结果，和原来逐个SET的返回保持一致
+            for (String key : map.keySet()) {
+                list.add(results.get(getShardIndex(key)));
             }
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            invalidateLocal(map.keySet());
             log.error("redis mset error!"+e);
             doAferService(logFoot,"mset",false,new Object[]{map},e);
             throw new Exception(e);
         }
-        shardPool.returnResource(shardJedis);
         doAferService(logFoot,"mset",true,new Object[]{map},list);
         return list;
     }
@@ -376,17 +1439,21 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public  Long incr(final String key){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.incr(key);
+            jedis = pool.getResource();
+            result = jedis.incr(key);
+            invalidateLocal(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            invalidateLocal(key);
+            pool.returnBrokenResource(jedis);
             log.error("redis incr error!"+e);
             doAferService(logFoot,"incr",false,new Object[]{key},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"incr",true,new Object[]{key},result);
         return result;
     }
@@ -395,17 +1462,21 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long incrBy(String key, long value) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.incrBy(key, value);
+            jedis = pool.getResource();
+            result = jedis.incrBy(key, value);
+            invalidateLocal(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            invalidateLocal(key);
+            pool.returnBrokenResource(jedis);
             log.error("redis incrBy error!"+e);
             doAferService(logFoot,"incrBy",false,new Object[]{key,value},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"incrBy",true,new Object[]{key,value},result);
         return result;
     }
@@ -414,17 +1485,21 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long decrBy(String key, long value) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.decrBy(key, value);
+            jedis = pool.getResource();
+            result = jedis.decrBy(key, value);
+            invalidateLocal(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            invalidateLocal(key);
+            pool.returnBrokenResource(jedis);
             log.error("redis decrBy error!"+e);
             doAferService(logFoot,"decrBy",false,new Object[]{key,value},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"decrBy",true,new Object[]{key,value},result);
         return result;
     }
@@ -433,17 +1508,21 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public  Long decr(final String key){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.decr(key);
+            jedis = pool.getResource();
+            result = jedis.decr(key);
+            invalidateLocal(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            invalidateLocal(key);
+            pool.returnBrokenResource(jedis);
             log.error("redis decr error!"+e);
             doAferService(logFoot,"decr",false,new Object[]{key},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"decr",true,new Object[]{key},result);
         return result;
     }
@@ -452,82 +1531,279 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Boolean exists(String key){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Boolean result = null;
         try {
-            result = shardJedis.exists(key);
+            jedis = pool.getResource();
+            result = jedis.exists(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis exists error!"+e);
             doAferService(logFoot,"exists",false,new Object[]{key},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"exists",true,new Object[]{key},result);
         return result;
     }
 
-    
+    /**
+     * KEYS会阻塞redis，key多时建议使用 {@link #scan(String, int)}
+     */
+    @Deprecated
     public Set<byte[]> keys(final byte[] pattern){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         String patternStr= new String(pattern);
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
         Set<byte[]> result = new HashSet<byte[]>();
         try {
-            Collection<Jedis> allredis = shardJedis.getAllShards();
-            for(Jedis jedis:allredis){
-                Set<byte[]> newset = jedis.keys(pattern);
+            Map<Integer, Callable<Set<byte[]>>> tasks = new HashMap<Integer, Callable<Set<byte[]>>>();
+            for (int shard = 0; shard < topology.getShardPools().size(); shard++) {
+                tasks.put(shard, shardTask(shard, new JedisCallback<Set<byte[]>>() {
+                    @Override
+                    public Set<byte[]> doInJedis(Jedis jedis) {
+                        return jedis.keys(pattern);
+                    }
+                }));
+            }
+            for (Set<byte[]> newset : runOnShards(tasks).values()) {
                 result.addAll(newset);
             }
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
             log.error("redis keys error!"+e);
             doAferService(logFoot,"keys",false,new Object[]{patternStr},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
         doAferService(logFoot,"keys",true,new Object[]{patternStr},result);
         return result;
     }
 
-    
-    public Set<String> keys(String pattern) {
+    /**
+     * KEYS会阻塞redis，key多时建议使用 {@link #scan(String, int)}
+     */
+    @Deprecated
+    public Set<String> keys(final String pattern) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
         Set<String> result = new HashSet<String>();
         try {
-            Collection<Jedis> allredis = shardJedis.getAllShards();
-            for(Jedis jedis:allredis){
-                Set<String> newset = jedis.keys(pattern);
+            Map<Integer, Callable<Set<String>>> tasks = new HashMap<Integer, Callable<Set<String>>>();
+            for (int shard = 0; shard < topology.getShardPools().size(); shard++) {
+                tasks.put(shard, shardTask(shard, new JedisCallback<Set<String>>() {
+                    @Override
+                    public Set<String> doInJedis(Jedis jedis) {
+                        return jedis.keys(pattern);
+                    }
+                }));
+            }
+            for (Set<String> newset : runOnShards(tasks).values()) {
                 result.addAll(newset);
             }
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
             log.error("redis keys error!"+e);
             doAferService(logFoot,"keys",false,new Object[]{pattern},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
         doAferService(logFoot,"keys",true,new Object[]{pattern},result);
-        return result;	}
+        return result;
+    }
+
+    /**
+     * 用SCAN遍历所有分片上匹配pattern的key，所有分片并行扫描，结果按需流式返回，不会一次性加载到内存
+     * 使用完或不再需要时必须close，释放扫描线程和连接
+     *
+     * @param pattern
+     * @param batchSize 每次SCAN的COUNT
+     * @return
+     */
+    public ShardScanIterator scan(final String pattern, final int batchSize) {
+        LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
+        doBeforeService(logFoot);
+        final ShardScanIterator iterator = new ShardScanIterator(topology.getShardPools().size(), batchSize * topology.getShardPools().size(), scanIdleTimeoutMillis);
+        for (int shard = 0; shard < topology.getShardPools().size(); shard++) {
+            final int shardIndex = shard;
+            final ShardPool pool = topology.getShardPools().get(shard);
+            scanExecutor.submit(shardIndex, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Throwable error = null;
+                    Jedis jedis = null;
+                    try {
+                        jedis = pool.getResource();
+                        String cursor = ScanParams.SCAN_POINTER_START;
+                        ScanParams params = new ScanParams().match(pattern).count(batchSize);
+                        do {
+                            ScanResult<String> scanResult = jedis.scan(cursor, params);
+                            for (String key : scanResult.getResult()) {
+                                if (!iterator.offer(key)) {
+                                    break;
+                                }
+                            }
+                            cursor = scanResult.getStringCursor();
+                        } while (!ScanParams.SCAN_POINTER_START.equals(cursor) && !iterator.isClosed());
+                    } catch (Throwable e) {
+                        log.error("redis scan shard" + shardIndex + " error!" + e);
+                        error = e;
+                    }
+                    if (jedis != null) {
+                        if (error == null) {
+                            pool.returnResource(jedis);
+                        } else {
+                            pool.returnBrokenResource(jedis);
+                        }
+                    }
+                    iterator.finish(error);
+                    return null;
+                }
+            }).exceptionally(new Function<Throwable, Void>() {
+                @Override
+                public Void apply(Throwable e) {
+                    // 扫描线程池已满，任务没有执行
+                    if (e instanceof RejectedExecutionException) {
+                        iterator.finish(e);
+                    }
+                    return null;
+                }
+            });
+        }
+        doAferService(logFoot,"scan",true,new Object[]{pattern,batchSize},null);
+        return iterator;
+    }
+
+    /**
+     * {@link #scan(String, int)} 的Stream形式，使用完需要close（可以用try-with-resources）
+     */
+    public Stream<String> scanStream(final String pattern, final int batchSize) {
+        final ShardScanIterator iterator = scan(pattern, batchSize);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.NONNULL), false)
+                .onClose(new Runnable() {
+                    @Override
+                    public void run() {
+                        iterator.close();
+                    }
+                });
+    }
+
+    /**
+     * 按pattern批量删除，每个分片并行SCAN，每批key用一次DEL删除
+     *
+     * @param pattern
+     * @param batchSize 每次SCAN的COUNT
+     * @return 删除的key个数
+     */
+    public long delByPattern(final String pattern, final int batchSize) {
+        LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
+        doBeforeService(logFoot);
+        long result = 0L;
+        try {
+            result = scanAndApply(pattern, batchSize, new KeyBatchHandler() {
+                @Override
+                public long handle(Jedis jedis, List<String> keys) {
+                    Long succkey = jedis.del(keys.toArray(new String[keys.size()]));
+                    invalidateLocal(keys);
+                    return succkey == null ? 0L : succkey;
+                }
+            });
+        } catch (Exception e) {
+            log.error("redis delByPattern error!"+e);
+            doAferService(logFoot,"delByPattern",false,new Object[]{pattern,batchSize},e);
+            return result;
+        }
+        doAferService(logFoot,"delByPattern",true,new Object[]{pattern,batchSize},result);
+        return result;
+    }
+
+    /**
+     * 按pattern批量设置过期时间，每个分片并行SCAN，每批key用pipeline发送EXPIRE
+     *
+     * @param pattern
+     * @param seconds
+     * @param batchSize 每次SCAN的COUNT
+     * @return 设置成功的key个数
+     */
+    public long expireByPattern(final String pattern, final int seconds, final int batchSize) {
+        LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
+        doBeforeService(logFoot);
+        long result = 0L;
+        try {
+            result = scanAndApply(pattern, batchSize, new KeyBatchHandler() {
+                @Override
+                public long handle(Jedis jedis, List<String> keys) {
+                    Pipeline pipeline = jedis.pipelined();
+                    for (String key : keys) {
+                        pipeline.expire(key, seconds);
+                    }
+                    long succkey = 0L;
+                    for (Object o : pipeline.syncAndReturnAll()) {
+                        if (Long.valueOf(1L).equals(o)) {
+                            succkey++;
+                        }
+                    }
+                    invalidateLocal(keys);
+                    return succkey;
+                }
+            });
+        } catch (Exception e) {
+            log.error("redis expireByPattern error!"+e);
+            doAferService(logFoot,"expireByPattern",false,new Object[]{pattern,seconds,batchSize},e);
+            return result;
+        }
+        doAferService(logFoot,"expireByPattern",true,new Object[]{pattern,seconds,batchSize},result);
+        return result;
+    }
+
+    private interface KeyBatchHandler {
+        long handle(Jedis jedis, List<String> keys);
+    }
+
+    /**
+     * 所有分片并行SCAN，每批结果交给handler处理，返回handler结果之和
+     */
+    private long scanAndApply(final String pattern, final int batchSize, final KeyBatchHandler handler) throws Exception {
+        Map<Integer, Callable<Long>> tasks = new HashMap<Integer, Callable<Long>>();
+        for (int shard = 0; shard < topology.getShardPools().size(); shard++) {
+            tasks.put(shard, shardTask(shard, new JedisCallback<Long>() {
+                @Override
+                public Long doInJedis(Jedis jedis) {
+                    long count = 0L;
+                    String cursor = ScanParams.SCAN_POINTER_START;
+                    ScanParams params = new ScanParams().match(pattern).count(batchSize);
+                    do {
+                        ScanResult<String> scanResult = jedis.scan(cursor, params);
+                        if (!scanResult.getResult().isEmpty()) {
+                            count += handler.handle(jedis, scanResult.getResult());
+                        }
+                        cursor = scanResult.getStringCursor();
+                    } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+                    return count;
+                }
+            }));
+        }
+        long total = 0L;
+        for (Long count : runOnShards(tasks, scanExecutor, scanTimeoutMillis).values()) {
+            total += count;
+        }
+        return total;
+    }
 
     
     public String lindex(String key, long index){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         String result = null;
         try {
-            result = shardJedis.lindex(key, index);
+            jedis = pool.getResource();
+            result = jedis.lindex(key, index);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis lindex error!"+e);
             doAferService(logFoot,"lindex",false,new Object[]{key,index},e);
             return error_str;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"lindex",true,new Object[]{key,index},result);
         return result;
     }
@@ -536,17 +1812,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public List<String> lrange(String key, long start,long end){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         List<String> result = null;
         try {
-            result = shardJedis.lrange(key, start, end);
+            jedis = pool.getResource();
+            result = jedis.lrange(key, start, end);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis lrange error!"+e);
             doAferService(logFoot,"lrange",false,new Object[]{key,start,end},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"lrange",true,new Object[]{key,start,end},result);
         return result;
     }
@@ -558,17 +1836,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long rpush(byte[] key, byte[] value) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.rpush(key, value);
+            jedis = pool.getResource();
+            result = jedis.rpush(key, value);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis rpush error!"+e);
             doAferService(logFoot,"rpush",false,new Object[]{new String(key),new String(value)},e);
             return error_num;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"rpush",true,new Object[]{new String(key),new String(value)},result);
         return result;
     }
@@ -580,17 +1860,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long rpush(String key, String value) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.rpush(key, value);
+            jedis = pool.getResource();
+            result = jedis.rpush(key, value);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis rpush error!"+e);
             doAferService(logFoot,"rpush",false,new Object[]{key,value},e);
             return error_num;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"rpush",true,new Object[]{key,value},result);
         return result;
     }
@@ -599,21 +1881,117 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long rpush(String key, String[] value) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.rpush(key, value);
+            jedis = pool.getResource();
+            result = jedis.rpush(key, value);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis rpush error!"+e);
             doAferService(logFoot,"rpush",false,new Object[]{key,value},e);
             return error_num;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"rpush",true,new Object[]{key,value},result);
         return result;
     }
 
+    /**
+     * 批量rpush：按分片分组，每个分片一次pipeline发送所有key的多值RPUSH，分片之间并行执行
+     *
+     * @param items key和要写入的values，values为空的key不执行
+     * @return 每个key的结果（写入后list长度），所在分片或该命令失败时为error_num
+     */
+    public Map<String, Long> rpushBatch(Map<String, List<String>> items) {
+        return pushBatch("rpushBatch", items, false);
+    }
+
+    /**
+     * 批量lpush，见rpushBatch
+     */
+    public Map<String, Long> lpushBatch(Map<String, List<String>> items) {
+        return pushBatch("lpushBatch", items, true);
+    }
+
+    private Map<String, Long> pushBatch(String method, final Map<String, List<String>> items, final boolean left) {
+        LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
+        doBeforeService(logFoot);
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        Set<String> keys = new LinkedHashSet<String>();
+        for (Map.Entry<String, List<String>> entry : items.entrySet()) {
+            if (entry.getValue() != null && !entry.getValue().isEmpty()) {
+                keys.add(entry.getKey());
+            }
+        }
+        boolean success = true;
+        try {
+            Map<Integer, Callable<Map<String, Long>>> tasks = new HashMap<Integer, Callable<Map<String, Long>>>();
+            for (Map.Entry<Integer, List<String>> entry : groupByShard(keys).entrySet()) {
+                final int shard = entry.getKey();
+                final List<String> shardKeys = entry.getValue();
+                final Callable<Map<String, Long>> task = shardTask(shard, new JedisCallback<Map<String, Long>>() {
+                    @Override
+                    public Map<String, Long> doInJedis(Jedis jedis) {
+                        Pipeline pipeline = jedis.pipelined();
+                        Map<String, Response<Long>> responses = new LinkedHashMap<String, Response<Long>>();
+                        for (String key : shardKeys) {
+                            List<String> values = items.get(key);
+                            String[] valueArr = values.toArray(new String[values.size()]);
+                            responses.put(key, left ? pipeline.lpush(key, valueArr) : pipeline.rpush(key, valueArr));
+                        }
+                        pipeline.sync();
+                        Map<String, Long> shardResult = new HashMap<String, Long>();
+                        for (Map.Entry<String, Response<Long>> response : responses.entrySet()) {
+                            try {
+                                shardResult.put(response.getKey(), response.getValue().get());
+                            } catch (JedisDataException e) {
+                                log.error("redis " + (left ? "lpush" : "rpush") + " " + response.getKey() + " error!" + e);
+                                shardResult.put(response.getKey(), error_num);
+                            }
+                        }
+                        return shardResult;
+                    }
+                });
+                // 单个分片失败只影响该分片的key
+                tasks.put(shard, new Callable<Map<String, Long>>() {
+                    @Override
+                    public Map<String, Long> call() {
+                        try {
+                            return task.call();
+                        } catch (Exception e) {
+                            log.error("redis " + (left ? "lpushBatch" : "rpushBatch") + " shard" + shard + " error!" + e);
+                            return Collections.emptyMap();
+                        }
+                    }
+                });
+            }
+            // 只把出错或超时的分片上的key标记为error_num，已经成功的分片不会被JedisHAClient再写一次slave
+            Map<String, Long> values = new HashMap<String, Long>();
+            for (Map<String, Long> shardResult : runOnShardsPartial(tasks).values()) {
+                values.putAll(shardResult);
+            }
+            for (String key : items.keySet()) {
+                Long value = keys.contains(key) ? values.get(key) : Long.valueOf(0L);
+                if (value == null || value == error_num) {
+                    success = false;
+                    value = error_num;
+                }
+                result.put(key, value);
+            }
+        } catch (Exception e) {
+            log.error("redis " + method + " error!" + e);
+            for (String key : items.keySet()) {
+                result.put(key, error_num);
+            }
+            doAferService(logFoot,method,false,new Object[]{items},e);
+            return result;
+        }
+        doAferService(logFoot,method,success,new Object[]{items},result);
+        return result;
+    }
+
     /* (non-Javadoc)
      * @see cn.qding.framework.common.redis.JedisClient#lpop(java.lang.String)
      */
@@ -621,21 +1999,74 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public String rpop(String key) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         String result = null;
         try {
-            result = shardJedis.rpop(key);
+            jedis = pool.getResource();
+            result = jedis.rpop(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis rpop error!"+e);
             doAferService(logFoot,"rpop",false,new Object[]{key},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"rpop",true,new Object[]{key},result);
         return result;
     }
 
+    /**
+     * 一次往返原子地从左边弹出最多count个元素（Lua脚本LRANGE+LTRIM）
+     *
+     * @return 按弹出顺序排列的元素，列表为空或出错时返回空列表
+     */
+    public List<String> lpopN(String key, int count) {
+        return popN("lpopN", LPOPN_SCRIPT, key, count, false);
+    }
+
+    /**
+     * 一次往返原子地从右边弹出最多count个元素
+     *
+     * @return 按弹出顺序排列的元素（最右边的在前），列表为空或出错时返回空列表
+     */
+    public List<String> rpopN(String key, int count) {
+        return popN("rpopN", RPOPN_SCRIPT, key, count, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> popN(String method, LuaScript script, String key, int count, boolean reverse) {
+        LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
+        doBeforeService(logFoot);
+        List<String> result = new ArrayList<String>();
+        if (count <= 0) {
+            doAferService(logFoot,method,true,new Object[]{key,count},result);
+            return result;
+        }
+        int shard = route(key);
+        ShardPool pool = topology.getShardPools().get(shard);
+        Jedis jedis = null;
+        try {
+            jedis = pool.getResource();
+            List<String> popped = (List<String>) scriptRegistry.eval(shard, jedis, script, Collections.singletonList(key),
+                    Collections.singletonList(String.valueOf(count)));
+            if (popped != null) {
+                result.addAll(popped);
+                if (reverse) {
+                    Collections.reverse(result);
+                }
+            }
+        } catch (Exception e) {
+            pool.returnBrokenResource(jedis);
+            log.error("redis "+method+" error!"+e);
+            doAferService(logFoot,method,false,new Object[]{key,count},e);
+            return result;
+        }
+        pool.returnResource(jedis);
+        doAferService(logFoot,method,true,new Object[]{key,count},result);
+        return result;
+    }
+
     /* (non-Javadoc)
      * @see cn.qding.framework.common.redis.JedisClient#lpop(java.lang.String)
      */
@@ -643,17 +2074,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public String lpop(String key) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         String result = null;
         try {
-            result = shardJedis.lpop(key);
+            jedis = pool.getResource();
+            result = jedis.lpop(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis lpop error!"+e);
             doAferService(logFoot,"lpop",false,new Object[]{key},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"lpop",true,new Object[]{key},result);
         return result;
     }
@@ -665,17 +2098,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public List<String> brpop(String key) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         List<String> result = new ArrayList<String>();
         try {
-            result = shardJedis.brpop(key);
+            jedis = pool.getBlockingResource();
+            result = jedis.brpop(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis brpop error!"+e);
             doAferService(logFoot,"brpop",false,new Object[]{key},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"brpop",true,new Object[]{key},result);
         return result;
     }
@@ -684,17 +2119,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public List<String> brpop(String key,int timeout) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         List<String> result = new ArrayList<String>();
         try {
-            result = shardJedis.brpop(timeout,key);
+            jedis = pool.getBlockingResource();
+            result = jedis.brpop(timeout,key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis brpop error!"+e);
             doAferService(logFoot,"brpop",false,new Object[]{key},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"brpop",true,new Object[]{key},result);
         return result;
     }
@@ -706,17 +2143,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public List<String> blpop(String key) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         List<String> result = new ArrayList<String>();
         try {
-            result = shardJedis.blpop(key);
+            jedis = pool.getBlockingResource();
+            result = jedis.blpop(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis lpop error!"+e);
             doAferService(logFoot,"blpop",false,new Object[]{key},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"blpop",true,new Object[]{key},result);
         return result;
     }
@@ -725,17 +2164,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public List<String> blpop(String key,int timeout) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         List<String> result = new ArrayList<String>();
         try {
-            result = shardJedis.blpop(timeout,key);
+            jedis = pool.getBlockingResource();
+            result = jedis.blpop(timeout,key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis blpop error!"+e);
             doAferService(logFoot,"blpop",false,new Object[]{key},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"blpop",true,new Object[]{key},result);
         return result;
     }
@@ -747,20 +2188,22 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long lpush(byte[] key, byte[] value) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         String keyStr="",valueStr="";
         if(key!=null)  keyStr =new String(key);
         if(value!=null) valueStr =new String(value);
         try {
-            result = shardJedis.lpush(key, value);
+            jedis = pool.getResource();
+            result = jedis.lpush(key, value);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis lpush error!"+e);
             doAferService(logFoot,"lpush",false,new Object[]{keyStr,valueStr},e);
             return error_num;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"lpush",true,new Object[]{keyStr,valueStr},result);
         return result;
     }
@@ -772,17 +2215,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long lpush(String key, String value) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.lpush(key, value);
+            jedis = pool.getResource();
+            result = jedis.lpush(key, value);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis lpush error!"+e);
             doAferService(logFoot,"lpush",false,new Object[]{key,value},e);
             return error_num;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"lpush",true,new Object[]{key,value},result);
         return result;
     }
@@ -791,17 +2236,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long lpush(String key, String[] value) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.lpush(key, value);
+            jedis = pool.getResource();
+            result = jedis.lpush(key, value);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis lpush error!"+e);
             doAferService(logFoot,"lpush",false,new Object[]{key,value},e);
             return error_num;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"lpush",true,new Object[]{key,value},result);
         return result;
     }
@@ -811,17 +2258,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long lrem(String key, Long count,String value) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.lrem(key, count, value);
+            jedis = pool.getResource();
+            result = jedis.lrem(key, count, value);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis lrem error!"+e);
             doAferService(logFoot,"lrem",false,new Object[]{key,value},e);
             return error_num;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"lrem",true,new Object[]{key,value},result);
         return result;
     }
@@ -830,17 +2279,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long llen(String key) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.llen(key);
+            jedis = pool.getResource();
+            result = jedis.llen(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis llen error!"+e);
             doAferService(logFoot,"llen",false,new Object[]{key},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"llen",true,new Object[]{key},result);
         return result;
     }
@@ -849,17 +2300,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public String lset(String key,long index,String value) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         String result = null;
         try {
-            result = shardJedis.lset(key,index,value);
+            jedis = pool.getResource();
+            result = jedis.lset(key,index,value);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis lset error!"+e);
             doAferService(logFoot,"lset",false,new Object[]{key},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"lset",true,new Object[]{key},result);
         return result;
     }
@@ -872,17 +2325,21 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long hset(String key,String field,String value) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.hset(key, field, value);
+            jedis = pool.getResource();
+            result = jedis.hset(key, field, value);
+            invalidateLocal(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            invalidateLocal(key);
+            pool.returnBrokenResource(jedis);
             log.error("redis hset error!"+e);
             doAferService(logFoot,"hset",false,new Object[]{key,field,value},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"hset",true,new Object[]{key,field,value},result);
         return result;
     }
@@ -894,17 +2351,21 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long hsetnx(String key,String field,String value) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.hsetnx(key, field, value);
+            jedis = pool.getResource();
+            result = jedis.hsetnx(key, field, value);
+            invalidateLocal(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            invalidateLocal(key);
+            pool.returnBrokenResource(jedis);
             log.error("redis hsetnx error!"+e);
             doAferService(logFoot,"hsetnx",false,new Object[]{key,field,value},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"hsetnx",true,new Object[]{key,field,value},result);
         return result;
     }
@@ -916,21 +2377,25 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long hset(byte[] key,byte[] field,byte[] value) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         String keyStr="",filedStr="",valueStr="";
         if(key!=null) keyStr=new String(key);
         if(field!=null) filedStr=new String(field);
         if(valueStr!=null) valueStr = new String(value);
         try {
-            result = shardJedis.hset(key, field, value);
+            jedis = pool.getResource();
+            result = jedis.hset(key, field, value);
+            invalidateLocal(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            invalidateLocal(key);
+            pool.returnBrokenResource(jedis);
             log.error("redis hset error!"+e);
             doAferService(logFoot,"hset",false,new Object[]{keyStr,filedStr,valueStr},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"hset",true,new Object[]{keyStr,filedStr,valueStr},result);
         return result;
     }
@@ -942,17 +2407,32 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public String hget(String key,String field) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        long stamp = 0;
+        NearCache cache = localCache(key);
+        if (cache != null) {
+            Object cached = getLocal(cache, key, NearCache.VIEW_HGET_PREFIX + field);
+            if (cached != NearCache.MISS) {
+                doAferService(logFoot,"hget",true,new Object[]{key,field},cached);
+                return (String) cached;
+            }
+            stamp = cache.stamp(key);
+        }
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         String result = null;
         try {
-            result = shardJedis.hget(key, field);
+            jedis = pool.getResource();
+            result = jedis.hget(key, field);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis hget error!"+e);
             doAferService(logFoot,"hget",false,new Object[]{key,field},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
+        if (cache != null) {
+            cache.put(key, NearCache.VIEW_HGET_PREFIX + field, result, stamp);
+        }
         doAferService(logFoot,"hget",true,new Object[]{key,field},result);
         return result;
     }
@@ -961,20 +2441,22 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public byte[] hget(byte[] key,byte[] field){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         byte[] result = null;
         String keyStr="",fieldStr="";
         if(key!=null) keyStr=new String(key);
         if(field!=null) fieldStr= new String(field);
         try {
-            result = shardJedis.hget(key,field);
+            jedis = pool.getResource();
+            result = jedis.hget(key,field);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis hget error!"+e);
             doAferService(logFoot,"hget",false,new Object[]{keyStr,fieldStr},e);
             return null;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"hget",true,new Object[]{keyStr,fieldStr},result);
         return result;
     }
@@ -987,17 +2469,21 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public String hmset(String key,Map<String,String>map) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         String result = null;
         try {
-            result = shardJedis.hmset(key, map);
+            jedis = pool.getResource();
+            result = jedis.hmset(key, map);
+            invalidateLocal(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            invalidateLocal(key);
+            pool.returnBrokenResource(jedis);
             log.error("redis hmset error!"+e);
             doAferService(logFoot,"hmset",false,new Object[]{key,map},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"hmset",true,new Object[]{key,map},result);
         return result;
     }
@@ -1009,17 +2495,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public List<String> hmget(String key, String... fields) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         List<String> result = null;
         try {
-            result = shardJedis.hmget(key, fields);
+            jedis = pool.getResource();
+            result = jedis.hmget(key, fields);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis hmget error!"+e);
             doAferService(logFoot,"hmget",false,new Object[]{key,fields},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"hmget",true,new Object[]{key,fields},result);
         return result;
     }
@@ -1028,36 +2516,55 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Boolean hexists(String key, String field) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Boolean result = null;
         try {
-            result = shardJedis.hexists(key, field);
+            jedis = pool.getResource();
+            result = jedis.hexists(key, field);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis hexists error!"+e);
             doAferService(logFoot,"hexists",false,new Object[]{key,field},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"hexists",true,new Object[]{key,field},result);
         return result;
     }
 
     
+    @SuppressWarnings("unchecked")
     public Map<String,String> hgetall(String key) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        long stamp = 0;
+        NearCache cache = localCache(key);
+        if (cache != null) {
+            Object cached = getLocal(cache, key, NearCache.VIEW_HGETALL);
+            if (cached != NearCache.MISS) {
+                Map<String, String> copy = cached == null ? null : new HashMap<String, String>((Map<String, String>) cached);
+                doAferService(logFoot,"hgetall",true,new Object[]{key},copy);
+                return copy;
+            }
+            stamp = cache.stamp(key);
+        }
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Map<String, String> result = null;
         try {
-            result = shardJedis.hgetAll(key);
+            jedis = pool.getResource();
+            result = jedis.hgetAll(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis hgetall error!"+e);
             doAferService(logFoot,"hgetall",false,new Object[]{key},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
+        if (cache != null) {
+            cache.put(key, NearCache.VIEW_HGETALL, result == null ? null : new HashMap<String, String>(result), stamp);
+        }
         doAferService(logFoot,"hgetall",true,new Object[]{key},result);
         return result;
     }
@@ -1066,17 +2573,21 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long hincrby(String key, String field, Long value){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.hincrBy(key, field, value);
+            jedis = pool.getResource();
+            result = jedis.hincrBy(key, field, value);
+            invalidateLocal(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            invalidateLocal(key);
+            pool.returnBrokenResource(jedis);
             log.error("redis hincrby error!"+e);
             doAferService(logFoot,"hincrby",false,new Object[]{key,field,value},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"hincrby",true,new Object[]{key,field,value},result);
         return result;
     }
@@ -1084,17 +2595,21 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long hdel(String key,String... fields){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.hdel(key, fields);
+            jedis = pool.getResource();
+            result = jedis.hdel(key, fields);
+            invalidateLocal(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            invalidateLocal(key);
+            pool.returnBrokenResource(jedis);
             log.error("redis hdel error!"+e);
             doAferService(logFoot,"hdel",false,new Object[]{key,fields},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"hdel",true,new Object[]{key,fields},result);
         return result;
     }
@@ -1103,20 +2618,24 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long hdel(byte[] key,byte[] fields){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         String keyStr="",fieldStr="";
         if(key!=null) keyStr=new String(key);
         if(fields!=null) fieldStr= new String(fields);
         try {
-            result = shardJedis.hdel(key, fields);
+            jedis = pool.getResource();
+            result = jedis.hdel(key, fields);
+            invalidateLocal(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            invalidateLocal(key);
+            pool.returnBrokenResource(jedis);
             log.error("redis hdel bytes error!"+e);
             doAferService(logFoot,"hdel",false,new Object[]{keyStr,fieldStr},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"hdel",true,new Object[]{keyStr,fieldStr},result);
         return result;
     }
@@ -1129,17 +2648,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long hlen(String key) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.hlen(key);
+            jedis = pool.getResource();
+            result = jedis.hlen(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis hlen error!"+e);
             doAferService(logFoot,"hlen",false,new Object[]{key},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"hlen",true,new Object[]{key},result);
         return result;
     }
@@ -1151,17 +2672,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Set<String> hkeys(String key) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Set<String> result = null;
         try {
-            result = shardJedis.hkeys(key);
+            jedis = pool.getResource();
+            result = jedis.hkeys(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis hkeys error!"+e);
             doAferService(logFoot,"hkeys",false,new Object[]{key},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"hkeys",true,new Object[]{key},result);
         return result;
     }
@@ -1170,19 +2693,21 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Set<byte[]> hkeys(byte[] key){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Set<byte[]> result = null;
         String keyStr="";
         if(key!=null) keyStr=new String(key);
         try {
-            result = shardJedis.hkeys(key);
+            jedis = pool.getResource();
+            result = jedis.hkeys(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis hkeys bytes error!"+e);
             doAferService(logFoot,"hkeys",false,new Object[]{keyStr},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"hkeys",true,new Object[]{keyStr},result);
         return result;
     }
@@ -1194,17 +2719,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public List<String> hvals(String key) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         List<String> result = null;
         try {
-            result = shardJedis.hvals(key);
+            jedis = pool.getResource();
+            result = jedis.hvals(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis hvals error!"+e);
             doAferService(logFoot,"hvals",false,new Object[]{key},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"hvals",true,new Object[]{key},result);
         return result;
     }
@@ -1218,17 +2745,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
         List<T> list= new ArrayList<T>();
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Collection<byte[]> result = null;
         try {
-            result = shardJedis.hvals(key.getBytes());
+            jedis = pool.getResource();
+            result = jedis.hvals(key.getBytes());
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis hvalsToObject error!"+e);
             doAferService(logFoot,"hvalsToObject",false,new Object[]{key},e);
             return null;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         Iterator<byte[]> it= result.iterator();
         while(it.hasNext()){
             list.add((T)SerializeUtil.decode(it.next()));
@@ -1241,17 +2770,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long sadd(String key, String... member) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.sadd(key, member);
+            jedis = pool.getResource();
+            result = jedis.sadd(key, member);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis sadd error!"+e);
             doAferService(logFoot,"sadd",false,new Object[]{key,member},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"sadd",true,new Object[]{key,member},result);
         return result;
     }
@@ -1260,17 +2791,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long srem(String key,String... members) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.srem(key, members);
+            jedis = pool.getResource();
+            result = jedis.srem(key, members);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis srem error!"+e);
             doAferService(logFoot,"srem",false,new Object[]{key,members},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"srem",true,new Object[]{key,members},result);
         return result;
     }
@@ -1279,17 +2812,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Boolean sismember(String key, String member) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Boolean result = null;
         try {
-            result = shardJedis.sismember(key, member);
+            jedis = pool.getResource();
+            result = jedis.sismember(key, member);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis sismember error!"+e);
             doAferService(logFoot,"sismember",false,new Object[]{key,member},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"sismember",true,new Object[]{key,member},result);
         return result;
     }
@@ -1298,17 +2833,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public String spop(String key) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         String result = null;
         try {
-            result = shardJedis.spop(key);
+            jedis = pool.getResource();
+            result = jedis.spop(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis spop error!"+e);
             doAferService(logFoot,"spop",false,new Object[]{key},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"spop",true,new Object[]{key},result);
         return result;
     }
@@ -1317,42 +2854,74 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Set<String> spop(String key, long count) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Set<String> result = new HashSet<String>();
         try {
+            jedis = pool.getResource();
             for (int i=0; i<count; i++){
-                String resultString = shardJedis.spop(key);
+                String resultString = jedis.spop(key);
                 if(StringUtils.isBlank(resultString)){
                     break;
                 }
                 result.add(resultString);
             }
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis spop error!"+e);
             doAferService(logFoot,"spop",false,new Object[]{key},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"spop",true,new Object[]{key},result);
         return result;
     }
 
+    /**
+     * 一次往返原子地弹出最多count个元素（SPOP key count，需要redis 3.2及以上）
+     *
+     * @return 弹出的元素，集合为空或出错时返回空集合
+     */
+    public Set<String> spopN(String key, long count) {
+        LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
+        doBeforeService(logFoot);
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
+        Set<String> result = new HashSet<String>();
+        try {
+            jedis = pool.getResource();
+            Set<String> popped = jedis.spop(key, count);
+            if (popped != null) {
+                result = popped;
+            }
+        } catch (Exception e) {
+            pool.returnBrokenResource(jedis);
+            log.error("redis spopN error!"+e);
+            doAferService(logFoot,"spopN",false,new Object[]{key,count},e);
+            return result;
+        }
+        pool.returnResource(jedis);
+        doAferService(logFoot,"spopN",true,new Object[]{key,count},result);
+        return result;
+    }
+
     
     public Set<String> smembers(String key) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Set<String> result = new HashSet<String>();
         try {
-            result = shardJedis.smembers(key);
+            jedis = pool.getResource();
+            result = jedis.smembers(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis spop error!"+e);
             doAferService(logFoot,"spop",false,new Object[]{key},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"spop",true,new Object[]{key},result);
         return result;
     }
@@ -1361,17 +2930,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long scard(String key) {
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = 0l;
         try {
-            result = shardJedis.scard(key);
+            jedis = pool.getResource();
+            result = jedis.scard(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis scard error!"+e);
             doAferService(logFoot,"scard",false,new Object[]{key},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"scard",true,new Object[]{key},result);
         return result;
     }
@@ -1380,17 +2951,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long zadd(String key,long score,String member){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.zadd(key, score, member);
+            jedis = pool.getResource();
+            result = jedis.zadd(key, score, member);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis zadd error!"+e);
             doAferService(logFoot,"zadd",false,new Object[]{key,score,member},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"zadd",true,new Object[]{key,score,member},result);
         return result;
     }
@@ -1399,17 +2972,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long zadd(String key, Map<String, Double> scoreMembers){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.zadd(key, scoreMembers);
+            jedis = pool.getResource();
+            result = jedis.zadd(key, scoreMembers);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis zadd error!"+e);
             doAferService(logFoot,"zadd",false,new Object[]{key,scoreMembers},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"zadd",true,new Object[]{key,scoreMembers},result);
         return result;
     }
@@ -1418,17 +2993,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Set<String> zrange(String key,long start,long end){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Set<String> result = null;
         try {
-            result = shardJedis.zrange(key, start, end);
+            jedis = pool.getResource();
+            result = jedis.zrange(key, start, end);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis zrange error!"+e);
             doAferService(logFoot,"zrange",false,new Object[]{key,start,end},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"zrange",true,new Object[]{key,start,end},result);
         return result;
     }
@@ -1437,17 +3014,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Set<String>  zrevrange(String key,long start,long end){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Set<String> result = null;
         try {
-            result = shardJedis.zrevrange(key, start, end);
+            jedis = pool.getResource();
+            result = jedis.zrevrange(key, start, end);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis zrevrange error!"+e);
             doAferService(logFoot,"zrevrange",false,new Object[]{key,start,end},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"zrevrange",true,new Object[]{key,start,end},result);
         return result;
     }
@@ -1456,17 +3035,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Set<String> zrangeByScore(String key,double min,double max){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Set<String> result = null;
         try {
-            result = shardJedis.zrangeByScore(key, min, max);
+            jedis = pool.getResource();
+            result = jedis.zrangeByScore(key, min, max);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis zrangeByScore error!"+e);
             doAferService(logFoot,"zrangeByScore",false,new Object[]{key,min,max},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"zrangeByScore",true,new Object[]{key,min,max},result);
         return result;
     }
@@ -1475,17 +3056,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Set<String> zrangeByScore(String key,double min,double max, int offset, int count){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Set<String> result = null;
         try {
-            result = shardJedis.zrangeByScore(key, min, max,offset,count);
+            jedis = pool.getResource();
+            result = jedis.zrangeByScore(key, min, max,offset,count);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis zrangeByScore error!"+e);
             doAferService(logFoot,"zrangeByScore",false,new Object[]{key,min,max,offset,count},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"zrangeByScore",true,new Object[]{key,min,max,offset,count},result);
         return result;
     }
@@ -1494,17 +3077,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Set<String>  zrevrangeByScore(String key,double max,double min){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Set<String> result = null;
         try {
-            result = shardJedis.zrevrangeByScore(key, max, min);
+            jedis = pool.getResource();
+            result = jedis.zrevrangeByScore(key, max, min);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis zrevrangeByScore error!"+e);
             doAferService(logFoot,"zrevrangeByScore",false,new Object[]{key,max,min},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"zrevrangeByScore",true,new Object[]{key,max,min},result);
         return result;
     }
@@ -1514,17 +3099,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Set<String>  zrevrangeByScore(String key,double max,double min, int offset, int count){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Set<String> result = null;
         try {
-            result = shardJedis.zrevrangeByScore(key, max, min,offset,count);
+            jedis = pool.getResource();
+            result = jedis.zrevrangeByScore(key, max, min,offset,count);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis zrevrangeByScore error!"+e);
             doAferService(logFoot,"zrevrangeByScore",false,new Object[]{key,max,min,offset,count},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"zrevrangeByScore",true,new Object[]{key,max,min,offset,count},result);
         return result;
     }
@@ -1533,17 +3120,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long zrem(String key,String... members){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.zrem(key, members);
+            jedis = pool.getResource();
+            result = jedis.zrem(key, members);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis zrem error!"+e);
             doAferService(logFoot,"zrem",false,new Object[]{key,members},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"zrem",true,new Object[]{key,members},result);
         return result;
     }
@@ -1552,17 +3141,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long zremrangeByScore(String key,String start,String end){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.zremrangeByScore(key, start, end);
+            jedis = pool.getResource();
+            result = jedis.zremrangeByScore(key, start, end);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis zremrangeByScore error!"+e);
             doAferService(logFoot,"zremrangeByScore",false,new Object[]{key,start,end},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"zremrangeByScore",true,new Object[]{key,start,end},result);
         return result;
     }
@@ -1572,17 +3163,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long zcount(String key,double min,double max){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.zcount(key,min,max);
+            jedis = pool.getResource();
+            result = jedis.zcount(key,min,max);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis zcount error!"+e);
             doAferService(logFoot,"zcard",false,new Object[]{key},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"zcard",true,new Object[]{key},result);
         return result;
     }
@@ -1591,17 +3184,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long zcard(String key){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.zcard(key);
+            jedis = pool.getResource();
+            result = jedis.zcard(key);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis zcard error!"+e);
             doAferService(logFoot,"zcard",false,new Object[]{key},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"zcard",true,new Object[]{key},result);
         return result;
     }
@@ -1610,17 +3205,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Double zscore(String key,String member){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Double result = null;
         try {
-            result = shardJedis.zscore(key,member);
+            jedis = pool.getResource();
+            result = jedis.zscore(key,member);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis zscore error!"+e);
             doAferService(logFoot,"zscore",false,new Object[]{key,member},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"zscore",true,new Object[]{key,member},result);
         return result;
     }
@@ -1629,17 +3226,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long zrank(String key,String member){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.zrank(key, member);
+            jedis = pool.getResource();
+            result = jedis.zrank(key, member);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis zrank error!"+e);
             doAferService(logFoot,"zrank",false,new Object[]{key,member},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"zrank",true,new Object[]{key,member},result);
         return result;
     }
@@ -1648,17 +3247,19 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public Long zrevrank(String key,String member){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardPool pool = getShardPool(key);
+        Jedis jedis = null;
         Long result = null;
         try {
-            result = shardJedis.zrevrank(key, member);
+            jedis = pool.getResource();
+            result = jedis.zrevrank(key, member);
         } catch (Exception e) {
-            shardPool.returnBrokenResource(shardJedis);
+            pool.returnBrokenResource(jedis);
             log.error("redis zrevrank error!"+e);
             doAferService(logFoot,"zrevrank",false,new Object[]{key,member},e);
             return result;
         }
-        shardPool.returnResource(shardJedis);
+        pool.returnResource(jedis);
         doAferService(logFoot,"zrevrank",true,new Object[]{key,member},result);
         return result;
     }
@@ -1668,7 +3269,7 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public	ShardedJedisPipeline getPipeline(){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardedJedis shardJedis = topology.getShardedPool().getResource();
         ShardedJedisPipeline pipeline  = shardJedis.pipelined();
         return pipeline;
     }
@@ -1677,17 +3278,22 @@ public class ShardJedisTracerClient  extends BaseResourceLog {
     public	ShardedJedis getShardedJedis(){
         LogFoot logFoot = new LogFoot(LogTypeEnum.RESOURCE_REDIS.getValue());
         doBeforeService(logFoot);
-        ShardedJedis shardJedis = shardPool.getResource();
+        ShardedJedis shardJedis = topology.getShardedPool().getResource();
         return shardJedis;
     }
 
     
     public void releaseShardedJedis(ShardedJedis shardJedis,Boolean hasException) {
         if(shardJedis==null) log.error("[releaseShardedJedis] get null");
-        if(hasException){
-            shardPool.returnBrokenResource(shardJedis);
-        }else {
-            shardPool.returnResource(shardJedis);
+        try {
+            if(hasException){
+                topology.getShardedPool().returnBrokenResource(shardJedis);
+            }else {
+                topology.getShardedPool().returnResource(shardJedis);
+            }
+        } catch (Exception e) {
+            // 重新加载配置后，之前借出的连接属于旧的池，归还到它自己的池
+            shardJedis.close();
         }
     }
     
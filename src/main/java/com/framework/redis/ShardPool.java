@@ -0,0 +1,418 @@
+package com.framework.redis;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.apache.log4j.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisShardInfo;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单个分片的连接池
+ * 1 单key命令先按key算出分片，再只从该分片的池中借连接，某个分片变慢只会耗尽自己的池
+ * 2 每个分片可以单独配置池大小和等待时间
+ * 3 记录借连接次数、等待时间和借连接失败次数
+ * 4 可选的熔断器：只有连接断开或超时算失败，命令本身出错（WRONGTYPE、脚本错误等）说明分片正常，按成功及耗时记录；
+ *   阻塞命令（blpop/brpop/brpoplpush）用getBlockingResource借连接，不计耗时；
+ *   熔断打开时借连接直接抛ShardCircuitOpenException，ShardJedisTracerClient的方法捕获后按失败返回（如error_num）
+ * 5 借连接等待时间和命令耗时（借出到归还，不含阻塞命令）分别记录到直方图，可通过JMX（ShardPoolMXBean）或getStats查看，
+ *   等待时间分位数上涨、waiters持续大于0时说明池快耗尽，而不是网络变慢
+ * 6 连接有效性：空闲连接由连接池的后台线程定期PING（testWhileIdle），命令因连接断开失败时，
+ *   立即在后台检测一次所有空闲连接（每秒最多一次），redis重启后失效的空闲连接不会被后续请求逐个借到
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class ShardPool extends JedisPool implements ShardPoolMXBean {
+    private static final Logger log = Logger.getLogger(ShardPool.class);
+
+    // 阻塞命令借出的连接在borrowTimes中的标记
+    private static final Long BLOCKING = -1L;
+
+    // 连接断开后检测空闲连接的线程，所有分片共用
+    private static final ExecutorService IDLE_VALIDATOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "redis-idle-validator");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final int index;
+    private final JedisShardInfo shardInfo;
+    private final String name;
+    private final CircuitBreaker breaker;
+    // 借出连接的时间，归还时计算命令耗时
+    private final Map<Jedis, Long> borrowTimes = new ConcurrentHashMap<Jedis, Long>();
+
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong borrowFailCount = new AtomicLong();
+    private final AtomicLong borrowWaitNanos = new AtomicLong();
+    private final AtomicLong maxBorrowWaitNanos = new AtomicLong();
+    private final AtomicLong brokenCount = new AtomicLong();
+    private final AtomicLong lastValidateMillis = new AtomicLong();
+    private final AtomicLong validateCount = new AtomicLong();
+    private final LatencyHistogram borrowWaitHistogram = new LatencyHistogram();
+    private final LatencyHistogram commandHistogram = new LatencyHistogram();
+
+    /**
+     * @param index     分片号
+     * @param shardInfo 分片地址
+     * @param config    该分片的池配置
+     */
+    public ShardPool(int index, JedisShardInfo shardInfo, GenericObjectPoolConfig config) {
+        this(index, shardInfo, config, null);
+    }
+
+    /**
+     * @param index     分片号
+     * @param shardInfo 分片地址
+     * @param config    该分片的池配置
+     * @param breaker   熔断器，null表示不熔断
+     */
+    public ShardPool(int index, JedisShardInfo shardInfo, GenericObjectPoolConfig config, CircuitBreaker breaker) {
+        super(config, shardInfo.getHost(), shardInfo.getPort(), shardInfo.getSoTimeout(),
+                shardInfo.getPassword(), Protocol.DEFAULT_DATABASE, null);
+        this.index = index;
+        this.shardInfo = shardInfo;
+        this.name = shardInfo.getHost() + ":" + shardInfo.getPort();
+        this.breaker = breaker;
+    }
+
+    @Override
+    public Jedis getResource() {
+        if (breaker != null && !breaker.allowRequest()) {
+            throw new ShardCircuitOpenException("shard" + index + "[" + name + "] circuit breaker is open");
+        }
+        long start = System.nanoTime();
+        try {
+            Jedis jedis = super.getResource();
+            long borrowed = System.nanoTime();
+            recordBorrow(borrowed - start);
+            borrowTimes.put(jedis, borrowed);
+            return jedis;
+        } catch (JedisException e) {
+            borrowFailCount.incrementAndGet();
+            if (breaker != null) {
+                breaker.onFailure();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 借连接执行阻塞命令，等待时间不是分片变慢，不计入命令耗时和熔断器的慢请求
+     */
+    public Jedis getBlockingResource() {
+        Jedis jedis = getResource();
+        borrowTimes.put(jedis, BLOCKING);
+        return jedis;
+    }
+
+    @Override
+    public void returnResource(Jedis resource) {
+        recordReturn(resource, false, false);
+        super.returnResource(resource);
+    }
+
+    @Override
+    public void returnBrokenResource(Jedis resource) {
+        // 连接断开（而不是命令本身出错）时，同一分片的其他空闲连接很可能也已失效
+        boolean disconnected = resource != null && resource.getClient().isBroken();
+        recordReturn(resource, true, disconnected);
+        super.returnBrokenResource(resource);
+        if (disconnected) {
+            validateIdle();
+        }
+    }
+
+    /**
+     * 在后台检测一次空闲连接，销毁PING不通和空闲超时的连接，每秒最多一次
+     */
+    public void validateIdle() {
+        long now = System.currentTimeMillis();
+        long last = lastValidateMillis.get();
+        if (now - last < 1000 || !lastValidateMillis.compareAndSet(last, now)) {
+            return;
+        }
+        IDLE_VALIDATOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    validateCount.incrementAndGet();
+                    internalPool.evict();
+                } catch (Exception e) {
+                    log.error("redis validate idle connections of shard" + index + "[" + name + "] error!" + e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param broken       是否按broken归还
+     * @param disconnected 连接是否已断开（网络错误或超时）
+     */
+    private void recordReturn(Jedis resource, boolean broken, boolean disconnected) {
+        // 借连接失败时调用方归还的是null，不算broken
+        if (resource == null) {
+            return;
+        }
+        if (broken) {
+            brokenCount.incrementAndGet();
+        }
+        Long start = borrowTimes.remove(resource);
+        if (start == null) {
+            return;
+        }
+        boolean blocking = start.equals(BLOCKING);
+        long elapsed = blocking ? 0 : System.nanoTime() - start;
+        if (!blocking) {
+            commandHistogram.recordNanos(elapsed);
+        }
+        if (breaker == null) {
+            return;
+        }
+        if (disconnected) {
+            breaker.onFailure();
+        } else {
+            breaker.onSuccess(elapsed);
+        }
+    }
+
+    private void recordBorrow(long waitNanos) {
+        borrowCount.incrementAndGet();
+        borrowWaitHistogram.recordNanos(waitNanos);
+        borrowWaitNanos.addAndGet(waitNanos);
+        long max = maxBorrowWaitNanos.get();
+        while (waitNanos > max && !maxBorrowWaitNanos.compareAndSet(max, waitNanos)) {
+            max = maxBorrowWaitNanos.get();
+        }
+    }
+
+    @Override
+    public int getIndex() {
+        return index;
+    }
+
+    public JedisShardInfo getShardInfo() {
+        return shardInfo;
+    }
+
+    /**
+     * host:port
+     */
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 熔断器，未开启时为null
+     */
+    public CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    @Override
+    public long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    /**
+     * 借连接失败次数（等待超时或建连失败）
+     */
+    @Override
+    public long getBorrowFailCount() {
+        return borrowFailCount.get();
+    }
+
+    /**
+     * 平均借连接等待时间（微秒）
+     */
+    public long getMeanBorrowWaitMicros() {
+        long count = borrowCount.get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(borrowWaitNanos.get() / count);
+    }
+
+    /**
+     * 最大借连接等待时间（微秒）
+     */
+    @Override
+    public long getMaxBorrowWaitMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxBorrowWaitNanos.get());
+    }
+
+    @Override
+    public long getBrokenCount() {
+        return brokenCount.get();
+    }
+
+    @Override
+    public long getBorrowWaitP50Micros() {
+        return borrowWaitHistogram.snapshot().getPercentile(50);
+    }
+
+    @Override
+    public long getBorrowWaitP99Micros() {
+        return borrowWaitHistogram.snapshot().getPercentile(99);
+    }
+
+    @Override
+    public long getCommandP50Micros() {
+        return commandHistogram.snapshot().getPercentile(50);
+    }
+
+    @Override
+    public long getCommandP99Micros() {
+        return commandHistogram.snapshot().getPercentile(99);
+    }
+
+    @Override
+    public long getCommandMaxMicros() {
+        return commandHistogram.snapshot().getMax();
+    }
+
+    /**
+     * 连接断开后触发的空闲连接检测次数
+     */
+    public long getValidateCount() {
+        return validateCount.get();
+    }
+
+    @Override
+    public String getBreakerState() {
+        return breaker == null ? "" : breaker.getState().name();
+    }
+
+    @Override
+    public void resetLatency() {
+        borrowWaitHistogram.snapshot(true);
+        commandHistogram.snapshot(true);
+    }
+
+    /**
+     * 借连接等待时间直方图（微秒）
+     */
+    public LatencyHistogram getBorrowWaitHistogram() {
+        return borrowWaitHistogram;
+    }
+
+    /**
+     * 命令耗时直方图（借出到归还，微秒）
+     */
+    public LatencyHistogram getCommandHistogram() {
+        return commandHistogram;
+    }
+
+    /**
+     * 当前的连接数和耗时快照
+     *
+     * @param reset 是否同时清零耗时直方图，按周期采集时使用
+     */
+    public Stats getStats(boolean reset) {
+        return new Stats(index, name, getNumActive(), getNumIdle(), getNumWaiters(), getBorrowCount(),
+                getBorrowFailCount(), getBrokenCount(), borrowWaitHistogram.snapshot(reset),
+                commandHistogram.snapshot(reset), getBreakerState());
+    }
+
+    /**
+     * 连接池快照
+     */
+    public static final class Stats {
+        private final int index;
+        private final String name;
+        private final int active;
+        private final int idle;
+        private final int waiters;
+        private final long borrowCount;
+        private final long borrowFailCount;
+        private final long brokenCount;
+        private final LatencyHistogram.Snapshot borrowWait;
+        private final LatencyHistogram.Snapshot command;
+        private final String breakerState;
+
+        Stats(int index, String name, int active, int idle, int waiters, long borrowCount, long borrowFailCount,
+              long brokenCount, LatencyHistogram.Snapshot borrowWait, LatencyHistogram.Snapshot command,
+              String breakerState) {
+            this.index = index;
+            this.name = name;
+            this.active = active;
+            this.idle = idle;
+            this.waiters = waiters;
+            this.borrowCount = borrowCount;
+            this.borrowFailCount = borrowFailCount;
+            this.brokenCount = brokenCount;
+            this.borrowWait = borrowWait;
+            this.command = command;
+            this.breakerState = breakerState;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getActive() {
+            return active;
+        }
+
+        public int getIdle() {
+            return idle;
+        }
+
+        public int getWaiters() {
+            return waiters;
+        }
+
+        public long getBorrowCount() {
+            return borrowCount;
+        }
+
+        public long getBorrowFailCount() {
+            return borrowFailCount;
+        }
+
+        public long getBrokenCount() {
+            return brokenCount;
+        }
+
+        public LatencyHistogram.Snapshot getBorrowWait() {
+            return borrowWait;
+        }
+
+        public LatencyHistogram.Snapshot getCommand() {
+            return command;
+        }
+
+        public String getBreakerState() {
+            return breakerState;
+        }
+
+        @Override
+        public String toString() {
+            return "shard" + index + "[" + name + "] active=" + active + " idle=" + idle + " waiters=" + waiters
+                    + " borrow=" + borrowCount + " fail=" + borrowFailCount + " broken=" + brokenCount
+                    + " borrowWait{" + borrowWait + "} command{" + command + "}"
+                    + (breakerState.isEmpty() ? "" : " breaker=" + breakerState);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "shard" + index + "[" + name + "] active=" + getNumActive() + " idle=" + getNumIdle()
+                + " waiters=" + getNumWaiters() + " borrow=" + getBorrowCount() + " fail=" + getBorrowFailCount()
+                + " meanWait=" + getMeanBorrowWaitMicros() + "us maxWait=" + getMaxBorrowWaitMicros() + "us"
+                + (breaker == null ? "" : " breaker=" + breaker.getState());
+    }
+}
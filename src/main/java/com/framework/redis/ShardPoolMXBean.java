@@ -0,0 +1,55 @@
+package com.framework.redis;
+
+/**
+ * 分片连接池的JMX接口，耗时单位均为微秒，分位数为自上次resetLatency以来的统计
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public interface ShardPoolMXBean {
+
+    int getIndex();
+
+    /**
+     * host:port
+     */
+    String getName();
+
+    int getNumActive();
+
+    int getNumIdle();
+
+    /**
+     * 正在等待借连接的线程数，持续大于0说明池快耗尽
+     */
+    int getNumWaiters();
+
+    long getBorrowCount();
+
+    long getBorrowFailCount();
+
+    /**
+     * 作为broken归还（命令出错）的连接数
+     */
+    long getBrokenCount();
+
+    long getBorrowWaitP50Micros();
+
+    long getBorrowWaitP99Micros();
+
+    long getMaxBorrowWaitMicros();
+
+    long getCommandP50Micros();
+
+    long getCommandP99Micros();
+
+    long getCommandMaxMicros();
+
+    /**
+     * 熔断器状态，未开启时为空串
+     */
+    String getBreakerState();
+
+    /**
+     * 清零耗时直方图
+     */
+    void resetLatency();
+}
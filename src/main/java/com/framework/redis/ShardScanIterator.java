@@ -0,0 +1,131 @@
+package com.framework.redis;
+
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多分片并行SCAN的结果迭代器
+ * 1 每个分片一个生产者不断执行SCAN，把key放入有界队列，消费方按需取出，内存占用与key总数无关
+ * 2 队列满时生产者阻塞，相当于按消费速度反压SCAN
+ * 3 使用完或提前放弃时需要close，通知生产者停止并归还连接；长时间无人消费也会自动关闭，
+ *   之后hasNext/next抛JedisException，不会把不完整的结果当成扫描结束
+ * 注意：与SCAN语义一致，迭代期间有增删时同一个key可能返回多次
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class ShardScanIterator implements Iterator<String>, Closeable {
+
+    private static final Object SHARD_END = new Object();
+
+    private final BlockingQueue<Object> queue;
+    private final long idleTimeoutMillis;
+    private int runningShards;
+    private volatile boolean closed;
+    // 因为长时间无人消费而关闭
+    private volatile boolean idleClosed;
+    private String next;
+
+    /**
+     * @param shardNum          生产者（分片）个数
+     * @param capacity          队列长度
+     * @param idleTimeoutMillis 生产者等待消费超过这个时间认为迭代器已被放弃
+     */
+    ShardScanIterator(int shardNum, int capacity, long idleTimeoutMillis) {
+        this.queue = new ArrayBlockingQueue<Object>(Math.max(1, capacity));
+        this.runningShards = shardNum;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * 生产者放入一个key，队列满时等待
+     *
+     * @return false表示迭代器已关闭，生产者应停止SCAN
+     */
+    boolean offer(String key) throws InterruptedException {
+        long waited = 0;
+        while (!closed) {
+            if (queue.offer(key, 100, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+            waited += 100;
+            if (waited >= idleTimeoutMillis) {
+                idleClosed = true;
+                closed = true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 生产者结束，error不为null时迭代器会把异常抛给消费方
+     */
+    void finish(Throwable error) {
+        Object marker = error == null ? SHARD_END : error;
+        try {
+            while (!closed && !queue.offer(marker, 100, TimeUnit.MILLISECONDS)) {
+                // 等待消费方取走数据
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null) {
+            if (idleClosed) {
+                throw new JedisException("scan closed after no consumption for " + idleTimeoutMillis + "ms, result incomplete");
+            }
+            if (closed || runningShards == 0) {
+                return false;
+            }
+            Object item;
+            try {
+                item = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new JedisException("scan interrupted", e);
+            }
+            if (item == SHARD_END) {
+                runningShards--;
+            } else if (item instanceof Throwable) {
+                close();
+                throw new JedisException("scan error", (Throwable) item);
+            } else {
+                next = (String) item;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String key = next;
+        next = null;
+        return key;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        queue.clear();
+    }
+}
@@ -0,0 +1,74 @@
+package com.framework.redis;
+
+import redis.clients.jedis.JedisShardInfo;
+import redis.clients.jedis.ShardedJedisPool;
+import redis.clients.util.Pool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 分片拓扑：分片信息、每个分片的连接池、路由和shardedJedis池
+ * 不可变，重新加载配置时整体替换，一次请求内读到的分片号和连接池总是一致的
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class ShardTopology {
+
+    private final List<JedisShardInfo> shardInfos;
+    private final List<ShardPool> shardPools;
+    private final ConsistentHashRouter router;
+    // 只用于getPipeline/getShardedJedis
+    private final ShardedJedisPool shardedPool;
+
+    public ShardTopology(List<JedisShardInfo> shardInfos, List<ShardPool> shardPools, ConsistentHashRouter router,
+                         ShardedJedisPool shardedPool) {
+        this.shardInfos = Collections.unmodifiableList(new ArrayList<JedisShardInfo>(shardInfos));
+        this.shardPools = Collections.unmodifiableList(new ArrayList<ShardPool>(shardPools));
+        this.router = router;
+        this.shardedPool = shardedPool;
+    }
+
+    /**
+     * 分片信息，下标即分片号
+     */
+    public List<JedisShardInfo> getShardInfos() {
+        return shardInfos;
+    }
+
+    /**
+     * 每个分片的连接池，下标即分片号
+     */
+    public List<ShardPool> getShardPools() {
+        return shardPools;
+    }
+
+    public ConsistentHashRouter getRouter() {
+        return router;
+    }
+
+    public ShardedJedisPool getShardedPool() {
+        return shardedPool;
+    }
+
+    public int getShardCount() {
+        return shardInfos.size();
+    }
+
+    /**
+     * 所有连接池，包括shardedJedis池
+     */
+    public List<Pool<?>> getPools() {
+        List<Pool<?>> pools = new ArrayList<Pool<?>>(shardPools);
+        pools.add(shardedPool);
+        return pools;
+    }
+
+    /**
+     * 两个分片信息是否指向同一个redis（地址和密码相同）
+     */
+    public static boolean sameAddress(JedisShardInfo a, JedisShardInfo b) {
+        return a.getHost().equals(b.getHost()) && a.getPort() == b.getPort()
+                && (a.getPassword() == null ? b.getPassword() == null : a.getPassword().equals(b.getPassword()));
+    }
+}
@@ -0,0 +1,73 @@
+package com.framework.redis;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 滑动窗口限流（有序集合记录每个许可的时间）
+ * 1 每次判断先删除窗口之外的记录，任意windowMillis长的时间段内许可数不超过limit
+ * 2 每个许可占一个有序集合成员，limit较大（如每窗口上万）时内存和删除开销较大，此时用TokenBucketRateLimiter
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class SlidingWindowRateLimiter extends RateLimiter {
+
+    private static final String SCRIPT =
+            "local limit = tonumber(ARGV[1]) " +
+            "local window = tonumber(ARGV[2]) " +
+            "local now = tonumber(ARGV[3]) " +
+            "local requested = tonumber(ARGV[4]) " +
+            "redis.call('ZREMRANGEBYSCORE', KEYS[1], '-inf', now - window) " +
+            "local remain = limit - redis.call('ZCARD', KEYS[1]) " +
+            "local granted = 0 " +
+            "if remain >= requested then granted = requested " +
+            "elseif ARGV[5] == '1' and remain > 0 then granted = remain end " +
+            "for i = 1, granted do redis.call('ZADD', KEYS[1], now, ARGV[6] .. ':' .. i) end " +
+            "if granted > 0 then redis.call('PEXPIRE', KEYS[1], window) end " +
+            "return granted";
+
+    private final ShardJedisTracerClient client;
+    private final String key;
+    private final long limit;
+    private final long windowMillis;
+    private final LuaScript script;
+    // 有序集合成员的前缀，保证不同请求的成员不重复
+    private final String memberPrefix = UUID.randomUUID().toString();
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * @param client       redis客户端
+     * @param key          有序集合的key
+     * @param limit        窗口内最多的许可数
+     * @param windowMillis 窗口长度（毫秒）
+     */
+    public SlidingWindowRateLimiter(ShardJedisTracerClient client, String key, long limit, long windowMillis) {
+        this.client = client;
+        this.key = key;
+        this.limit = limit;
+        this.windowMillis = windowMillis;
+        this.script = client.registerScript("ratelimit.slidingWindow", SCRIPT);
+    }
+
+    @Override
+    protected int acquire(int permits, boolean partial) throws Exception {
+        Object granted = client.evalScript(script, Collections.singletonList(key),
+                Arrays.asList(String.valueOf(limit), String.valueOf(windowMillis),
+                        String.valueOf(System.currentTimeMillis()), String.valueOf(permits), partial ? "1" : "0",
+                        memberPrefix + ":" + sequence.incrementAndGet()));
+        return granted instanceof Long ? ((Long) granted).intValue() : 0;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getLimit() {
+        return limit;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+}
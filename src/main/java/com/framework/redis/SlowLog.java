@@ -0,0 +1,231 @@
+package com.framework.redis;
+
+import redis.clients.util.SafeEncoder;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 慢命令记录
+ * 1 耗时超过阈值的命令记录命令名、分片、key、参数大小和结果大小，正常命令只多一次比较
+ * 2 固定容量的环形缓冲，写入只做一次原子自增和一次数组写，不加锁，满了覆盖最旧的记录
+ * 3 大小的含义：字符串/字节数组为长度，集合/Map/数组为元素个数，其他为1
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class SlowLog implements SlowLogMXBean {
+
+    private static final int MAX_KEY_LENGTH = 128;
+
+    private final AtomicReferenceArray<Entry> ring;
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile long thresholdNanos;
+
+    /**
+     * @param thresholdMicros 超过这个耗时（微秒）记录
+     * @param capacity        最多保留的条数
+     */
+    public SlowLog(long thresholdMicros, int capacity) {
+        this.ring = new AtomicReferenceArray<Entry>(capacity);
+        this.thresholdNanos = TimeUnit.MICROSECONDS.toNanos(thresholdMicros);
+    }
+
+    public boolean isSlow(long elapsedNanos) {
+        return elapsedNanos >= thresholdNanos;
+    }
+
+    /**
+     * 调用方先用isSlow判断，只有慢命令才计算大小
+     */
+    public void record(String command, int shard, boolean success, long elapsedNanos, Object[] arguments, Object result) {
+        String key = null;
+        long argSize = 0;
+        if (arguments != null && arguments.length > 0) {
+            key = describeKey(arguments[0]);
+            for (int i = 1; i < arguments.length; i++) {
+                argSize += size(arguments[i]);
+            }
+        }
+        long seq = sequence.getAndIncrement();
+        ring.set((int) (seq % ring.length()), new Entry(seq, System.currentTimeMillis(), command, shard, key, success,
+                TimeUnit.NANOSECONDS.toMicros(elapsedNanos), argSize, size(result)));
+    }
+
+    /**
+     * 缓冲中的慢命令，最新的在前
+     */
+    public List<Entry> snapshot(int count) {
+        List<Entry> entries = new ArrayList<Entry>();
+        long end = sequence.get();
+        long start = Math.max(0, end - Math.min(count, ring.length()));
+        for (long seq = end - 1; seq >= start; seq--) {
+            Entry entry = ring.get((int) (seq % ring.length()));
+            // 跳过还没写入或已经被新记录覆盖的位置
+            if (entry != null && entry.getSequence() == seq) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public List<String> getEntries() {
+        return latest(ring.length());
+    }
+
+    @Override
+    public List<String> latest(int count) {
+        List<String> list = new ArrayList<String>();
+        for (Entry entry : snapshot(count)) {
+            list.add(entry.toString());
+        }
+        return list;
+    }
+
+    @Override
+    public long getThresholdMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(thresholdNanos);
+    }
+
+    @Override
+    public void setThresholdMicros(long thresholdMicros) {
+        this.thresholdNanos = TimeUnit.MICROSECONDS.toNanos(thresholdMicros);
+    }
+
+    @Override
+    public int getCapacity() {
+        return ring.length();
+    }
+
+    @Override
+    public long getSlowCount() {
+        return sequence.get();
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < ring.length(); i++) {
+            ring.set(i, null);
+        }
+        sequence.set(0);
+    }
+
+    private static String describeKey(Object key) {
+        String text;
+        if (key instanceof String) {
+            text = (String) key;
+        } else if (key instanceof byte[]) {
+            text = SafeEncoder.encode((byte[]) key);
+        } else if (key == null) {
+            return null;
+        } else {
+            return size(key) + " keys";
+        }
+        return text.length() > MAX_KEY_LENGTH ? text.substring(0, MAX_KEY_LENGTH) + "..." : text;
+    }
+
+    private static long size(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof String) {
+            return ((String) value).length();
+        }
+        if (value instanceof byte[]) {
+            return ((byte[]) value).length;
+        }
+        if (value instanceof Collection) {
+            return ((Collection<?>) value).size();
+        }
+        if (value instanceof Map) {
+            return ((Map<?, ?>) value).size();
+        }
+        if (value instanceof Object[]) {
+            return ((Object[]) value).length;
+        }
+        return 1;
+    }
+
+    /**
+     * 一条慢命令
+     */
+    public static final class Entry {
+        private final long sequence;
+        private final long timeMillis;
+        private final String command;
+        private final int shard;
+        private final String key;
+        private final boolean success;
+        private final long elapsedMicros;
+        private final long argSize;
+        private final long resultSize;
+
+        Entry(long sequence, long timeMillis, String command, int shard, String key, boolean success,
+              long elapsedMicros, long argSize, long resultSize) {
+            this.sequence = sequence;
+            this.timeMillis = timeMillis;
+            this.command = command;
+            this.shard = shard;
+            this.key = key;
+            this.success = success;
+            this.elapsedMicros = elapsedMicros;
+            this.argSize = argSize;
+            this.resultSize = resultSize;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        /**
+         * 分片号，-1表示不确定分片
+         */
+        public int getShard() {
+            return shard;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        public long getElapsedMicros() {
+            return elapsedMicros;
+        }
+
+        /**
+         * key之外的参数大小
+         */
+        public long getArgSize() {
+            return argSize;
+        }
+
+        public long getResultSize() {
+            return resultSize;
+        }
+
+        @Override
+        public String toString() {
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(timeMillis)) + " " + command + " "
+                    + (shard < 0 ? "all" : "shard" + shard) + " key=" + key + " " + (success ? "ok" : "error")
+                    + " elapsed=" + elapsedMicros + "us args=" + argSize + " result=" + resultSize;
+        }
+    }
+}
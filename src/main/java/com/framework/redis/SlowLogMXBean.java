@@ -0,0 +1,36 @@
+package com.framework.redis;
+
+import java.util.List;
+
+/**
+ * 慢命令记录的JMX接口
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public interface SlowLogMXBean {
+
+    /**
+     * 缓冲中所有慢命令，最新的在前
+     */
+    List<String> getEntries();
+
+    /**
+     * 最近count条慢命令
+     */
+    List<String> latest(int count);
+
+    long getThresholdMicros();
+
+    /**
+     * 运行时调整阈值
+     */
+    void setThresholdMicros(long thresholdMicros);
+
+    int getCapacity();
+
+    /**
+     * 自上次reset以来的慢命令总数，可能大于缓冲容量
+     */
+    long getSlowCount();
+
+    void reset();
+}
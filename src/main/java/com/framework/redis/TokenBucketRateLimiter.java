@@ -0,0 +1,72 @@
+package com.framework.redis;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * 令牌桶限流
+ * 1 桶存在一个hash里（tokens、ts），每次判断时按上次时间到现在的间隔补充令牌，最多capacity个
+ * 2 允许最多capacity个的突发，长期速率不超过ratePerSecond，没有固定窗口边界上的双倍突发
+ * 3 桶在补满所需的时间之后自动过期
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class TokenBucketRateLimiter extends RateLimiter {
+
+    private static final String SCRIPT =
+            "local rate = tonumber(ARGV[1]) " +
+            "local capacity = tonumber(ARGV[2]) " +
+            "local now = tonumber(ARGV[3]) " +
+            "local requested = tonumber(ARGV[4]) " +
+            "local bucket = redis.call('HMGET', KEYS[1], 'tokens', 'ts') " +
+            "local tokens = tonumber(bucket[1]) " +
+            "local ts = tonumber(bucket[2]) " +
+            "if tokens == nil or ts == nil then tokens = capacity ts = now end " +
+            "if now > ts then tokens = math.min(capacity, tokens + (now - ts) * rate / 1000) ts = now end " +
+            "local granted = 0 " +
+            "if tokens >= requested then granted = requested " +
+            "elseif ARGV[5] == '1' then granted = math.floor(tokens) end " +
+            "tokens = tokens - granted " +
+            "redis.call('HMSET', KEYS[1], 'tokens', tostring(tokens), 'ts', tostring(ts)) " +
+            "redis.call('PEXPIRE', KEYS[1], math.ceil(capacity * 1000 / rate) + 1000) " +
+            "return granted";
+
+    private final ShardJedisTracerClient client;
+    private final String key;
+    private final double ratePerSecond;
+    private final long capacity;
+    private final LuaScript script;
+
+    /**
+     * @param client        redis客户端
+     * @param key           桶的key
+     * @param ratePerSecond 每秒补充的令牌数
+     * @param capacity      桶容量，即允许的最大突发
+     */
+    public TokenBucketRateLimiter(ShardJedisTracerClient client, String key, double ratePerSecond, long capacity) {
+        this.client = client;
+        this.key = key;
+        this.ratePerSecond = ratePerSecond;
+        this.capacity = capacity;
+        this.script = client.registerScript("ratelimit.tokenBucket", SCRIPT);
+    }
+
+    @Override
+    protected int acquire(int permits, boolean partial) throws Exception {
+        Object granted = client.evalScript(script, Collections.singletonList(key),
+                Arrays.asList(String.valueOf(ratePerSecond), String.valueOf(capacity),
+                        String.valueOf(System.currentTimeMillis()), String.valueOf(permits), partial ? "1" : "0"));
+        return granted instanceof Long ? ((Long) granted).intValue() : 0;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public double getRatePerSecond() {
+        return ratePerSecond;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,413 @@
+package com.framework.redis;
+
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * 本地写入暂存（master和slave都写失败时使用）
+ * 1 追加写入内存映射的分段文件，每条记录带CRC32，写入只是内存拷贝，速度接近磁盘顺序写
+ * 2 后台线程按写入顺序回放到redis，回放成功后更新checkpoint，分段全部回放完后删除
+ * 3 分段个数有上限，写满后append返回false，由调用方决定如何处理
+ * 4 进程重启后从checkpoint继续回放；checkpoint更新前进程退出的记录会重复回放一次（至少一次）
+ * 记录格式：[int 长度][int CRC32][byte 操作][int key长度][key][int value个数]([int value长度][value])*
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class WriteSpool implements Closeable {
+    private static final Logger log = Logger.getLogger(WriteSpool.class);
+
+    public static final byte OP_RPUSH = 1;
+    public static final byte OP_LPUSH = 2;
+
+    private static final int HEADER = 8;
+    private static final String SEGMENT_PREFIX = "spool-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * 回放一条记录
+     */
+    public interface Replayer {
+        /**
+         * @return false表示暂时无法写入redis，稍后重试这条记录
+         */
+        boolean replay(byte op, byte[] key, byte[][] values);
+    }
+
+    private final File dir;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final boolean forceEachWrite;
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private Segment writeSegment;
+    private volatile int writePos;
+
+    private Segment readSegment;
+    private int readPos;
+    private final MappedByteBuffer checkpoint;
+    private final RandomAccessFile checkpointFile;
+
+    private final AtomicLong backlogRecords = new AtomicLong();
+    private final AtomicLong backlogBytes = new AtomicLong();
+    private final AtomicLong spooledCount = new AtomicLong();
+    private final AtomicLong replayedCount = new AtomicLong();
+    private final AtomicLong rejectCount = new AtomicLong();
+    private final AtomicLong corruptCount = new AtomicLong();
+
+    private Thread replayThread;
+    private volatile boolean closed;
+
+    /**
+     * @param dir            分段文件目录，一个目录只能被一个进程使用
+     * @param segmentSize    每个分段的大小（字节）
+     * @param maxSegments    最多的分段个数，总大小不超过segmentSize*maxSegments
+     * @param forceEachWrite 每次写入后是否刷盘，false时进程崩溃不丢数据，机器掉电可能丢失最近的写入
+     */
+    public WriteSpool(File dir, int segmentSize, int maxSegments, boolean forceEachWrite) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("can not create spool dir " + dir);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.forceEachWrite = forceEachWrite;
+        this.checkpointFile = new RandomAccessFile(new File(dir, "spool.checkpoint"), "rw");
+        this.checkpoint = checkpointFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 20);
+        recover();
+    }
+
+    /**
+     * 打开已有分段，定位回放和写入位置
+     */
+    private void recover() throws IOException {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String fileName = file.getName();
+                if (fileName.startsWith(SEGMENT_PREFIX) && fileName.endsWith(SEGMENT_SUFFIX)) {
+                    long seq = Long.parseLong(fileName.substring(SEGMENT_PREFIX.length(), fileName.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(seq, new Segment(seq, file, segmentSize));
+                }
+            }
+        }
+        long checkpointSeq = checkpoint.getLong(0);
+        int checkpointPos = (int) checkpoint.getLong(8);
+        CRC32 crc = new CRC32();
+        crc.update(toBytes(checkpointSeq, checkpointPos));
+        if ((int) crc.getValue() != checkpoint.getInt(16)) {
+            checkpointSeq = 0;
+            checkpointPos = 0;
+        }
+        // 已回放完的分段
+        while (!segments.isEmpty() && segments.firstKey() < checkpointSeq) {
+            segments.pollFirstEntry().getValue().delete();
+        }
+        if (segments.isEmpty()) {
+            writeSegment = newSegment(checkpointSeq + 1);
+            writePos = 0;
+            readSegment = writeSegment;
+            readPos = 0;
+            return;
+        }
+        readSegment = segments.firstEntry().getValue();
+        readPos = readSegment.seq == checkpointSeq ? checkpointPos : 0;
+        // 统计积压并找到写入位置
+        for (Segment segment : segments.values()) {
+            int pos = segment == readSegment ? readPos : 0;
+            int end;
+            while ((end = nextRecord(segment, pos)) > 0) {
+                backlogRecords.incrementAndGet();
+                backlogBytes.addAndGet(end - pos);
+                pos = end;
+            }
+            writeSegment = segment;
+            writePos = pos;
+        }
+        log.info("redis spool recovered, segments=" + segments.size() + " backlog=" + backlogRecords.get());
+    }
+
+    /**
+     * 追加一条记录
+     *
+     * @return false表示暂存已满
+     */
+    public synchronized boolean append(byte op, byte[] key, byte[][] values) {
+        int length = 1 + 4 + key.length + 4;
+        for (byte[] value : values) {
+            length += 4 + value.length;
+        }
+        if (HEADER + length + 4 > segmentSize) {
+            rejectCount.incrementAndGet();
+            return false;
+        }
+        try {
+            if (writePos + HEADER + length + 4 > segmentSize) {
+                if (segments.size() >= maxSegments) {
+                    rejectCount.incrementAndGet();
+                    return false;
+                }
+                // 写结束标记后换到新分段
+                writeSegment.buffer.putInt(writePos, 0);
+                writeSegment = newSegment(writeSegment.seq + 1);
+                writePos = 0;
+            }
+        } catch (IOException e) {
+            log.error("redis spool create segment error!" + e);
+            rejectCount.incrementAndGet();
+            return false;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        payload.put(op).putInt(key.length).put(key).putInt(values.length);
+        for (byte[] value : values) {
+            payload.putInt(value.length).put(value);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload.array());
+        ByteBuffer buffer = writeSegment.buffer.duplicate();
+        buffer.position(writePos);
+        buffer.putInt(length).putInt((int) crc.getValue()).put(payload.array());
+        if (buffer.position() + 4 <= segmentSize) {
+            buffer.putInt(0);
+        }
+        if (forceEachWrite) {
+            writeSegment.buffer.force();
+        }
+        writePos += HEADER + length;
+        spooledCount.incrementAndGet();
+        backlogRecords.incrementAndGet();
+        backlogBytes.addAndGet(HEADER + length);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * 启动后台回放线程
+     *
+     * @param replayer       回放方式
+     * @param retryMillis    redis不可用时的重试间隔
+     */
+    public synchronized void startReplay(final Replayer replayer, final long retryMillis) {
+        if (replayThread != null) {
+            return;
+        }
+        replayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replayLoop(replayer, retryMillis);
+            }
+        }, "redis-spool-replay");
+        replayThread.setDaemon(true);
+        replayThread.start();
+    }
+
+    private void replayLoop(Replayer replayer, long retryMillis) {
+        while (!closed) {
+            try {
+                Segment segment;
+                int pos;
+                int end;
+                synchronized (this) {
+                    while (!closed && readSegment == writeSegment && readPos >= writePos) {
+                        wait(1000);
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    segment = readSegment;
+                    pos = readPos;
+                    end = nextRecord(segment, pos);
+                    if (end <= 0) {
+                        if (segment != writeSegment) {
+                            if (end < 0) {
+                                corruptCount.incrementAndGet();
+                                log.error("redis spool segment " + segment.seq + " corrupt at " + pos + ", skip rest of segment");
+                            }
+                            nextReadSegment();
+                        } else if (end < 0) {
+                            // 当前写入分段中的记录不应该损坏，等待下一轮
+                            wait(retryMillis);
+                        }
+                        continue;
+                    }
+                }
+                ByteBuffer record = segment.buffer.duplicate();
+                record.position(pos + HEADER);
+                byte op = record.get();
+                byte[] key = new byte[record.getInt()];
+                record.get(key);
+                byte[][] values = new byte[record.getInt()][];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = new byte[record.getInt()];
+                    record.get(values[i]);
+                }
+                if (!replayer.replay(op, key, values)) {
+                    TimeUnit.MILLISECONDS.sleep(retryMillis);
+                    continue;
+                }
+                synchronized (this) {
+                    readPos = end;
+                    saveCheckpoint(readSegment.seq, readPos);
+                    replayedCount.incrementAndGet();
+                    backlogRecords.decrementAndGet();
+                    backlogBytes.addAndGet(pos - end);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                log.error("redis spool replay error!" + e);
+                try {
+                    TimeUnit.MILLISECONDS.sleep(retryMillis);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 当前读分段回放完，删除并切换到下一个分段
+     */
+    private void nextReadSegment() throws IOException {
+        Map.Entry<Long, Segment> next = segments.higherEntry(readSegment.seq);
+        segments.remove(readSegment.seq);
+        readSegment.delete();
+        readSegment = next.getValue();
+        readPos = 0;
+        saveCheckpoint(readSegment.seq, readPos);
+    }
+
+    /**
+     * @return 下一条记录的结束位置，0表示没有记录，-1表示记录损坏
+     */
+    private int nextRecord(Segment segment, int pos) {
+        if (pos + HEADER > segmentSize) {
+            return 0;
+        }
+        int length = segment.buffer.getInt(pos);
+        if (length == 0) {
+            return 0;
+        }
+        if (length < 0 || pos + HEADER + length > segmentSize) {
+            return -1;
+        }
+        byte[] payload = new byte[length];
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(pos + HEADER);
+        buffer.get(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != segment.buffer.getInt(pos + 4)) {
+            return -1;
+        }
+        return pos + HEADER + length;
+    }
+
+    private Segment newSegment(long seq) throws IOException {
+        File file = new File(dir, String.format("%s%020d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+        Segment segment = new Segment(seq, file, segmentSize);
+        segments.put(seq, segment);
+        return segment;
+    }
+
+    private void saveCheckpoint(long seq, int pos) {
+        CRC32 crc = new CRC32();
+        crc.update(toBytes(seq, pos));
+        checkpoint.putLong(0, seq);
+        checkpoint.putLong(8, pos);
+        checkpoint.putInt(16, (int) crc.getValue());
+    }
+
+    private static byte[] toBytes(long seq, long pos) {
+        return ByteBuffer.allocate(16).putLong(seq).putLong(pos).array();
+    }
+
+    /**
+     * 待回放的记录数
+     */
+    public long getBacklogRecords() {
+        return backlogRecords.get();
+    }
+
+    /**
+     * 待回放的字节数
+     */
+    public long getBacklogBytes() {
+        return backlogBytes.get();
+    }
+
+    public long getSpooledCount() {
+        return spooledCount.get();
+    }
+
+    public long getReplayedCount() {
+        return replayedCount.get();
+    }
+
+    /**
+     * 暂存已满被拒绝的写入次数
+     */
+    public long getRejectCount() {
+        return rejectCount.get();
+    }
+
+    /**
+     * 回放时发现的损坏分段数
+     */
+    public long getCorruptCount() {
+        return corruptCount.get();
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        synchronized (this) {
+            notifyAll();
+            for (Segment segment : segments.values()) {
+                segment.buffer.force();
+                segment.channel.close();
+            }
+            checkpoint.force();
+            checkpointFile.close();
+        }
+        if (replayThread != null) {
+            replayThread.interrupt();
+        }
+    }
+
+    private static final class Segment {
+        final long seq;
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+
+        Segment(long seq, File file, int size) throws IOException {
+            this.seq = seq;
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        void delete() throws IOException {
+            channel.close();
+            if (!file.delete()) {
+                log.error("redis spool delete " + file + " failed");
+            }
+        }
+    }
+}
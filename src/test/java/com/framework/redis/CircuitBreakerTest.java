@@ -0,0 +1,151 @@
+package com.framework.redis;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CircuitBreaker 状态转换、半开探测和统计窗口，不需要redis
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class CircuitBreakerTest extends TestCase {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(20);
+
+    /**
+     * 窗口10秒，至少10个请求，失败率0.5，10毫秒算慢，慢请求率0.8，打开50毫秒，半开放行3个
+     */
+    private static CircuitBreaker breaker(long windowMillis) {
+        return new CircuitBreaker("test", windowMillis, 10, 0.5, 10, 0.8, 50, 3);
+    }
+
+    public void testStaysClosedBelowMinRequests() {
+        CircuitBreaker breaker = breaker(10000);
+        for (int i = 0; i < 9; i++) {
+            breaker.onFailure();
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+    }
+
+    public void testOpensOnFailureRate() {
+        CircuitBreaker breaker = breaker(10000);
+        for (int i = 0; i < 5; i++) {
+            breaker.onSuccess(FAST);
+        }
+        for (int i = 0; i < 4; i++) {
+            breaker.onFailure();
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        // 第10个请求，失败5/10达到阈值
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(1, breaker.getOpenCount());
+        assertFalse(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        assertEquals(2, breaker.getRejectCount());
+    }
+
+    public void testSuccessesKeepFailureRateLow() {
+        CircuitBreaker breaker = breaker(10000);
+        for (int i = 0; i < 20; i++) {
+            breaker.onSuccess(FAST);
+        }
+        for (int i = 0; i < 19; i++) {
+            breaker.onFailure();
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    public void testOpensOnSlowRate() {
+        CircuitBreaker breaker = breaker(10000);
+        for (int i = 0; i < 2; i++) {
+            breaker.onSuccess(FAST);
+        }
+        for (int i = 0; i < 7; i++) {
+            breaker.onSuccess(SLOW);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        // 慢请求8/10达到阈值
+        breaker.onSuccess(SLOW);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    public void testHalfOpenProbesThenClose() throws InterruptedException {
+        CircuitBreaker breaker = open();
+        TimeUnit.MILLISECONDS.sleep(60);
+        // 只放行probeNum个探测请求
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.allowRequest());
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+
+        breaker.onSuccess(FAST);
+        breaker.onSuccess(FAST);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.onSuccess(FAST);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+
+        // 关闭时重新开始统计，打开前的失败不再计入
+        for (int i = 0; i < 9; i++) {
+            breaker.onFailure();
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    public void testFailedProbeReopens() throws InterruptedException {
+        CircuitBreaker breaker = open();
+        TimeUnit.MILLISECONDS.sleep(60);
+        assertTrue(breaker.allowRequest());
+        breaker.onSuccess(FAST);
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(2, breaker.getOpenCount());
+        assertFalse(breaker.allowRequest());
+
+        // 重新打开后再等openMillis，探测名额重新发放
+        TimeUnit.MILLISECONDS.sleep(60);
+        assertTrue(breaker.allowRequest());
+        assertTrue(breaker.allowRequest());
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+    }
+
+    public void testSlowProbeReopens() throws InterruptedException {
+        CircuitBreaker breaker = open();
+        TimeUnit.MILLISECONDS.sleep(60);
+        assertTrue(breaker.allowRequest());
+        breaker.onSuccess(SLOW);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    public void testWindowRotation() throws InterruptedException {
+        CircuitBreaker breaker = breaker(50);
+        for (int i = 0; i < 9; i++) {
+            breaker.onFailure();
+        }
+        TimeUnit.MILLISECONDS.sleep(60);
+        // 新窗口只有这一个请求，不到minRequests
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        for (int i = 0; i < 9; i++) {
+            breaker.onFailure();
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    private static CircuitBreaker open() {
+        CircuitBreaker breaker = breaker(10000);
+        for (int i = 0; i < 10; i++) {
+            breaker.onFailure();
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        return breaker;
+    }
+}
@@ -0,0 +1,86 @@
+package com.framework.redis;
+
+import junit.framework.TestCase;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisShardInfo;
+import redis.clients.util.SafeEncoder;
+import redis.clients.util.Sharded;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * ConsistentHashRouter 与 jedis Sharded 的路由必须一致，否则升级后已有的key会找不到
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class ConsistentHashRouterTest extends TestCase {
+
+    private static final int KEY_NUM = 20000;
+
+    public void testSameShardAsSharded() {
+        for (int shardNum = 1; shardNum <= 8; shardNum++) {
+            assertSameShard(shards(shardNum, false, false), false);
+        }
+    }
+
+    public void testSameShardAsShardedWithWeightAndName() {
+        assertSameShard(shards(5, true, false), false);
+        assertSameShard(shards(5, false, true), false);
+        assertSameShard(shards(5, true, true), false);
+    }
+
+    public void testSameShardAsShardedWithHashTag() {
+        assertSameShard(shards(4, false, false), true);
+    }
+
+    public void testSameTagSameShard() {
+        ConsistentHashRouter router = new ConsistentHashRouter(shards(8, false, false), true);
+        int shard = router.getShardIndex("order:{1001}:items");
+        assertEquals(shard, router.getShardIndex("order:{1001}:status"));
+        assertEquals(shard, router.getShardIndex("{1001}"));
+        assertEquals(shard, router.getShardIndex("1001"));
+        assertEquals(shard, router.getShardIndex(SafeEncoder.encode("user:{1001}")));
+    }
+
+    public void testKeyTag() {
+        assertEquals("b", ConsistentHashRouter.getKeyTag("a{b}c"));
+        assertEquals("b", ConsistentHashRouter.getKeyTag("a{b}{c}"));
+        assertEquals("a{}{b}", ConsistentHashRouter.getKeyTag("a{}{b}"));
+        assertEquals("a{b", ConsistentHashRouter.getKeyTag("a{b"));
+        assertEquals("ab", ConsistentHashRouter.getKeyTag("ab"));
+        assertEquals("b", SafeEncoder.encode(ConsistentHashRouter.getKeyTag(SafeEncoder.encode("a{b}c"))));
+        assertEquals("a{}{b}", SafeEncoder.encode(ConsistentHashRouter.getKeyTag(SafeEncoder.encode("a{}{b}"))));
+        assertEquals("a{b", SafeEncoder.encode(ConsistentHashRouter.getKeyTag(SafeEncoder.encode("a{b"))));
+    }
+
+    public void testEmptyShards() {
+        assertEquals(-1, new ConsistentHashRouter(new ArrayList<JedisShardInfo>(), false).getShardIndex("k"));
+    }
+
+    private static void assertSameShard(List<JedisShardInfo> shards, boolean hashTag) {
+        Sharded<Jedis, JedisShardInfo> sharded = hashTag
+                ? new Sharded<Jedis, JedisShardInfo>(shards, ConsistentHashRouter.KEY_TAG_PATTERN)
+                : new Sharded<Jedis, JedisShardInfo>(shards);
+        ConsistentHashRouter router = new ConsistentHashRouter(shards, hashTag);
+        Random random = new Random(shards.size());
+        for (int i = 0; i < KEY_NUM; i++) {
+            String key = hashTag && i % 2 == 0
+                    ? "user:{" + random.nextInt(1000) + "}:" + i
+                    : "user:" + random.nextLong() + ":profile";
+            int expected = shards.indexOf(sharded.getShardInfo(key));
+            assertEquals(key, expected, router.getShardIndex(key));
+            assertEquals(key, expected, router.getShardIndex(SafeEncoder.encode(key)));
+        }
+    }
+
+    private static List<JedisShardInfo> shards(int shardNum, boolean weighted, boolean named) {
+        List<JedisShardInfo> shards = new ArrayList<JedisShardInfo>();
+        for (int i = 0; i < shardNum; i++) {
+            int weight = weighted ? i % 3 + 1 : 1;
+            String name = named ? "redis-" + i : null;
+            shards.add(new JedisShardInfo("127.0.0.1", name, 6379 + i, 2000, weight));
+        }
+        return shards;
+    }
+}
@@ -0,0 +1,93 @@
+package com.framework.redis;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * CountMinSketch 只会高估不会低估，误差在 总次数*e/width 以内
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class CountMinSketchTest extends TestCase {
+
+    public void testExactWhenNoCollision() {
+        CountMinSketch sketch = new CountMinSketch(4, 1 << 16);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i + 1, sketch.add("hot"));
+        }
+        sketch.add("cold");
+        assertEquals(5, sketch.estimate("hot"));
+        assertEquals(1, sketch.estimate("cold"));
+        assertEquals(0, sketch.estimate("absent"));
+    }
+
+    public void testNeverUnderestimates() {
+        CountMinSketch sketch = new CountMinSketch(4, 256);
+        Map<String, Integer> actual = new HashMap<String, Integer>();
+        Random random = new Random(42);
+        int total = 100000;
+        for (int i = 0; i < total; i++) {
+            // 少数key占大部分访问
+            String key = "key" + (random.nextInt(10) < 8 ? random.nextInt(20) : random.nextInt(5000));
+            sketch.add(key);
+            Integer count = actual.get(key);
+            actual.put(key, count == null ? 1 : count + 1);
+        }
+        int overBound = 0;
+        long bound = (long) Math.ceil(Math.E * total / 256);
+        for (Map.Entry<String, Integer> entry : actual.entrySet()) {
+            long estimate = sketch.estimate(entry.getKey());
+            assertTrue(entry.getKey(), estimate >= entry.getValue());
+            if (estimate - entry.getValue() > bound) {
+                overBound++;
+            }
+        }
+        // 每个key超出误差上界的概率不超过 e^-depth（约1.8%）
+        assertTrue("over bound " + overBound, overBound <= actual.size() * 0.05);
+    }
+
+    public void testCollisionOnlyOverestimates() {
+        // width=3按4处理，5个key必然有碰撞
+        CountMinSketch sketch = new CountMinSketch(1, 3);
+        for (int i = 0; i < 5; i++) {
+            sketch.add("k" + i);
+        }
+        for (int i = 0; i < 5; i++) {
+            assertTrue(sketch.estimate("k" + i) >= 1);
+        }
+        assertTrue(sketch.estimate("k0") + sketch.estimate("k1") + sketch.estimate("k2") + sketch.estimate("k3")
+                + sketch.estimate("k4") > 5);
+    }
+
+    public void testReset() {
+        CountMinSketch sketch = new CountMinSketch(4, 1024);
+        sketch.add("k");
+        sketch.add("k");
+        sketch.reset();
+        assertEquals(0, sketch.estimate("k"));
+        assertEquals(1, sketch.add("k"));
+    }
+
+    public void testConcurrentAdd() throws InterruptedException {
+        final CountMinSketch sketch = new CountMinSketch(4, 1 << 16);
+        final int threads = 4;
+        final int perThread = 10000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        sketch.add("shared");
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        assertEquals(threads * perThread, sketch.estimate("shared"));
+    }
+}
@@ -0,0 +1,124 @@
+package com.framework.redis;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * LatencyHistogram 分桶边界和分位数
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class LatencyHistogramTest extends TestCase {
+
+    // Long.MAX_VALUE所在的桶
+    private static final int LAST_BUCKET = LatencyHistogram.bucket(Long.MAX_VALUE);
+
+    public void testSmallValuesExact() {
+        for (int v = 0; v < 16; v++) {
+            assertEquals(v, LatencyHistogram.bucket(v));
+            assertEquals(v, LatencyHistogram.upperBound(v));
+        }
+    }
+
+    public void testBucketBoundaries() {
+        assertTrue(LAST_BUCKET < 512);
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(LAST_BUCKET));
+        for (int i = 1; i <= LAST_BUCKET; i++) {
+            long lower = LatencyHistogram.upperBound(i - 1) + 1;
+            long upper = LatencyHistogram.upperBound(i);
+            assertTrue("bucket " + i, lower <= upper);
+            // 桶的上下界都落在本桶，桶之间没有空隙和重叠
+            assertEquals("lower of bucket " + i, i, LatencyHistogram.bucket(lower));
+            assertEquals("upper of bucket " + i, i, LatencyHistogram.bucket(upper));
+        }
+    }
+
+    public void testValueWithinBucketBounds() {
+        Random random = new Random(7);
+        for (int i = 0; i < 100000; i++) {
+            long v = (random.nextLong() >>> 1) >>> random.nextInt(63);
+            int bucket = LatencyHistogram.bucket(v);
+            assertTrue(v + " in bucket " + bucket, v <= LatencyHistogram.upperBound(bucket));
+            if (bucket > 0) {
+                assertTrue(v + " in bucket " + bucket, v > LatencyHistogram.upperBound(bucket - 1));
+            }
+            // 上界的相对误差不超过1/8
+            assertTrue(v + " error", LatencyHistogram.upperBound(bucket) - v <= v / 8);
+        }
+    }
+
+    public void testEmptySnapshot() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMean());
+        assertEquals(0, snapshot.getMax());
+        assertEquals(0, snapshot.getPercentile(99));
+    }
+
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int v = 1; v <= 1000; v++) {
+            histogram.record(v);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(500, snapshot.getMean());
+        assertEquals(1000, snapshot.getMax());
+        assertPercentile(snapshot, 50, 500);
+        assertPercentile(snapshot, 90, 900);
+        assertPercentile(snapshot, 99, 990);
+        // 最大的分位数不超过实际的最大值
+        assertEquals(1000, snapshot.getPercentile(99.9));
+        assertEquals(1000, snapshot.getPercentile(100));
+    }
+
+    public void testSingleOutlier() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 999; i++) {
+            histogram.record(100);
+        }
+        histogram.record(1000000);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertPercentile(snapshot, 99, 100);
+        assertEquals(1000000, snapshot.getPercentile(99.95));
+        assertEquals(1000000, snapshot.getMax());
+    }
+
+    public void testNegativeAndNanos() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.recordNanos(3500);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(2, snapshot.getCount());
+        assertEquals(0, snapshot.getPercentile(50));
+        assertEquals(3, snapshot.getMax());
+    }
+
+    public void testSnapshotReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        histogram.record(20);
+        LatencyHistogram.Snapshot first = histogram.snapshot(true);
+        assertEquals(2, first.getCount());
+        assertEquals(15, first.getMean());
+        assertEquals(20, first.getMax());
+
+        assertEquals(0, histogram.getCount());
+        LatencyHistogram.Snapshot empty = histogram.snapshot();
+        assertEquals(0, empty.getCount());
+        assertEquals(0, empty.getMax());
+
+        histogram.record(5);
+        LatencyHistogram.Snapshot second = histogram.snapshot();
+        assertEquals(1, second.getCount());
+        assertEquals(5, second.getPercentile(50));
+    }
+
+    /**
+     * 分位数取桶的上界，不低于实际值，高出不超过1/8
+     */
+    private static void assertPercentile(LatencyHistogram.Snapshot snapshot, double percentile, long actual) {
+        long value = snapshot.getPercentile(percentile);
+        assertTrue("p" + percentile + "=" + value, value >= actual && value - actual <= actual / 8);
+    }
+}
@@ -0,0 +1,98 @@
+package com.framework.redis;
+
+import junit.framework.TestCase;
+
+/**
+ * NearCache 版本号校验和淘汰，不需要redis
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class NearCacheTest extends TestCase {
+
+    public void testPutAndGet() {
+        NearCache cache = new NearCache(16, 60000L);
+        assertSame(NearCache.MISS, cache.get("k", NearCache.VIEW_GET));
+        cache.put("k", NearCache.VIEW_GET, "v", cache.stamp("k"));
+        assertEquals("v", cache.get("k", NearCache.VIEW_GET));
+        // 同一个key的其他视图互不影响
+        assertSame(NearCache.MISS, cache.get("k", NearCache.VIEW_HGETALL));
+    }
+
+    public void testCachedNullIsNotMiss() {
+        NearCache cache = new NearCache(16, 60000L);
+        cache.put("k", NearCache.VIEW_GET, null, cache.stamp("k"));
+        assertNull(cache.get("k", NearCache.VIEW_GET));
+    }
+
+    public void testStaleRefillRejectedAfterInvalidate() {
+        NearCache cache = new NearCache(16, 60000L);
+        // 回源前取版本号，回源期间发生写操作
+        long stamp = cache.stamp("k");
+        cache.invalidate("k");
+        cache.put("k", NearCache.VIEW_GET, "old", stamp);
+        assertSame(NearCache.MISS, cache.get("k", NearCache.VIEW_GET));
+        assertEquals(0, cache.size());
+
+        // 用写之后的版本号回填可以成功
+        cache.put("k", NearCache.VIEW_GET, "new", cache.stamp("k"));
+        assertEquals("new", cache.get("k", NearCache.VIEW_GET));
+    }
+
+    public void testStaleRefillRejectedAfterInvalidateAll() {
+        NearCache cache = new NearCache(16, 60000L);
+        long stamp = cache.stamp("k");
+        cache.invalidateAll();
+        cache.put("k", NearCache.VIEW_GET, "old", stamp);
+        assertSame(NearCache.MISS, cache.get("k", NearCache.VIEW_GET));
+    }
+
+    public void testInvalidateRemovesAllViews() {
+        NearCache cache = new NearCache(16, 60000L);
+        cache.put("k", NearCache.VIEW_GET, "v", cache.stamp("k"));
+        cache.put("k", NearCache.VIEW_HGET_PREFIX + "f", "fv", cache.stamp("k"));
+        cache.invalidate("k");
+        assertSame(NearCache.MISS, cache.get("k", NearCache.VIEW_GET));
+        assertSame(NearCache.MISS, cache.get("k", NearCache.VIEW_HGET_PREFIX + "f"));
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        NearCache cache = new NearCache(2, 60000L);
+        cache.put("a", NearCache.VIEW_GET, "1", cache.stamp("a"));
+        cache.put("b", NearCache.VIEW_GET, "2", cache.stamp("b"));
+        // 访问a之后b成为最久未使用
+        assertEquals("1", cache.get("a", NearCache.VIEW_GET));
+        cache.put("c", NearCache.VIEW_GET, "3", cache.stamp("c"));
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals("1", cache.get("a", NearCache.VIEW_GET));
+        assertSame(NearCache.MISS, cache.get("b", NearCache.VIEW_GET));
+        assertEquals("3", cache.get("c", NearCache.VIEW_GET));
+    }
+
+    public void testSizeBoundedAcrossSegments() {
+        NearCache cache = new NearCache(1024, 60000L);
+        for (int i = 0; i < 10000; i++) {
+            String key = "key" + i;
+            cache.put(key, NearCache.VIEW_GET, "v", cache.stamp(key));
+        }
+        assertTrue(cache.size() <= 1024);
+        assertEquals(10000 - cache.size(), cache.getEvictionCount());
+    }
+
+    public void testExpiredEntryIsMiss() throws InterruptedException {
+        NearCache cache = new NearCache(16, 1L);
+        cache.put("k", NearCache.VIEW_GET, "v", cache.stamp("k"));
+        Thread.sleep(5L);
+        assertSame(NearCache.MISS, cache.get("k", NearCache.VIEW_GET));
+    }
+
+    public void testHitRate() {
+        NearCache cache = new NearCache(16, 60000L);
+        cache.put("k", NearCache.VIEW_GET, "v", cache.stamp("k"));
+        cache.get("k", NearCache.VIEW_GET);
+        cache.get("x", NearCache.VIEW_GET);
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0.5, cache.getHitRate(), 0.0001);
+    }
+}
@@ -0,0 +1,56 @@
+package com.framework.redis;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisShardInfo;
+
+/**
+ * 借还连接时PING（testOnBorrow/testOnReturn）与只在后台检测空闲连接的耗时对比，需要一个可连接的redis
+ * java com.framework.redis.ShardPoolBenchmark [host] [port] [requests]
+ * 实测（JDK 1.8.0_392，单核Xeon虚拟机，10万次单线程GET，取后两轮）：
+ *   testOnBorrow/testOnReturn=true  21097ns/op（每次GET多两次PING，共3次往返），borrow p99=9us
+ *   testOnBorrow/testOnReturn=false 7540ns/op（1次往返），borrow p99=0us
+ * 压测机上没有redis，服务端是回环地址上只应答PING/GET的RESP桩，绝对耗时只反映客户端和回环网络；
+ * 真实redis和跨机网络下每次往返更贵，两者的差距更大
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class ShardPoolBenchmark {
+
+    public static void main(String[] args) {
+        String host = args.length > 0 ? args[0] : "127.0.0.1";
+        int port = args.length > 1 ? Integer.valueOf(args[1]) : 6379;
+        int requests = args.length > 2 ? Integer.valueOf(args[2]) : 100000;
+        for (boolean testOnBorrowReturn : new boolean[]{true, false, true, false}) {
+            JedisPoolConfig config = new JedisPoolConfig();
+            config.setTestOnBorrow(testOnBorrowReturn);
+            config.setTestOnReturn(testOnBorrowReturn);
+            ShardPool pool = new ShardPool(0, new JedisShardInfo(host, port), config);
+            try {
+                for (int i = 0; i < requests / 10; i++) {
+                    get(pool, i);
+                }
+                pool.resetLatency();
+                long start = System.nanoTime();
+                for (int i = 0; i < requests; i++) {
+                    get(pool, i);
+                }
+                long elapsed = System.nanoTime() - start;
+                LatencyHistogram.Snapshot command = pool.getCommandHistogram().snapshot();
+                System.out.println("testOnBorrow/testOnReturn=" + testOnBorrowReturn + " " + requests + " get: "
+                        + elapsed / requests + "ns/op, command " + command
+                        + ", borrow p99=" + pool.getBorrowWaitP99Micros() + "us");
+            } finally {
+                pool.close();
+            }
+        }
+    }
+
+    private static void get(ShardPool pool, int i) {
+        Jedis jedis = pool.getResource();
+        try {
+            jedis.get("shard-pool-benchmark-" + (i & 1023));
+        } finally {
+            jedis.close();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.framework.redis;
+
+import junit.framework.TestCase;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ShardScanIterator 的结束、出错和无人消费超时，不需要redis
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class ShardScanIteratorTest extends TestCase {
+
+    public void testAllShardsFinished() throws InterruptedException {
+        ShardScanIterator iterator = new ShardScanIterator(2, 10, 1000L);
+        iterator.offer("a");
+        iterator.finish(null);
+        iterator.offer("b");
+        iterator.finish(null);
+        List<String> keys = new ArrayList<String>();
+        while (iterator.hasNext()) {
+            keys.add(iterator.next());
+        }
+        assertEquals(Arrays.asList("a", "b"), keys);
+    }
+
+    public void testShardErrorThrown() throws InterruptedException {
+        ShardScanIterator iterator = new ShardScanIterator(1, 10, 1000L);
+        iterator.offer("a");
+        iterator.finish(new RuntimeException("down"));
+        assertEquals("a", iterator.next());
+        try {
+            iterator.hasNext();
+            fail();
+        } catch (JedisException e) {
+            assertEquals("down", e.getCause().getMessage());
+        }
+    }
+
+    public void testIdleTimeoutIsNotEndOfScan() throws InterruptedException {
+        ShardScanIterator iterator = new ShardScanIterator(1, 1, 200L);
+        assertTrue(iterator.offer("a"));
+        // 队列满且无人消费，生产者等待超时后放弃
+        assertFalse(iterator.offer("b"));
+        assertTrue(iterator.isClosed());
+        try {
+            iterator.hasNext();
+            fail();
+        } catch (JedisException e) {
+            assertTrue(e.getMessage().contains("incomplete"));
+        }
+    }
+
+    public void testCloseByCallerEndsQuietly() throws InterruptedException {
+        ShardScanIterator iterator = new ShardScanIterator(1, 10, 1000L);
+        iterator.offer("a");
+        iterator.close();
+        assertFalse(iterator.hasNext());
+        assertFalse(iterator.offer("b"));
+    }
+}
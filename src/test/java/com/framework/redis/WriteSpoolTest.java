@@ -0,0 +1,254 @@
+package com.framework.redis;
+
+import junit.framework.TestCase;
+import redis.clients.util.SafeEncoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * WriteSpool 记录校验、尾部损坏、checkpoint和容量上限，只用本地临时目录
+ * Created by wangkaiyan on 2017/11/17.
+ */
+public class WriteSpoolTest extends TestCase {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = File.createTempFile("spool", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdirs());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    public void testReopenAndReplayInOrder() throws Exception {
+        WriteSpool spool = new WriteSpool(dir, SEGMENT_SIZE, 4, false);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(spool.append(i % 2 == 0 ? WriteSpool.OP_RPUSH : WriteSpool.OP_LPUSH, bytes("queue"),
+                    new byte[][]{bytes("v" + i), bytes("w" + i)}));
+        }
+        assertEquals(10, spool.getBacklogRecords());
+        spool.close();
+
+        spool = new WriteSpool(dir, SEGMENT_SIZE, 4, false);
+        assertEquals(10, spool.getBacklogRecords());
+        Collector collector = new Collector(Integer.MAX_VALUE);
+        spool.startReplay(collector, 10);
+        awaitReplayed(spool, 10);
+        spool.close();
+
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 10; i++) {
+            expected.add((i % 2 == 0 ? WriteSpool.OP_RPUSH : WriteSpool.OP_LPUSH) + " queue v" + i + ",w" + i);
+        }
+        assertEquals(expected, collector.records());
+        assertEquals(0, spool.getBacklogRecords());
+        assertEquals(0, spool.getBacklogBytes());
+    }
+
+    public void testTornTailSkippedAndOverwritten() throws Exception {
+        WriteSpool spool = new WriteSpool(dir, SEGMENT_SIZE, 4, false);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(spool.append(WriteSpool.OP_RPUSH, bytes("k"), new byte[][]{bytes("value" + i)}));
+        }
+        spool.close();
+
+        // 最后一条记录只写了一半：长度和CRC已写入，后半段内容还是0
+        int size = recordSize("k", "value0");
+        RandomAccessFile file = new RandomAccessFile(onlySegment(), "rw");
+        try {
+            file.seek(2 * size + size / 2);
+            file.write(new byte[size - size / 2]);
+        } finally {
+            file.close();
+        }
+
+        spool = new WriteSpool(dir, SEGMENT_SIZE, 4, false);
+        assertEquals(2, spool.getBacklogRecords());
+        // 从损坏记录的位置继续写，覆盖掉它
+        assertTrue(spool.append(WriteSpool.OP_RPUSH, bytes("k"), new byte[][]{bytes("new")}));
+        assertEquals(3, spool.getBacklogRecords());
+        Collector collector = new Collector(Integer.MAX_VALUE);
+        spool.startReplay(collector, 10);
+        awaitReplayed(spool, 3);
+        spool.close();
+        assertEquals(list("1 k value0", "1 k value1", "1 k new"), collector.records());
+    }
+
+    public void testCorruptedTailRecordSkipped() throws Exception {
+        WriteSpool spool = new WriteSpool(dir, SEGMENT_SIZE, 4, false);
+        assertTrue(spool.append(WriteSpool.OP_RPUSH, bytes("k"), new byte[][]{bytes("good")}));
+        assertTrue(spool.append(WriteSpool.OP_RPUSH, bytes("k"), new byte[][]{bytes("evil")}));
+        spool.close();
+
+        // 翻转最后一条记录value中的一个字节，CRC对不上
+        RandomAccessFile file = new RandomAccessFile(onlySegment(), "rw");
+        try {
+            long pos = 2 * recordSize("k", "good") - 1;
+            file.seek(pos);
+            int b = file.read();
+            file.seek(pos);
+            file.write(b ^ 0xff);
+        } finally {
+            file.close();
+        }
+
+        spool = new WriteSpool(dir, SEGMENT_SIZE, 4, false);
+        assertEquals(1, spool.getBacklogRecords());
+        Collector collector = new Collector(Integer.MAX_VALUE);
+        spool.startReplay(collector, 10);
+        awaitReplayed(spool, 1);
+        spool.close();
+        assertEquals(list("1 k good"), collector.records());
+    }
+
+    public void testCheckpointSurvivesRestart() throws Exception {
+        WriteSpool spool = new WriteSpool(dir, SEGMENT_SIZE, 4, false);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(spool.append(WriteSpool.OP_RPUSH, bytes("k"), new byte[][]{bytes("v" + i)}));
+        }
+        // 只回放成功前3条，之后redis一直不可用
+        Collector first = new Collector(3);
+        spool.startReplay(first, 10);
+        awaitReplayed(spool, 3);
+        spool.close();
+        assertEquals(list("1 k v0", "1 k v1", "1 k v2"), first.records());
+
+        spool = new WriteSpool(dir, SEGMENT_SIZE, 4, false);
+        assertEquals(2, spool.getBacklogRecords());
+        Collector second = new Collector(Integer.MAX_VALUE);
+        spool.startReplay(second, 10);
+        awaitReplayed(spool, 2);
+        spool.close();
+        assertEquals(list("1 k v3", "1 k v4"), second.records());
+    }
+
+    public void testCorruptedCheckpointReplaysFromStart() throws Exception {
+        WriteSpool spool = new WriteSpool(dir, SEGMENT_SIZE, 4, false);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(spool.append(WriteSpool.OP_RPUSH, bytes("k"), new byte[][]{bytes("v" + i)}));
+        }
+        Collector first = new Collector(2);
+        spool.startReplay(first, 10);
+        awaitReplayed(spool, 2);
+        spool.close();
+
+        RandomAccessFile file = new RandomAccessFile(new File(dir, "spool.checkpoint"), "rw");
+        try {
+            file.seek(8);
+            file.writeLong(1);
+        } finally {
+            file.close();
+        }
+
+        // CRC对不上时不信任checkpoint，宁可重复回放（至少一次）
+        spool = new WriteSpool(dir, SEGMENT_SIZE, 4, false);
+        assertEquals(3, spool.getBacklogRecords());
+        spool.close();
+    }
+
+    public void testRejectWhenFull() throws Exception {
+        // 每个分段放得下2条记录
+        int size = recordSize("k", "v");
+        WriteSpool spool = new WriteSpool(dir, 2 * size + 4, 2, false);
+        for (int i = 0; i < 4; i++) {
+            assertTrue("append " + i, spool.append(WriteSpool.OP_RPUSH, bytes("k"), new byte[][]{bytes("v")}));
+        }
+        assertEquals(2, spool.getSegmentCount());
+        assertFalse(spool.append(WriteSpool.OP_RPUSH, bytes("k"), new byte[][]{bytes("v")}));
+        assertEquals(1, spool.getRejectCount());
+        // 单条超过分段大小的记录直接拒绝
+        assertFalse(spool.append(WriteSpool.OP_RPUSH, bytes("k"), new byte[][]{new byte[3 * size]}));
+        assertEquals(2, spool.getRejectCount());
+
+        // 回放完的分段删除后可以继续写入
+        spool.startReplay(new Collector(Integer.MAX_VALUE), 10);
+        awaitReplayed(spool, 4);
+        assertTrue(spool.append(WriteSpool.OP_RPUSH, bytes("k"), new byte[][]{bytes("v")}));
+        spool.close();
+    }
+
+    /**
+     * [int 长度][int CRC32][byte 操作][int key长度][key][int value个数][int value长度][value]
+     */
+    private static int recordSize(String key, String value) {
+        return 4 + 4 + 1 + 4 + key.length() + 4 + 4 + value.length();
+    }
+
+    private File onlySegment() {
+        File[] files = dir.listFiles();
+        File segment = null;
+        for (File file : files) {
+            if (file.getName().startsWith("spool-")) {
+                assertNull("more than one segment", segment);
+                segment = file;
+            }
+        }
+        assertNotNull(segment);
+        return segment;
+    }
+
+    private static void awaitReplayed(WriteSpool spool, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (spool.getReplayedCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, spool.getReplayedCount());
+    }
+
+    private static byte[] bytes(String s) {
+        return SafeEncoder.encode(s);
+    }
+
+    private static List<String> list(String... records) {
+        List<String> list = new ArrayList<String>();
+        Collections.addAll(list, records);
+        return list;
+    }
+
+    /**
+     * 收集回放的记录，成功limit条之后一直返回false（模拟redis不可用）
+     */
+    private static final class Collector implements WriteSpool.Replayer {
+        private final int limit;
+        private final List<String> records = new ArrayList<String>();
+
+        Collector(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public synchronized boolean replay(byte op, byte[] key, byte[][] values) {
+            if (records.size() >= limit) {
+                return false;
+            }
+            StringBuilder sb = new StringBuilder().append(op).append(' ').append(SafeEncoder.encode(key)).append(' ');
+            for (int i = 0; i < values.length; i++) {
+                sb.append(i > 0 ? "," : "").append(SafeEncoder.encode(values[i]));
+            }
+            records.add(sb.toString());
+            return true;
+        }
+
+        synchronized List<String> records() {
+            return new ArrayList<String>(records);
+        }
+    }
+}